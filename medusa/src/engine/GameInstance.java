@@ -5,23 +5,37 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import engine.gameEvents.CollisionEvent;
 import engine.gameEvents.DeathEvent;
 import engine.gameEvents.DespawnEvent;
+import engine.gameEvents.EndReplayEvent;
 import engine.gameEvents.GameEvent;
 import engine.gameEvents.InputEvent;
-import engine.gameEvents.NullEvent;
 import engine.gameEvents.SpawnEvent;
 import engine.gameEvents.eventManagement.EventHandler;
 import engine.gameEvents.eventManagement.EventManager;
 import engine.gameObjects.GameObject;
+import engine.gameObjects.Bullet;
 import engine.gameObjects.GameObjectSet;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.Invader;
 import engine.gameObjects.PlayerObject;
 import engine.gameObjects.SpawnPoint;
+import engine.gameObjects.SpatialIndex;
+import engine.gameObjects.SweepResult;
+import engine.gameObjects.behaviors.BulletBehavior;
+import engine.gameObjects.behaviors.InvaderBehavior;
+import engine.gameObjects.behaviors.MovingBlockBehavior;
+import engine.gameObjects.behaviors.PlatformerPlayerBehavior;
+import engine.gameObjects.objectClasses.Behavior;
 import engine.gameObjects.objectClasses.PhysicsObject;
 import engine.gameObjects.objectClasses.RenderableObject;
 import engine.replay.GameReplay;
@@ -38,6 +52,9 @@ public abstract class GameInstance extends PApplet
 {
 	public static final boolean DEBUG = false;
 	
+	/** Whether the logic thread runs ahead of GVT, rolling back when needed */
+	public static final boolean TIME_WARP = false;
+	
 	public static final int TARGET_FRAMERATE = 60;
 	
 	public static final int SCREEN_WIDTH = 800, SCREEN_HEIGHT = 800;
@@ -45,6 +62,31 @@ public abstract class GameInstance extends PApplet
 	/** The port number to be used by the server */
 	public static final int SERVER_PORT = 7734;
 	
+	/**
+	 * Longest time, in milliseconds, the logic thread waits for other
+	 * instances' events before checking again
+	 */
+	public static final long EVENT_WAIT_TIMEOUT = 5;
+	
+	/**
+	 * Time, in milliseconds, the logic thread sleeps between checks for the
+	 * next tick once it has caught up, rather than spinning
+	 */
+	public static final long IDLE_WAIT = 1;
+	
+	/**
+	 * Have the server send clients snapshots of the moving objects, which
+	 * they correct their own against
+	 */
+	public static final boolean SNAPSHOTS = true;
+	
+	/** Ticks between snapshots */
+	public static final int SNAPSHOT_INTERVAL = 30;
+	
+	/** The event classes handled by CoreEventHandler, and recorded by replays */
+	public static final Class<?>[] CORE_EVENT_TYPES = { CollisionEvent.class,
+			InputEvent.class, DeathEvent.class, SpawnEvent.class, DespawnEvent.class };
+	
 	protected GameInstance thisInstance = this;
 	
 	protected ReentrantReadWriteLock exeLock = new ReentrantReadWriteLock(true);
@@ -57,8 +99,26 @@ public abstract class GameInstance extends PApplet
 	
 	public EventManager eventManager = new EventManager();
 	
+	public TimeWarpManager timeWarpManager = new TimeWarpManager();
+	
 	GameObjectSet objectMap = new GameObjectSet();
 	
+	/** Moves each PhysicsObject by a tick; kept so that ticks do not allocate */
+	private final PhysicsStep physicsStep = new PhysicsStep(objectMap);
+	
+	/** Draws each RenderableObject; kept so that draw() does not allocate */
+	private final Consumer<GameObject> renderStep = new Consumer<GameObject>()
+	{
+		@Override
+		public void accept(GameObject o)
+		{
+			((RenderableObject) o).display(thisInstance);
+		}
+	};
+	
+	/** The Behavior used for each class of PhysicsObject in the current game */
+	private ConcurrentHashMap<Class<?>, Behavior<?>> behaviors = new ConcurrentHashMap<Class<?>, Behavior<?>>();
+	
 	Timeline gameTimeline;
 	
 	long currentTime;
@@ -71,6 +131,12 @@ public abstract class GameInstance extends PApplet
 	
 	ConcurrentLinkedQueue<String> handledLog = new ConcurrentLinkedQueue<String>();
 	
+	/** The tick up to which this instance has sent all of its own events */
+	protected volatile long promisedTime = -1;
+	
+	/** The last tick passed to sendPromise() */
+	private long lastSentPromise = -1;
+	
 	private Object deepClone(Object object)
 	{
 		try
@@ -125,6 +191,11 @@ public abstract class GameInstance extends PApplet
 			System.out.println(hLog.poll());
 		}
 		
+		System.out.println("\nScripts: " + ScriptManager.getScriptStatistics());
+		
+		if (timeWarpManager.isEnabled())
+			timeWarpManager.printRollbackStatistics();
+		
 		resumeExeAndTime();
 	}
 	
@@ -151,6 +222,12 @@ public abstract class GameInstance extends PApplet
 	{
 		return currentTime;
 	}
+	
+	/** The tick the timeline has reached, which the logic thread is catching up to */
+	public long getTimelineTime()
+	{
+		return gameTimeline.getTime();
+	}
 
 	public void setGameTitle(String title)
 	{
@@ -168,6 +245,66 @@ public abstract class GameInstance extends PApplet
 		}
 	}
 	
+	/**
+	 * Sets the Behavior used to update objects of the given class. Games may
+	 * call this from their behaviour_setup.js script to replace a built-in
+	 * behavior with a script.
+	 */
+	public <T extends GameObject> void setBehavior(Class<T> objectClass, Behavior<? super T> behavior)
+	{
+		behaviors.put(objectClass, behavior);
+	}
+	
+	/** Gets the Behavior used to update objects of the given class, or null if there is none */
+	@SuppressWarnings("unchecked")
+	public <T extends GameObject> Behavior<T> getBehavior(Class<T> objectClass)
+	{
+		return (Behavior<T>) behaviors.get(objectClass);
+	}
+	
+	/**
+	 * Selects the collision broadphase for the current game. The platformer
+	 * mixes small blocks with large DeathZones, which suits the tree; the
+	 * invaders field is small and evenly filled, which suits the grid.
+	 */
+	protected void setUpSpatialIndex()
+	{
+		if (getGameTitle().equals("platform"))
+			objectMap.setSpatialIndex(SpatialIndex.Type.TREE);
+		else
+			objectMap.setSpatialIndex(SpatialIndex.Type.GRID);
+	}
+	
+	/**
+	 * Installs the built-in behaviors for the current game, then runs the
+	 * game's behaviour_setup.js script so it can override any of them.
+	 */
+	protected void setUpBehaviors()
+	{
+		behaviors.clear();
+		
+		ScriptManager.lock();
+		ScriptManager.bindArgument("instance", thisInstance);
+		
+		if (getGameTitle().equals("platform"))
+		{
+			setBehavior(PlayerObject.class, new PlatformerPlayerBehavior());
+			setBehavior(HorizontalMovingBlock.class, new MovingBlockBehavior());
+			
+			ScriptManager.loadScript("platformer/behaviour_setup.js");
+		}
+		else if (getGameTitle().equals("invaders"))
+		{
+			setBehavior(Invader.class, new InvaderBehavior());
+			setBehavior(Bullet.class, new BulletBehavior());
+			
+			ScriptManager.loadScript("invaders/behaviour_setup.js");
+		}
+		
+		ScriptManager.clearBindings();
+		ScriptManager.unlock();
+	}
+	
 	public void addToMap(GameObject object)
 	{
 		objectMap.addToSet(object);
@@ -180,7 +317,7 @@ public abstract class GameInstance extends PApplet
 	
 	public PlayerObject createNewPlayer()
 	{
-		ArrayList<GameObject> spawns = objectMap.getObjectsOfClass(SpawnPoint.class);
+		List<GameObject> spawns = objectMap.getObjectsOfClassView(SpawnPoint.class);
 		
 		Random r = new Random();
 		
@@ -227,8 +364,63 @@ public abstract class GameInstance extends PApplet
 			return replayManager.rObjects.checkPhysCollision(x, y, w, h);
 	}
 
+	/**
+	 * Moves a box by (dx, dy) and returns where it first touches a physically
+	 * colliding object, or null if the path is clear.
+	 */
+	public SweepResult sweepForPhysicalCollision(double x, double y, double w,
+			double h, double dx, double dy)
+	{
+		if (!replayManager.playing)
+			return objectMap.sweep(x, y, w, h, dx, dy);
+		else
+			return replayManager.rObjects.sweep(x, y, w, h, dx, dy);
+	}
+	
+	/**
+	 * Moves o by (dx, dy) and returns every other object it touches on the
+	 * way, earliest first.
+	 */
+	public ArrayList<SweepResult> sweepColliding(GameObject o, double dx, double dy)
+	{
+		if (!replayManager.playing)
+			return objectMap.sweepColliding(o, dx, dy, false);
+		else
+			return replayManager.rObjects.sweepColliding(o, dx, dy, false);
+	}
+
 	public abstract void queueEvent(GameEvent e, boolean propagate);
 	
+	/** Lets this instance's peers know it has sent all its events up to tick t */
+	protected abstract void sendPromise(long t);
+	
+	/**
+	 * Called by the logic thread at the start of each tick, after its promise
+	 * is sent and before its events are handled
+	 */
+	protected void startTick(long t)
+	{
+		
+	}
+	
+	/**
+	 * Promises that this instance has sent all of its events up to the given
+	 * tick. Replaces the NullEvent each instance used to send every tick.
+	 */
+	protected void promiseTime(long t)
+	{
+		promisedTime = t;
+		
+		eventManager.promise(instanceID, t);
+		
+		if (t > lastSentPromise)
+		{
+			lastSentPromise = t;
+			
+			sendPromise(t);
+		}
+	}
+	
 	/*
 	 * Defines PApplet settings for size() and smooth() values. (non-Javadoc)
 	 * @see processing.core.PApplet#settings()
@@ -290,17 +482,11 @@ public abstract class GameInstance extends PApplet
 			vertex(SCREEN_WIDTH - 75, 50);
 			endShape();
 			
-			for (GameObject o : replayManager.rObjects.getObjectsOfClass(RenderableObject.class))
-			{
-				((RenderableObject) o).display(this);
-			}
+			replayManager.rObjects.forEachOfClass(RenderableObject.class, renderStep);
 		}
 		else
 		{
-			for (GameObject o : objectMap.getObjectsOfClass(RenderableObject.class))
-			{
-				((RenderableObject) o).display(this);
-			}
+			objectMap.forEachOfClass(RenderableObject.class, renderStep);
 		}
 		
 		long l = getCurrentTime();
@@ -475,41 +661,18 @@ public abstract class GameInstance extends PApplet
 		
 		private void replayHandle(GameEvent e)
 		{
-			switch (e.getEventType())
-			{
-				case "CollisionEvent":
-				{
-					handle((CollisionEvent) e);
-					break;
-				}
-				case "InputEvent":
-				{
-					handle((InputEvent) e);
-					break;
-				}
-				case "DeathEvent":
-				{
-					handle((DeathEvent) e);
-					break;
-				}
-				case "SpawnEvent":
-				{
-					handle((SpawnEvent) e);
-					break;
-				}
-				case "DespawnEvent":
-				{
-					handle((DespawnEvent) e);
-					break;
-				}
-				case "EndReplayEvent":
-				{
-					playing = false;
-					break;
-				}
-				default:
-					break;
-			}
+			if (e instanceof CollisionEvent)
+				handle((CollisionEvent) e);
+			else if (e instanceof InputEvent)
+				handle((InputEvent) e);
+			else if (e instanceof DeathEvent)
+				handle((DeathEvent) e);
+			else if (e instanceof SpawnEvent)
+				handle((SpawnEvent) e);
+			else if (e instanceof DespawnEvent)
+				handle((DespawnEvent) e);
+			else if (e instanceof EndReplayEvent)
+				playing = false;
 		}
 		
 		private class ReplayLogicThread extends Thread
@@ -537,6 +700,8 @@ public abstract class GameInstance extends PApplet
 				
 				rCurrentTime = replay.getStartTime();
 				
+				PhysicsStep physicsStep = new PhysicsStep(rObjects);
+				
 				while(playing)
 				{
 					// get newTime
@@ -549,18 +714,10 @@ public abstract class GameInstance extends PApplet
 						
 						rCurrentTime++;
 						
+						rObjects.updatePositions();
+						
 						// do physics stuff or whatever
-						for (GameObject moveObject : rObjects.getObjectsOfClass(PhysicsObject.class))
-						{
-							if (!(moveObject instanceof PlayerObject))
-							{
-								((PhysicsObject) moveObject).doPhysics(gameInstance);
-							}
-							else if (((PlayerObject) moveObject).isAlive())
-							{
-								((PlayerObject) moveObject).doPhysics(gameInstance);
-							}
-						}
+						rObjects.forEachOfClass(PhysicsObject.class, physicsStep);
 					}
 				}
 				
@@ -595,6 +752,176 @@ public abstract class GameInstance extends PApplet
 				resumeExeAndTime();
 			}
 		}
+		
+		/** Removes events whose handling was undone by a rollback from the recording */
+		private void forget(List<GameEvent> undone)
+		{
+			if (recording && replay != null)
+				replay.forget(undone);
+		}
+	}
+	
+	/**
+	 * Runs the logic thread optimistically, as in Time Warp: each tick's events
+	 * are handled as soon as the tick comes, without waiting for GVT. Before
+	 * each tick a copy of the game state is saved. When an event arrives for a
+	 * tick already run, the state is restored from the latest copy at or
+	 * before that tick and the following ticks are run again. Copies and
+	 * records older than GVT are dropped, since no event can arrive for them.
+	 */
+	public class TimeWarpManager
+	{
+		/** Ticks between saved copies of the game state */
+		public static final int CHECKPOINT_INTERVAL = 1;
+		
+		/** Default for how many ticks the logic thread may run ahead of GVT */
+		public static final int DEFAULT_MAX_ROLLBACK = 30;
+		
+		private TreeMap<Long, GameObjectSet> checkpoints = new TreeMap<Long, GameObjectSet>();
+		
+		private int maxRollback = DEFAULT_MAX_ROLLBACK;
+		
+		private long rollbacks = 0;
+		
+		private long ticksUndone = 0;
+		
+		/**
+		 * Number of rollbacks of each depth in ticks, for this session; the last
+		 * entry counts every rollback of maxRollback ticks or more
+		 */
+		private long[] rollbackDepths = new long[DEFAULT_MAX_ROLLBACK + 1];
+		
+		public TimeWarpManager()
+		{
+			setEnabled(TIME_WARP);
+		}
+		
+		public boolean isEnabled()
+		{
+			return eventManager.isOptimistic();
+		}
+		
+		/** Turns optimistic execution on or off; should be set before the logic thread starts */
+		public void setEnabled(boolean enabled)
+		{
+			eventManager.setOptimistic(enabled);
+			checkpoints.clear();
+		}
+		
+		public long getRollbackCount()
+		{
+			return rollbacks;
+		}
+		
+		public long getTicksUndone()
+		{
+			return ticksUndone;
+		}
+		
+		public int getMaxRollback()
+		{
+			return maxRollback;
+		}
+		
+		/**
+		 * Sets how many ticks the logic thread may run ahead of GVT before it
+		 * waits, which bounds both rollback depth and the copies kept. Resets
+		 * the rollback histogram.
+		 */
+		public void setMaxRollback(int ticks)
+		{
+			maxRollback = Math.max(1, ticks);
+			rollbackDepths = new long[maxRollback + 1];
+		}
+		
+		/** Returns the number of saved copies of the game state still kept */
+		public int getCheckpointCount()
+		{
+			return checkpoints.size();
+		}
+		
+		/** Returns the number of rollbacks of each depth, as described for rollbackDepths */
+		public long[] getRollbackHistogram()
+		{
+			return rollbackDepths.clone();
+		}
+		
+		/** Prints the rollback counts and the histogram of their depths */
+		public void printRollbackStatistics()
+		{
+			System.out.println("Rollbacks: " + rollbacks + ", ticks re-run: " + ticksUndone);
+			
+			for (int depth = 1; depth < rollbackDepths.length; depth++)
+			{
+				if (rollbackDepths[depth] > 0)
+				{
+					String label = (depth == maxRollback) ? depth + "+" : "" + depth;
+					System.out.println("  depth " + label + ": " + rollbackDepths[depth]);
+				}
+			}
+		}
+		
+		/**
+		 * Waits, if the logic thread has run maxRollback ticks ahead of GVT,
+		 * until GVT catches up. Called without holding exeLock.
+		 */
+		private void waitForWindow()
+		{
+			long oldest = currentTime - maxRollback;
+			
+			while (eventManager.advanceGVT(currentTime) <= oldest)
+				eventManager.waitForEvents(oldest, EVENT_WAIT_TIMEOUT);
+		}
+		
+		/**
+		 * Runs the events for the current tick, first rolling back if any event
+		 * arrived late. Called by the logic thread in place of handleEvents().
+		 */
+		private void step()
+		{
+			long straggler = eventManager.getStragglerTick();
+			
+			if (straggler < currentTime)
+				rollback(straggler);
+			
+			if (currentTime % CHECKPOINT_INTERVAL == 0 || checkpoints.isEmpty())
+				checkpoints.put(currentTime, (GameObjectSet) deepClone(objectMap));
+			
+			eventManager.handleOptimistic(currentTime);
+		}
+		
+		private void rollback(long tick)
+		{
+			Long restoreTick = checkpoints.floorKey(tick);
+			
+			if (restoreTick == null)
+				restoreTick = checkpoints.firstKey();
+			
+			objectMap.restore(checkpoints.get(restoreTick));
+			checkpoints.tailMap(restoreTick).clear();
+			
+			replayManager.forget(eventManager.rollback(restoreTick));
+			
+			int depth = (int) Math.min(currentTime - restoreTick, maxRollback);
+			
+			rollbacks++;
+			rollbackDepths[depth]++;
+			ticksUndone += currentTime - restoreTick;
+			
+			currentTime = restoreTick;
+		}
+		
+		/** Drops the copies and records which GVT has passed */
+		private void collectFossils()
+		{
+			Long keep = checkpoints.floorKey(eventManager.getGVT());
+			
+			if (keep != null)
+			{
+				checkpoints.headMap(keep).clear();
+				eventManager.collectFossils(keep);
+			}
+		}
 	}
 
 	protected class CoreEventHandler implements EventHandler
@@ -604,36 +931,16 @@ public abstract class GameInstance extends PApplet
 		{
 			//System.out.println(e.getEventType());
 			
-			switch (e.getEventType())
-			{
-				case "CollisionEvent":
-				{
-					handle((CollisionEvent) e);
-					break;
-				}
-				case "InputEvent":
-				{
-					handle((InputEvent) e);
-					break;
-				}
-				case "DeathEvent":
-				{
-					handle((DeathEvent) e);
-					break;
-				}
-				case "SpawnEvent":
-				{
-					handle((SpawnEvent) e);
-					break;
-				}
-				case "DespawnEvent":
-				{
-					handle((DespawnEvent) e);
-					break;
-				}
-				default:
-					break;
-			}
+			if (e instanceof CollisionEvent)
+				handle((CollisionEvent) e);
+			else if (e instanceof InputEvent)
+				handle((InputEvent) e);
+			else if (e instanceof DeathEvent)
+				handle((DeathEvent) e);
+			else if (e instanceof SpawnEvent)
+				handle((SpawnEvent) e);
+			else if (e instanceof DespawnEvent)
+				handle((DespawnEvent) e);
 		}
 		
 		private void handle(CollisionEvent e)
@@ -730,6 +1037,93 @@ public abstract class GameInstance extends PApplet
 		}
 	}
 
+	/**
+	 * Advances a PhysicsObject by one tick, then updates its position in the
+	 * given set. Living players and all other PhysicsObjects are updated.
+	 */
+	private class PhysicsStep implements Consumer<GameObject>
+	{
+		private final GameObjectSet objects;
+		
+		PhysicsStep(GameObjectSet objects)
+		{
+			this.objects = objects;
+		}
+		
+		@Override
+		public void accept(GameObject moveObject)
+		{
+			if (!(moveObject instanceof PlayerObject))
+			{
+				((PhysicsObject) moveObject).doPhysics(thisInstance);
+			}
+			else if (((PlayerObject) moveObject).isAlive())
+			{
+				((PlayerObject) moveObject).doPhysics(thisInstance);
+			}
+			
+			objects.updatePosition(moveObject);
+		}
+	}
+
+	/**
+	 * Runs the current tick: promises it, handles its events, waiting for
+	 * any which are missing unless running optimistically, then moves every
+	 * PhysicsObject. A rollback may leave currentTime lower than before.
+	 * Called by the logic thread, or by a harness which advances time by hand.
+	 */
+	protected void runTick()
+	{
+		exeLock.readLock().lock();
+		
+		promiseTime(currentTime);
+		
+		exeLock.readLock().unlock();
+		
+		startTick(currentTime);
+		
+		boolean handled = false;
+		
+		if (timeWarpManager.isEnabled())
+		{
+			timeWarpManager.waitForWindow();
+			
+			exeLock.readLock().lock();
+			
+			timeWarpManager.step();
+			
+			exeLock.readLock().unlock();
+			
+			handled = true;
+		}
+		
+		while (!handled)
+		{
+			exeLock.readLock().lock();
+			
+			handled = eventManager.handleEvents(currentTime);
+			
+			exeLock.readLock().unlock();
+			
+			// wait for the missing promises, rather than spinning
+			if (!handled)
+				eventManager.waitForEvents(currentTime, EVENT_WAIT_TIMEOUT);
+		}
+		
+		exeLock.readLock().lock();
+		
+		currentTime++;
+		
+		objectMap.updatePositions();
+		
+		objectMap.forEachOfClass(PhysicsObject.class, physicsStep);
+		
+		if (timeWarpManager.isEnabled())
+			timeWarpManager.collectFossils();
+		
+		exeLock.readLock().unlock();
+	}
+	
 	protected class CoreLogicThread extends Thread
 	{
 		public void run()
@@ -739,44 +1133,16 @@ public abstract class GameInstance extends PApplet
 				long newTime = gameTimeline.getTime();
 				
 				while(newTime > currentTime)
+					runTick();
+				
+				try
 				{
-					exeLock.readLock().lock();
-					
-					NullEvent n = new NullEvent(currentTime, instanceID);
-					queueEvent(n, true);
-					
-					exeLock.readLock().unlock();
-					
-					boolean handled = false;
-					
-					while (!handled)
-					{
-						exeLock.readLock().lock();
-						
-						handled = eventManager.handleEvents(currentTime);
-						
-						exeLock.readLock().unlock();
-					}
-					
-					exeLock.readLock().lock();
-					
-					currentTime++;
-					
-					for (GameObject moveObject : objectMap.getObjectsOfClass(PhysicsObject.class))
-					{
-						if (!(moveObject instanceof PlayerObject))
-						{
-							((PhysicsObject) moveObject).doPhysics(thisInstance);
-						}
-						else if (((PlayerObject) moveObject).isAlive())
-						{
-							((PlayerObject) moveObject).doPhysics(thisInstance);
-						}
-					}
-					
-					exeLock.readLock().unlock();
+					Thread.sleep(IDLE_WAIT);
+				}
+				catch (InterruptedException e)
+				{
+					e.printStackTrace();
 				}
-				
 			}
 		}
 	}
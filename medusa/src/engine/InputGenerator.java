@@ -0,0 +1,14 @@
+package engine;
+
+/**
+ * Makes the inputs of a headless MedusaClient, such as a bot's in a load
+ * test, in place of the keyboard
+ */
+public interface InputGenerator
+{
+	/**
+	 * Returns the inputs the client makes at the given tick, such as
+	 * "LEFT PRESSED", or null if it makes none
+	 */
+	String[] inputsAt(long tick);
+}
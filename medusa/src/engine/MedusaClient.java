@@ -1,11 +1,10 @@
 package engine;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -16,10 +15,19 @@ import engine.gameEvents.SpawnEvent;
 import engine.gameEvents.eventManagement.EventQueue;
 import engine.gameObjects.GameObject;
 import engine.gameObjects.PlayerObject;
+import engine.network.BlobCache;
+import engine.network.DatagramTransport;
+import engine.network.LoopbackTransport;
 import engine.network.NetworkHandler;
+import engine.network.SnapshotReceiver;
+import engine.network.StaticBlob;
 import engine.network.messages.ClientDisconnectMessage;
 import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
 import engine.network.messages.NewClientMessage;
+import engine.network.messages.SnapshotAckMessage;
+import engine.network.messages.SnapshotMessage;
+import engine.network.messages.TimePromiseMessage;
 import engine.time.Timeline;
 import processing.core.PApplet;
 
@@ -32,11 +40,48 @@ public class MedusaClient extends GameInstance
 {
 	public static final boolean DEBUG = GameInstance.DEBUG;
 	
+	/**
+	 * Whether the client uses rollback: its own inputs are applied as soon
+	 * as their tick comes, other players are assumed to keep their last
+	 * known inputs, and the game is re-run from a saved copy when their
+	 * real inputs arrive for past ticks
+	 */
+	public static final boolean ROLLBACK = false;
+	
+	/** Ticks by which local inputs are delayed when ROLLBACK is on */
+	public static final int ROLLBACK_INPUT_DELAY = 2;
+	
 	private PlayerObject playerObject;
 	
+	/**
+	 * Ticks added to the timestamp of each local input, giving it time to
+	 * reach the other instances before its tick is run
+	 */
+	private int inputDelay = 0;
+	
 	private ClientLogicThread clientLogicThread = new ClientLogicThread();
 
 	private ServerHandler serverHandler;
+	
+	/** Levels sent by servers before, so that they need not be sent again */
+	private BlobCache levelCache = new BlobCache();
+	
+	private SnapshotReceiver snapshots = new SnapshotReceiver();
+	
+	/** Carries events and promises, if the server sends them as datagrams */
+	private DatagramTransport datagramTransport;
+	
+	/** Set when the client runs without a window, and keeps quiet */
+	private boolean headless = false;
+	
+	/** The server to connect to, or null to ask for it */
+	private String serverHost;
+	
+	/** Makes the client's inputs, if it is headless and has them made for it */
+	private InputGenerator inputGenerator;
+	
+	/** The last tick inputs were made for, as ticks run again after a rollback */
+	private long lastGeneratedTick = Long.MIN_VALUE;
 
 	@Override
 	public void queueEvent(GameEvent e, boolean propagate)
@@ -46,7 +91,70 @@ public class MedusaClient extends GameInstance
 		eventManager.queueEvent(e);
 		
 		if (propagate)
-			serverHandler.queueMessage(new GameEventMessage(e));
+			serverHandler.queueMessage(new GameEventMessage(e, promisedTime), false);
+	}
+	
+	@Override
+	protected void sendPromise(long t)
+	{
+		serverHandler.queueMessage(new TimePromiseMessage(instanceID, t));
+	}
+	
+	/**
+	 * Every SNAPSHOT_INTERVAL ticks, waits for the server's snapshot of the
+	 * tick, brings the game into line with it, and acknowledges it. Not
+	 * done while the time warp is on, as the game may then run ahead of
+	 * the server.
+	 */
+	@Override
+	protected void startTick(long t)
+	{
+		if (inputGenerator != null)
+			generateInputs(t);
+		
+		if (!SNAPSHOTS || t % SNAPSHOT_INTERVAL != 0 || timeWarpManager.isEnabled())
+			return;
+		
+		SnapshotMessage m = snapshots.await(t);
+		
+		if (m == null)
+			return;
+		
+		exeLock.readLock().lock();
+		
+		long acknowledged = snapshots.apply(m, objectMap);
+		
+		exeLock.readLock().unlock();
+		
+		// sent with the next promise
+		serverHandler.queueMessage(new SnapshotAckMessage(acknowledged), false);
+	}
+	
+	/**
+	 * Makes the inputs from the generator for the tick after t, plus the
+	 * input delay, as if their keys had been pressed during tick t. They are
+	 * not kept in the input log. Made once for each tick, and not cancelled
+	 * if the tick is rolled back, as they have been sent on already.
+	 */
+	private void generateInputs(long t)
+	{
+		if (t <= lastGeneratedTick)
+			return;
+		
+		lastGeneratedTick = t;
+		
+		String[] inputs = inputGenerator.inputsAt(t);
+		
+		if (inputs == null)
+			return;
+		
+		for (int i = 0; i < inputs.length; i++)
+		{
+			InputEvent e = new InputEvent(t + 1 + inputDelay, i, getInstanceID(), inputs[i], playerObject);
+			
+			eventManager.queueEvent(e, false);
+			serverHandler.queueMessage(new GameEventMessage(e, promisedTime), false);
+		}
 	}
 	
 	@Override
@@ -56,11 +164,67 @@ public class MedusaClient extends GameInstance
 		// handler
 		serverHandler = new ServerHandler(new Socket());
 		
+		start(null);
+	}
+	
+	/**
+	 * Joins the server on the given host without a window or a prompt, with
+	 * inputs from the given generator, if it is not null, in place of keys
+	 */
+	public void startHeadless(String host, InputGenerator inputs)
+	{
+		headless = true;
+		serverHost = host;
+		inputGenerator = inputs;
+		
+		serverHandler = new ServerHandler(new Socket());
+		
+		start(null);
+	}
+	
+	/**
+	 * Joins the server taking connections from the given transport in this
+	 * JVM, as startHeadless(host, inputs) does over TCP
+	 */
+	public void startHeadless(LoopbackTransport transport, InputGenerator inputs)
+	{
+		headless = true;
+		inputGenerator = inputs;
+		
+		try
+		{
+			serverHandler = new ServerHandler(transport.connect());
+		}
+		catch (IOException e)
+		{
+			System.out.println("Connection to server failed.");
+			return;
+		}
+		
+		start(transport);
+	}
+	
+	/**
+	 * Starts the game once the server handler has joined it, serving the
+	 * connection through the given transport, if it is not null
+	 */
+	private void start(LoopbackTransport transport)
+	{
 		if (serverHandler.connected)
 		{
+			if (ROLLBACK)
+			{
+				timeWarpManager.setEnabled(true);
+				setInputDelay(ROLLBACK_INPUT_DELAY);
+			}
+			
 			// if the connection was successful, start server handler's threads,
 			// and logic thread
-			serverHandler.startThreads();
+			if (transport != null)
+				startLoopback(transport);
+			else
+				serverHandler.startThreads();
+			
 			clientLogicThread.start();
 		}
 		else
@@ -71,6 +235,45 @@ public class MedusaClient extends GameInstance
 		}
 	}
 	
+	private void startLoopback(LoopbackTransport transport)
+	{
+		try
+		{
+			serverHandler.startLoopback(transport);
+		}
+		catch (IOException e)
+		{
+			System.err.println("IOException occurred when trying to start the connection"
+					+ " to the server - disconnecting");
+			serverHandler.disconnect();
+		}
+	}
+	
+	public int getInputDelay()
+	{
+		return inputDelay;
+	}
+	
+	public void setInputDelay(int ticks)
+	{
+		inputDelay = Math.max(0, ticks);
+	}
+	
+	@Override
+	protected void displayLogs()
+	{
+		super.displayLogs();
+		
+		System.out.println("Connection to server: " + serverHandler.getRetentionStatistics());
+		System.out.println("  sent " + serverHandler.getBatchStatistics());
+		
+		if (serverHandler.getDatagramLink() != null)
+			System.out.println("  datagrams: " + serverHandler.getDatagramLink().getStatistics());
+		
+		if (SNAPSHOTS)
+			System.out.println("Snapshots: " + snapshots.getStatistics());
+	}
+	
 	@SuppressWarnings("unused")
 	public void keyPressed()
 	{
@@ -109,10 +312,10 @@ public class MedusaClient extends GameInstance
 			
 			if (!inputString.equals(""))
 			{
-				queueEvent(new InputEvent(inputTime + 1, inputCount,
+				queueEvent(new InputEvent(inputTime + 1 + inputDelay, inputCount,
 						getInstanceID(), inputString, playerObject), true);
 				
-				inputLog.add(getInstanceID() + ", ts=" + (inputTime + 1) + ", count=" + inputCount
+				inputLog.add(getInstanceID() + ", ts=" + (inputTime + 1 + inputDelay) + ", count=" + inputCount
 						+ ": " + inputString + "@t=" + inputTime);
 				
 				inputCount++;
@@ -154,10 +357,10 @@ public class MedusaClient extends GameInstance
 			
 			if (!inputString.equals(""))
 			{
-				queueEvent(new InputEvent(inputTime + 1, inputCount,
+				queueEvent(new InputEvent(inputTime + 1 + inputDelay, inputCount,
 						getInstanceID(), inputString, playerObject), true);
 				
-				inputLog.add(getInstanceID() + ", ts=" + (inputTime + 1) + ", count=" + inputCount
+				inputLog.add(getInstanceID() + ", ts=" + (inputTime + 1 + inputDelay) + ", count=" + inputCount
 						+ ": " + inputString + "@t=" + inputTime);
 				
 				inputCount++;
@@ -188,7 +391,8 @@ public class MedusaClient extends GameInstance
 		
 		public void run()
 		{
-			System.out.println("Client's id is: " + instanceID);
+			if (!headless)
+				System.out.println("Client's id is: " + instanceID);
 			
 			super.run();
 		}
@@ -202,22 +406,36 @@ public class MedusaClient extends GameInstance
 		{
 			super(sock);
 		}
+		
+		public ServerHandler(LoopbackTransport.Endpoint endpoint)
+		{
+			super(endpoint);
+		}
 	
 		@Override
 		protected void disconnect()
 		{
 			super.disconnect();
+			
+			snapshots.close();
+			
+			if (datagramTransport != null)
+				datagramTransport.close();
 		}
 		
 		protected void createThreads()
 		{
 			outputThread = new NetworkOutputThread();
-			inputThread = new ClientInputThread();
+			inputThread = new NetworkInputThread();
 		}
 		
 		protected void socketSetup(Socket sock)
 		{
-			if (!GameInstance.DEBUG)
+			if (serverHost != null)
+			{
+				serverHostname = serverHost;
+			}
+			else if (!GameInstance.DEBUG)
 			{
 				System.out.print("Enter the server's IP address: ");
 				Scanner scanner = new Scanner(System.in);
@@ -234,10 +452,10 @@ public class MedusaClient extends GameInstance
 			{
 				connectionSocket = new Socket(serverHostname, SERVER_PORT);
 				
-				networkOutput = new ObjectOutputStream(this.connectionSocket.getOutputStream());
-				networkInput = new ObjectInputStream(this.connectionSocket.getInputStream());
+				openStreams();
 				
-				System.out.println("Successfully established connection to the server.");
+				if (!headless)
+					System.out.println("Successfully established connection to the server.");
 				connected = true;
 			}
 			catch (UnknownHostException e)
@@ -256,7 +474,11 @@ public class MedusaClient extends GameInstance
 		{
 			try
 			{
-				setGameTitle((String) networkInput.readObject());
+				setGameTitle((String) readObject());
+				
+				setUpBehaviors();
+				
+				setUpSpatialIndex();
 				
 				initTimeline();
 						
@@ -289,13 +511,18 @@ public class MedusaClient extends GameInstance
 		{
 			//System.out.println("objects");
 			
-			playerObject = (PlayerObject) networkInput.readObject();
+			playerObject = (PlayerObject) readObject();
 			instanceID = playerObject.getParentInstanceID();
 			
+			for (GameObject o : StaticBlob.readObjects(receiveLevel()))
+			{
+				addToMap(o);
+			}
+			
 			@SuppressWarnings("unchecked")
-			HashMap<UUID, GameObject> g = (HashMap<UUID, GameObject>) networkInput.readObject();
+			ArrayList<GameObject> g = (ArrayList<GameObject>) readObject();
 			
-			for (GameObject o : g.values())
+			for (GameObject o : g)
 			{
 				addToMap(o);
 			}
@@ -303,13 +530,41 @@ public class MedusaClient extends GameInstance
 			addToMap(playerObject);
 		}
 		
+		/**
+		 * Returns the level's static objects, from the cache if they are there
+		 * under the hash the server sends, or else from the server
+		 */
+		private byte[] receiveLevel() throws IOException
+		{
+			byte[] hash = new byte[StaticBlob.HASH_LENGTH];
+			networkInput.readFully(hash);
+			
+			byte[] level = levelCache.get(hash);
+			
+			networkOutput.writeBoolean(level != null);
+			networkOutput.flush();
+			
+			if (level != null)
+				return level;
+			
+			level = new byte[networkInput.readInt()];
+			networkInput.readFully(level);
+			
+			if (!StaticBlob.matches(level, hash))
+				throw new IOException("The level received does not match its hash");
+			
+			levelCache.put(hash, level);
+			
+			return level;
+		}
+		
 		private void initEvents() throws IOException, ClassNotFoundException
 		{
 			//System.out.println("events");
 			
 			@SuppressWarnings("unchecked")
 			ConcurrentHashMap<UUID, EventQueue> queues = 
-					(ConcurrentHashMap<UUID, EventQueue>) networkInput.readObject();
+					(ConcurrentHashMap<UUID, EventQueue>) readObject();
 			
 			long serverGVT = networkInput.readLong();
 			
@@ -323,59 +578,97 @@ public class MedusaClient extends GameInstance
 				}
 			}
 			
-			eventManager.registerHandler(new CoreEventHandler(), new String[ ] {
-					"CollisionEvent", "InputEvent", "DeathEvent", "SpawnEvent", "DespawnEvent" });
+			eventManager.registerHandler(new CoreEventHandler(), CORE_EVENT_TYPES);
 			
 			eventManager.setGVT(serverGVT);
 			currentTime = serverGVT;
+			
+			snapshots.expectFrom(networkInput.readLong());
+			
+			receiveLink();
+		}
+		
+		/** Opens a link to the server, if it sends events and promises as datagrams */
+		private void receiveLink() throws IOException
+		{
+			if (!networkInput.readBoolean())
+				return;
+			
+			int linkID = networkInput.readInt();
+			long token = networkInput.readLong();
+			int port = networkInput.readInt();
+			
+			datagramTransport = new DatagramTransport(0);
+			
+			useDatagrams(datagramTransport.connect(this, linkID, token,
+					new InetSocketAddress(connectionSocket.getInetAddress(), port)));
 		}
 		
-		class ClientInputThread extends NetworkInputThread
+		@Override
+		protected void respondToMessage(NetworkMessage incomingMessage)
 		{
-			@Override
-			protected void respondToMessage()
+			switch (incomingMessage.getMessageType())
 			{
-				switch (incomingMessage.getMessageType())
+				case "GameEventMessage":
 				{
-					case "GameEventMessage":
-					{
-						GameEvent incomingEvent = ((GameEventMessage) incomingMessage).getEvent();
-						
-						if (incomingEvent instanceof InputEvent)
-							System.out.println("got inputEvent from: " + incomingEvent.getInstanceID());
-						
-						queueEvent(incomingEvent, false);
-						
-						break;
-					}
-					case "ClientDisconnectMessage":
-					{
-						UUID disconnectedClient = ((ClientDisconnectMessage) incomingMessage).getClientID();
-						
-						eventManager.removeQueue(disconnectedClient);
-						
-						//removeFromMap(objectMap.getPlayerObject(disconnectedClient));
-						eventManager.queueEvent(new DespawnEvent(currentTime, instanceID, 
-								objectMap.getPlayerObject(disconnectedClient)));
-						
-						break;
-					}
-					case "NewClientMessage":
-					{
-						PlayerObject newPlayer = ((NewClientMessage) incomingMessage).getPlayer();
-						
-						eventManager.addQueue(newPlayer.getParentInstanceID());
-						
-						//addToMap(newPlayer);
-						eventManager.queueEvent(new SpawnEvent(currentTime, instanceID, playerObject));
-						
-						break;
-					}
-					default:
-						break;
+					GameEventMessage m = (GameEventMessage) incomingMessage;
+					GameEvent incomingEvent = m.getEvent();
+					
+					if (incomingEvent instanceof InputEvent && !headless)
+						System.out.println("got inputEvent from: " + incomingEvent.getInstanceID());
+					
+					queueEvent(incomingEvent, false);
+					eventManager.promise(incomingEvent.getInstanceID(), m.getSafeUntil());
+					
+					break;
+				}
+				case "TimePromiseMessage":
+				{
+					// the server's promise for every instance but this one
+					eventManager.promiseOthers(instanceID,
+							((TimePromiseMessage) incomingMessage).getSafeUntil());
+					
+					break;
+				}
+				case "ClientDisconnectMessage":
+				{
+					UUID disconnectedClient = ((ClientDisconnectMessage) incomingMessage).getClientID();
+					
+					eventManager.removeQueue(disconnectedClient);
+					
+					//removeFromMap(objectMap.getPlayerObject(disconnectedClient));
+					eventManager.queueEvent(new DespawnEvent(currentTime, instanceID, 
+							objectMap.getPlayerObject(disconnectedClient)));
+					
+					break;
+				}
+				case "NewClientMessage":
+				{
+					PlayerObject newPlayer = ((NewClientMessage) incomingMessage).getPlayer();
+					
+					eventManager.addQueue(newPlayer.getParentInstanceID());
+					
+					//addToMap(newPlayer);
+					eventManager.queueEvent(new SpawnEvent(currentTime, instanceID, playerObject));
+					
+					break;
+				}
+				case "SnapshotMessage":
+				{
+					SnapshotMessage m = (SnapshotMessage) incomingMessage;
+					
+					// not applied while the game may run ahead of the server, but
+					// acknowledged, so that the server can send the changes only
+					if (timeWarpManager.isEnabled())
+						queueMessage(new SnapshotAckMessage(snapshots.skip(m)), false);
+					else
+						snapshots.receive(m);
+					
+					break;
 				}
+				default:
+					break;
 			}
-			
 		}
 		
 	}
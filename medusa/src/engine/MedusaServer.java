@@ -1,24 +1,43 @@
 package engine;
 
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import engine.gameEvents.DespawnEvent;
 import engine.gameEvents.GameEvent;
 import engine.gameEvents.InputEvent;
-import engine.gameEvents.NullEvent;
 import engine.gameEvents.SpawnEvent;
+import engine.gameObjects.GameObject;
 import engine.gameObjects.PlayerObject;
+import engine.network.DatagramLink;
+import engine.network.DatagramTransport;
+import engine.network.LoopbackTransport;
 import engine.network.NetworkHandler;
+import engine.network.MessageCodec;
+import engine.network.SelectorTransport;
+import engine.network.SharedFrame;
+import engine.network.StaticBlob;
+import engine.network.WorldSnapshot;
 import engine.network.messages.ClientDisconnectMessage;
 import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
 import engine.network.messages.NewClientMessage;
+import engine.network.messages.SnapshotAckMessage;
+import engine.network.messages.SnapshotMessage;
+import engine.network.messages.TimePromiseMessage;
 import engine.time.Timeline;
 import processing.core.PApplet;
 
@@ -31,13 +50,68 @@ public class MedusaServer extends GameInstance
 {
 	public static final boolean DEBUG = GameInstance.DEBUG;
 	
+	/**
+	 * Serve clients from the I/O threads of a SelectorTransport, instead of
+	 * from an input and an output thread for each client
+	 */
+	public static final boolean SELECTOR_NETWORKING = !NetworkHandler.JAVA_SERIALIZATION;
+	
+	/** Number of I/O threads used when SELECTOR_NETWORKING is on */
+	public static final int IO_THREADS = 1;
+	
+	/**
+	 * Send each client only the events of the players in its region of
+	 * interest, around its own player, and snapshots of only the objects in
+	 * it. Promises still cover every instance, so a client never waits for
+	 * events it will not be sent.
+	 */
+	public static final boolean INTEREST_MANAGEMENT = true;
+	
 	private ServerLogicThread serverLogicThread = new ServerLogicThread();
 
 	/**
 	 * The list of GameClientHandler threads. Should contain exactly one for
-	 * each active game client connection.
+	 * each active game client connection. Copied on write, so that messages
+	 * can be sent to every client without holding a lock.
+	 */
+	private CopyOnWriteArrayList<ClientHandler> clientList = new CopyOnWriteArrayList<ClientHandler>();
+	
+	/** The level's static objects as last sent to a joining client */
+	private StaticBlob staticBlob;
+	
+	/** Carries the clients' events and promises, if NetworkHandler.DATAGRAMS is on */
+	private DatagramTransport datagramTransport;
+	
+	/** Held while combined promises are worked out and sent */
+	private ReentrantLock promiseLock = new ReentrantLock();
+	
+	/**
+	 * Snapshots kept for a client until it acknowledges them. A client
+	 * further behind than this is sent the changes from its last
+	 * acknowledged snapshot all the same, but cannot then acknowledge them.
 	 */
-	private ArrayList<ClientHandler> clientList = new ArrayList<ClientHandler>();
+	private static final int MAX_UNACKED_SNAPSHOTS = 8;
+	
+	private long snapshotsSent = 0;
+	
+	private long snapshotBytes = 0;
+	
+	/** How far a client's region of interest reaches from its player */
+	private float interestRadius = SCREEN_WIDTH;
+	
+	/** A client's region of interest, and the instances whose players are in it */
+	private static class Interest
+	{
+		final Rectangle2D.Float region;
+		
+		final HashSet<UUID> instances;
+		
+		Interest(Rectangle2D.Float region, HashSet<UUID> instances)
+		{
+			this.region = region;
+			this.instances = instances;
+		}
+	}
 
 	@Override
 	public void queueEvent(GameEvent e, boolean propagate)
@@ -47,20 +121,308 @@ public class MedusaServer extends GameInstance
 		eventManager.queueEvent(e);
 		
 		if (propagate)
+			relayEvent(new GameEventMessage(e, promisedTime), e.getInstanceID());
+		
+		exeLock.readLock().unlock();
+	}
+	
+	/**
+	 * Sends a message to every client except the given instance, encoding it
+	 * once for all of them
+	 */
+	private void relayMessage(NetworkMessage m, UUID sourceID)
+	{
+		relayMessage(m, sourceID, true);
+	}
+	
+	/**
+	 * As relayMessage(m, sourceID), but unless sendNow is set the message is
+	 * held for each client's next batch
+	 */
+	private void relayMessage(NetworkMessage m, UUID sourceID, boolean sendNow)
+	{
+		SharedFrame frame = new SharedFrame(m);
+		
+		for (ClientHandler client : clientList)
+		{
+			if (!client.clientInstanceID.equals(sourceID))
+			{
+				client.queueFrame(frame, sendNow);
+			}
+		}
+		
+		frame.release();
+	}
+	
+	/**
+	 * Relays an event, held for each client's next batch, to every client
+	 * but the given instance; with INTEREST_MANAGEMENT, only to those it
+	 * concerns
+	 */
+	private void relayEvent(GameEventMessage m, UUID sourceID)
+	{
+		SharedFrame frame = null;
+		
+		for (ClientHandler client : clientList)
+		{
+			if (client.clientInstanceID.equals(sourceID))
+				continue;
+			
+			if (INTEREST_MANAGEMENT && !client.isInterestedIn(m.getEvent()))
+			{
+				client.eventsFiltered.incrementAndGet();
+				continue;
+			}
+			
+			if (frame == null)
+				frame = new SharedFrame(m);
+			
+			client.queueFrame(frame, false);
+		}
+		
+		if (frame != null)
+			frame.release();
+	}
+	
+	public float getInterestRadius()
+	{
+		return interestRadius;
+	}
+	
+	public void setInterestRadius(float radius)
+	{
+		interestRadius = radius;
+	}
+	
+	/**
+	 * Sends each client a snapshot every SNAPSHOT_INTERVAL ticks, before
+	 * the promise for the tick can be, so that a client waiting for it at
+	 * the start of the tick knows it is coming
+	 */
+	@Override
+	protected void promiseTime(long t)
+	{
+		if (INTEREST_MANAGEMENT)
+			updateInterest();
+		
+		if (SNAPSHOTS && t % SNAPSHOT_INTERVAL == 0 && !clientList.isEmpty())
+			sendSnapshots(t);
+		
+		super.promiseTime(t);
+	}
+	
+	/**
+	 * Finds each client's region of interest, around its player as it is at
+	 * the start of this tick, and the players in it, through the spatial
+	 * index. A client with no player, e.g. while it is dead, is sent
+	 * everything.
+	 */
+	private void updateInterest()
+	{
+		for (ClientHandler client : clientList)
+		{
+			PlayerObject p = objectMap.getPlayerObject(client.clientInstanceID);
+			
+			if (p == null)
+			{
+				client.interest = null;
+				continue;
+			}
+			
+			Rectangle2D.Float region = new Rectangle2D.Float(
+					(float) p.getCenterX() - interestRadius, (float) p.getCenterY() - interestRadius,
+					2 * interestRadius, 2 * interestRadius);
+			HashSet<UUID> instances = new HashSet<UUID>();
+			
+			for (GameObject o : objectMap.getDynamicObjects(region.x, region.y, region.width, region.height))
+			{
+				if (o instanceof PlayerObject)
+					instances.add(((PlayerObject) o).getParentInstanceID());
+			}
+			
+			client.interest = new Interest(region, instances);
+		}
+	}
+	
+	/**
+	 * Captures the moving objects at the start of tick t, and queues for
+	 * each client the changes since the last snapshot it acknowledged.
+	 * Clients with a region of interest are sent only the objects in it.
+	 * Clients sent everything, with the same base, share one frame. Frames
+	 * are encoded here, while any objects sent in full are as captured.
+	 */
+	private void sendSnapshots(long t)
+	{
+		WorldSnapshot everything = null;
+		HashMap<WorldSnapshot, SharedFrame> shared = new HashMap<WorldSnapshot, SharedFrame>();
+		ArrayList<SharedFrame> frames = new ArrayList<SharedFrame>();
+		
+		for (ClientHandler client : clientList)
+		{
+			Interest interest = client.interest;
+			WorldSnapshot snapshot;
+			
+			if (INTEREST_MANAGEMENT && interest != null)
+			{
+				Rectangle2D.Float r = interest.region;
+				
+				snapshot = WorldSnapshot.capture(t, objectMap.getDynamicObjects(r.x, r.y, r.width, r.height), r);
+			}
+			else
+			{
+				if (everything == null)
+					everything = WorldSnapshot.capture(t, objectMap.getDynamicObjects());
+				
+				snapshot = everything;
+			}
+			
+			WorldSnapshot base = client.snapshotBase;
+			SharedFrame frame = (snapshot == everything) ? shared.get(base) : null;
+			
+			if (frame == null)
+			{
+				frame = new SharedFrame(snapshot.deltaFrom(base));
+				frames.add(frame);
+				
+				if (snapshot == everything)
+					shared.put(base, frame);
+				
+				if (!NetworkHandler.JAVA_SERIALIZATION)
+					snapshotBytes += frame.getBytes().remaining();
+			}
+			
+			client.sentSnapshots.put(t, snapshot);
+			
+			while (client.sentSnapshots.size() > MAX_UNACKED_SNAPSHOTS)
+				client.sentSnapshots.pollFirstEntry();
+			
+			client.queueFrame(frame, false);
+			snapshotsSent++;
+		}
+		
+		for (SharedFrame frame : frames)
+			frame.release();
+	}
+	
+	/**
+	 * Sends each client's batch for the tick, along with its promise if the
+	 * promise rose
+	 */
+	@Override
+	protected void sendPromise(long t)
+	{
+		sendCombinedPromises();
+		
+		for (ClientHandler client : clientList)
+		{
+			client.flushQueue();
+		}
+	}
+	
+	/**
+	 * Sends each client a single promise on behalf of every other instance:
+	 * the lowest tick up to which this server and every other client have
+	 * sent all their events. Events from those instances reach the client
+	 * through this server, ahead of the promise. Sent only when it rises.
+	 */
+	private void sendCombinedPromises()
+	{
+		promiseLock.lock();
+		
+		// the lowest client promise, and the lowest from any other client
+		long lowest = Long.MAX_VALUE, secondLowest = Long.MAX_VALUE;
+		ClientHandler lowestClient = null;
+		
+		for (ClientHandler client : clientList)
 		{
-			synchronized (clientList)
+			if (client.safeUntil < lowest)
 			{
-				for (ClientHandler client : clientList)
+				secondLowest = lowest;
+				lowest = client.safeUntil;
+				lowestClient = client;
+			}
+			else if (client.safeUntil < secondLowest)
+			{
+				secondLowest = client.safeUntil;
+			}
+		}
+		
+		// every client but the lowest is sent the same promise, so it is shared
+		SharedFrame lowestFrame = null, othersFrame = null;
+		
+		for (ClientHandler client : clientList)
+		{
+			long others = (client == lowestClient) ? secondLowest : lowest;
+			long safeUntil = Math.min(promisedTime, others);
+			
+			if (safeUntil > client.sentPromise)
+			{
+				client.sentPromise = safeUntil;
+				
+				if (client == lowestClient)
 				{
-					if (!client.clientInstanceID.equals(e.getInstanceID()))
-					{
-						client.queueMessage(new GameEventMessage(e));
-					}
+					lowestFrame = new SharedFrame(new TimePromiseMessage(null, safeUntil));
+					client.queueFrame(lowestFrame);
+				}
+				else
+				{
+					if (othersFrame == null)
+						othersFrame = new SharedFrame(new TimePromiseMessage(null, safeUntil));
+					
+					client.queueFrame(othersFrame);
 				}
 			}
 		}
 		
-		exeLock.readLock().unlock();
+		if (lowestFrame != null)
+			lowestFrame.release();
+		
+		if (othersFrame != null)
+			othersFrame.release();
+		
+		promiseLock.unlock();
+	}
+	
+	/**
+	 * Returns the static objects as a blob, serializing them again only if
+	 * they have changed since the last call. Called with the write lock held.
+	 */
+	private StaticBlob getStaticBlob() throws IOException
+	{
+		long version = objectMap.getStaticVersion();
+		
+		if (staticBlob == null || staticBlob.getVersion() != version)
+			staticBlob = new StaticBlob(objectMap.getStaticObjects(), version);
+		
+		return staticBlob;
+	}
+	
+	@Override
+	protected void displayLogs()
+	{
+		super.displayLogs();
+		
+		for (ClientHandler client : clientList)
+		{
+			System.out.println("Connection to " + client.clientInstanceID + ": "
+					+ client.getRetentionStatistics());
+			System.out.println("  sent " + client.getBatchStatistics());
+			
+			if (client.getDatagramLink() != null)
+				System.out.println("  datagrams: " + client.getDatagramLink().getStatistics());
+			
+			if (INTEREST_MANAGEMENT)
+			{
+				System.out.println("  " + client.eventsFiltered.get()
+						+ " events not sent, from outside its region of interest");
+			}
+		}
+		
+		if (snapshotsSent > 0)
+		{
+			System.out.println("Snapshots: " + snapshotsSent + " sent"
+					+ (NetworkHandler.JAVA_SERIALIZATION ? "" : ", " + snapshotBytes + " bytes encoded"));
+		}
 	}
 	
 	private void selectGame()
@@ -120,16 +482,43 @@ public class MedusaServer extends GameInstance
 	{
 		selectGame();
 		
+		startGame();
+	}
+	
+	/**
+	 * Starts the given game without a window or a prompt, e.g. for tests.
+	 * Clients may then join over TCP as usual, or through listen().
+	 */
+	public void startHeadless(String title)
+	{
+		setGameTitle(title);
+		
+		startGame();
+	}
+	
+	/** Takes clients connecting through the given transport, as well as over TCP */
+	public void listen(LoopbackTransport transport)
+	{
+		new LoopbackListener(transport).start();
+	}
+	
+	private void startGame()
+	{
 		System.out.println("\nNow starting game \"" + getGameTitle()
 				+ "\"...\n\n");
 		
 		instanceID = UUID.randomUUID();
 		
+		setUpBehaviors();
+		
+		setUpSpatialIndex();
+		
 		setUpGameObjects();
 		
-		eventManager.registerHandler(new CoreEventHandler(), new String[ ] {
-				"CollisionEvent", "InputEvent", "DeathEvent", "SpawnEvent",
-				"DespawnEvent" });
+		// so that clients which cached the level last time need not be sent it
+		objectMap.assignStaticIDs(getGameTitle());
+		
+		eventManager.registerHandler(new CoreEventHandler(), CORE_EVENT_TYPES);
 		
 		eventManager.addQueue(instanceID);
 		eventManager.setGVT(0);
@@ -250,6 +639,9 @@ public class MedusaServer extends GameInstance
 		/** The ServerSocket object for accepting incoming connections. */
 		ServerSocket serverSocket;
 		
+		/** Serves the clients, if SELECTOR_NETWORKING is on */
+		SelectorTransport selectorTransport;
+		
 		/** Constructor tries to set up the ServerSocket */
 		private ConnectionListener()
 		{
@@ -258,7 +650,21 @@ public class MedusaServer extends GameInstance
 			serverSocket = null;
 			try
 			{
-				serverSocket = new ServerSocket(7734);
+				if (SELECTOR_NETWORKING)
+				{
+					// accepted sockets then have channels, for the selector
+					serverSocket = ServerSocketChannel.open().socket();
+					serverSocket.bind(new InetSocketAddress(7734));
+					
+					selectorTransport = new SelectorTransport(IO_THREADS);
+				}
+				else
+				{
+					serverSocket = new ServerSocket(7734);
+				}
+				
+				if (NetworkHandler.DATAGRAMS)
+					datagramTransport = new DatagramTransport(SERVER_PORT);
 			}
 			catch (IOException e)
 			{
@@ -289,13 +695,13 @@ public class MedusaServer extends GameInstance
 							System.err.println("IOException occurred while waiting for a connection");
 					}
 					
-					if (newClient != null)
+					// a client which joined was added to clientList as it did
+					if (newClient != null && newClient.connected)
 					{
-						synchronized (clientList)
-						{
-							clientList.add(newClient);
-						}
-						newClient.startThreads();
+						if (selectorTransport != null)
+							startSelector(newClient);
+						else
+							newClient.startThreads();
 					}
 					
 				}
@@ -307,8 +713,71 @@ public class MedusaServer extends GameInstance
 							+ "serverSocket was NULL.");
 			}
 		}
+		
+		private void startSelector(ClientHandler client)
+		{
+			try
+			{
+				client.startSelector(selectorTransport);
+			}
+			catch (IOException e)
+			{
+				System.err.println("IOException occurred when trying to start serving a client"
+						+ " - disconnecting it");
+				client.disconnect();
+			}
+		}
 	}
 
+	/**
+	 * A thread which takes clients connecting through a LoopbackTransport,
+	 * as ConnectionListener does those connecting over TCP
+	 */
+	private class LoopbackListener extends Thread
+	{
+		LoopbackTransport transport;
+		
+		private LoopbackListener(LoopbackTransport transport)
+		{
+			this.setName("Loopback Listener");
+			this.setDaemon(true);
+			
+			this.transport = transport;
+		}
+		
+		public void run()
+		{
+			while (true)
+			{
+				ClientHandler newClient;
+				
+				try
+				{
+					newClient = new ClientHandler(transport.accept());
+				}
+				catch (InterruptedException e)
+				{
+					e.printStackTrace();
+					continue;
+				}
+				
+				if (!newClient.connected)
+					continue;
+				
+				try
+				{
+					newClient.startLoopback(transport);
+				}
+				catch (IOException e)
+				{
+					System.err.println("IOException occurred when trying to start serving a client"
+							+ " - disconnecting it");
+					newClient.disconnect();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * A subclass which handles I/O between this game server and a single game
 	 * client.
@@ -321,6 +790,79 @@ public class MedusaServer extends GameInstance
 		
 		private UUID clientInstanceID;
 		
+		/**
+		 * The tick up to which this client has sent all of its events. Read
+		 * and written with promiseLock held. Set in captureClientEvents(), as
+		 * an initializer here would run after the superclass constructor.
+		 */
+		private long safeUntil;
+		
+		/** The last combined promise sent to this client, guarded by promiseLock */
+		private long sentPromise;
+		
+		/** The last snapshot this client acknowledged, or null to send in full */
+		private volatile WorldSnapshot snapshotBase;
+		
+		/** This client's region of interest, or null to send it everything */
+		private volatile Interest interest;
+		
+		/** Set in initDataTransactions(), before the handler is published */
+		private AtomicLong eventsFiltered;
+		
+		/**
+		 * Whether an event concerns this client: it is from an instance whose
+		 * player is in the client's region of interest, or from one with no
+		 * player
+		 */
+		private boolean isInterestedIn(GameEvent e)
+		{
+			Interest i = interest;
+			
+			if (i == null || i.instances.contains(e.getInstanceID()))
+				return true;
+			
+			return objectMap.getPlayerObject(e.getInstanceID()) == null;
+		}
+		
+		/**
+		 * Snapshots sent to this client and not yet acknowledged, by tick. Set
+		 * in initDataTransactions(), which the superclass constructor calls
+		 * before any initializer here would run.
+		 */
+		private ConcurrentSkipListMap<Long, WorldSnapshot> sentSnapshots;
+		
+		private void receiveSnapshotAck(long tick)
+		{
+			if (tick == SnapshotMessage.NO_BASE)
+			{
+				snapshotBase = null;
+				return;
+			}
+			
+			WorldSnapshot acknowledged = sentSnapshots.get(tick);
+			
+			if (acknowledged != null)
+			{
+				snapshotBase = acknowledged;
+				sentSnapshots.headMap(tick, true).clear();
+			}
+		}
+		
+		private void receivePromise(long t)
+		{
+			eventManager.promise(clientInstanceID, t);
+			
+			promiseLock.lock();
+			
+			if (t > safeUntil)
+			{
+				safeUntil = t;
+				sendCombinedPromises();
+			}
+			
+			promiseLock.unlock();
+		}
+		
 		/**
 		 * disconnect from this client, and remove any gameObjects belonging to
 		 * it from the game state
@@ -335,31 +877,35 @@ public class MedusaServer extends GameInstance
 			
 			eventManager.removeQueue(clientInstanceID);
 			
-			synchronized (clientList)
-			{
-				clientList.remove(this);
-				
-				for (ClientHandler client : clientList)
-				{
-					client.queueMessage(new ClientDisconnectMessage(playerObject.getParentInstanceID()));
-				}
-			}
+			clientList.remove(this);
+			
+			relayMessage(new ClientDisconnectMessage(playerObject.getParentInstanceID()), clientInstanceID);
 		}
 		
-		class ServerInputThread extends NetworkInputThread
+		@Override
+		protected void respondToMessage(NetworkMessage incomingMessage)
 		{
-			@Override
-			protected void respondToMessage()
+			exeLock.readLock().lock();
+			
+			// released whatever happens, as the thread calling this may carry on
+			try
 			{
-				exeLock.readLock().lock();
-				
 				switch (incomingMessage.getMessageType())
 				{
 					case "GameEventMessage":
 					{
-						GameEvent incomingEvent = ((GameEventMessage) incomingMessage).getEvent();
+						GameEventMessage m = (GameEventMessage) incomingMessage;
 						
-						queueEvent(incomingEvent, true);
+						eventManager.queueEvent(m.getEvent());
+						relayEvent(m, clientInstanceID);
+						
+						receivePromise(m.getSafeUntil());
+						
+						break;
+					}
+					case "TimePromiseMessage":
+					{
+						receivePromise(((TimePromiseMessage) incomingMessage).getSafeUntil());
 						
 						break;
 					}
@@ -377,12 +923,10 @@ public class MedusaServer extends GameInstance
 							{
 								clientList.remove(client);
 							}
-							else
-							{
-								client.queueMessage(incomingMessage);
-							}
 						}
 						
+						relayMessage(incomingMessage, disconnectedClient);
+						
 						break;
 					}
 					case "NewClientMessage":
@@ -390,10 +934,18 @@ public class MedusaServer extends GameInstance
 						
 						break;
 					}
+					case "SnapshotAckMessage":
+					{
+						receiveSnapshotAck(((SnapshotAckMessage) incomingMessage).getTick());
+						
+						break;
+					}
 					default:
 						break;
 				}
-				
+			}
+			finally
+			{
 				exeLock.readLock().unlock();
 			}
 		}
@@ -403,10 +955,15 @@ public class MedusaServer extends GameInstance
 			super(sock);
 		}
 		
+		public ClientHandler(LoopbackTransport.Endpoint endpoint)
+		{
+			super(endpoint);
+		}
+		
 		protected void createThreads()
 		{
 			outputThread = new NetworkOutputThread();
-			inputThread = new ServerInputThread();
+			inputThread = new NetworkInputThread();
 		}
 		
 		protected void socketSetup(Socket sock)
@@ -415,8 +972,7 @@ public class MedusaServer extends GameInstance
 			
 			try
 			{
-				networkOutput = new ObjectOutputStream(this.connectionSocket.getOutputStream());
-				networkInput = new ObjectInputStream(this.connectionSocket.getInputStream());
+				openStreams();
 				
 				connected = true;
 			}
@@ -430,57 +986,111 @@ public class MedusaServer extends GameInstance
 			}
 		}
 		
-		private void initClientTimeline() throws IOException
-		{
-			networkOutput.writeLong(gameTimeline.getTime());
-		}
+		/** What the client is sent on joining, captured under the write lock */
+		private long joinTime;
+		private StaticBlob joinLevel;
+		private byte[] joinObjects;
+		private byte[] joinQueues;
+		private long joinGVT;
+		private long joinSnapshotsFrom;
 		
-		private void initClientObjects() throws IOException
+		private void captureClientObjects() throws IOException
 		{
 			clientInstanceID = UUID.randomUUID();
 			
 			playerObject = createNewPlayer();
 			playerObject.setParentInstanceID(clientInstanceID);
-			networkOutput.writeObject(playerObject);
 			
-			networkOutput.writeObject(objectMap.getFullMap());
+			joinLevel = getStaticBlob();
+			joinObjects = MessageCodec.serialize(objectMap.getDynamicObjects());
+			
 			eventManager.queueEvent(new SpawnEvent(currentTime, instanceID, playerObject));
 		}
 		
-		private void initClientEvents() throws IOException
+		private void captureClientEvents() throws IOException
 		{
 			eventManager.addQueue(clientInstanceID);
-			NullEvent n = new NullEvent(currentTime, clientInstanceID);
 			
-			eventManager.queueEvent(n);
+			// the client's events start after the current tick
+			promiseLock.lock();
 			
-			networkOutput.writeObject(eventManager.getQueues());
-			networkOutput.writeLong(eventManager.getGVT());
+			safeUntil = currentTime;
+			sentPromise = -1;
+			
+			promiseLock.unlock();
+			
+			eventManager.promise(clientInstanceID, currentTime);
+			
+			joinQueues = MessageCodec.serialize(eventManager.getQueues());
+			joinGVT = eventManager.getGVT();
+			
+			// the current tick's snapshot may have been sent already
+			joinSnapshotsFrom = currentTime + 1;
 		}
 		
+		/**
+		 * Tells the client whether its events and promises go as datagrams,
+		 * and if so how to reach its link
+		 */
+		private void sendClientLink() throws IOException
+		{
+			DatagramLink link = getDatagramLink();
+			
+			networkOutput.writeBoolean(link != null);
+			
+			if (link != null)
+			{
+				networkOutput.writeInt(link.getID());
+				networkOutput.writeLong(link.getToken());
+				networkOutput.writeInt(datagramTransport.getPort());
+			}
+		}
+		
+		/**
+		 * Sends the level's static objects, unless the client says it has
+		 * them cached under the same hash
+		 */
+		private void sendClientLevel() throws IOException
+		{
+			networkOutput.write(joinLevel.getHash());
+			networkOutput.flush();
+			
+			if (!networkInput.readBoolean())
+				writeSerialized(joinLevel.getBytes());
+		}
+		
+		/**
+		 * Captures a snapshot of the game for the client while holding the
+		 * write lock, then sends it with the lock released, so that the game
+		 * is held up only for the capture and not for the transfer
+		 */
 		protected void initDataTransactions()
 		{
+			boolean captured = false;
+			
 			exeLock.writeLock().lock();
 			
 			System.out.println("Accepted new client");
 			
 			try
 			{
-				networkOutput.writeObject(getGameTitle());
+				joinTime = gameTimeline.getTime();
 				
-				initClientTimeline();
+				captureClientObjects();
 				
-				initClientObjects();
+				captureClientEvents();
 				
-				initClientEvents();
+				// before anything is queued, as events and promises must all go one way
+				if (datagramTransport != null && connectionSocket != null)
+					useDatagrams(datagramTransport.createLink(this));
 				
-				for (ClientHandler client : clientList)
-				{
-					if (!client.clientInstanceID.equals(clientInstanceID))
-					{
-						client.queueMessage(new NewClientMessage(playerObject));
-					}
-				}
+				sentSnapshots = new ConcurrentSkipListMap<Long, WorldSnapshot>();
+				eventsFiltered = new AtomicLong();
+				
+				// anything sent from now on is queued, to follow the snapshot
+				clientList.add(this);
+				
+				captured = true;
 			}
 			catch (IOException e)
 			{
@@ -488,6 +1098,45 @@ public class MedusaServer extends GameInstance
 			}
 			
 			exeLock.writeLock().unlock();
+			
+			if (!captured)
+			{
+				connected = false;
+				return;
+			}
+			
+			try
+			{
+				writeObject(getGameTitle());
+				
+				networkOutput.writeLong(joinTime);
+				
+				writeObject(playerObject);
+				
+				sendClientLevel();
+				
+				writeSerialized(joinObjects);
+				
+				writeSerialized(joinQueues);
+				networkOutput.writeLong(joinGVT);
+				networkOutput.writeLong(joinSnapshotsFrom);
+				
+				sendClientLink();
+				
+				networkOutput.flush();
+				
+				relayMessage(new NewClientMessage(playerObject), clientInstanceID);
+			}
+			catch (IOException e)
+			{
+				System.err.println("IOException occurred while sending a new client the game"
+						+ " - disconnecting it");
+				disconnect();
+			}
+			
+			joinLevel = null;
+			joinObjects = null;
+			joinQueues = null;
 		}
 	}
 }
@@ -1,6 +1,14 @@
 package engine;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -8,25 +16,122 @@ import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 /**
- * Class to create and manage a JavaScript engine.
+ * Class to create and manage JavaScript engines. Each thread which runs
+ * scripts is given its own engine, with its own bindings and compiled
+ * scripts, so that scripts on different threads (e.g. logic and rendering)
+ * never wait on each other.
  */
 public class ScriptManager {
 
-	/* The javax.script JavaScript engine used by this class. */
-	private static ScriptEngine js_engine = new ScriptEngineManager().getEngineByName("JavaScript");
-	/* The Invocable reference to the engine. */
-	private static Invocable js_invocable = (Invocable) js_engine;
+	/* The directory which script names are resolved against. */
+	private static final String SCRIPT_DIRECTORY = "src/scripts/";
 	
-	private static ReentrantLock lock = new ReentrantLock(true);
+	/* Minimum time, in nanoseconds, between checks of a cached script's file for changes. */
+	private static final long MODIFICATION_CHECK_INTERVAL = 1000000000L;
 	
+	/* The manager used to create each thread's engine. */
+	private static ScriptEngineManager engineManager = new ScriptEngineManager();
+	
+	/* The engine belonging to each thread which runs scripts. */
+	private static ThreadLocal<ThreadEngine> threadEngine = new ThreadLocal<ThreadEngine>()
+	{
+		@Override
+		protected ThreadEngine initialValue()
+		{
+			return new ThreadEngine();
+		}
+	};
+	
+	/* Script statistics, totalled over every thread's engine. */
+	private static AtomicLong sections = new AtomicLong();
+	private static AtomicLong overlappingSections = new AtomicLong();
+	private static AtomicInteger threadsInScripts = new AtomicInteger();
+	private static AtomicInteger mostThreadsInScripts = new AtomicInteger();
+	
+	/* Time, in nanoseconds, spent in scripts by threads of each name. */
+	private static ConcurrentHashMap<String, AtomicLong> scriptTime = new ConcurrentHashMap<String, AtomicLong>();
+	
+	/**
+	 * Marks the start of a section in which the calling thread runs scripts.
+	 * Engines are confined to their threads, so nothing is locked: bindings
+	 * made between lock() and unlock() are only visible to scripts run by the
+	 * calling thread. Sections may be nested.
+	 */
 	public static void lock()
 	{
-		lock.lock();
+		ThreadEngine e = threadEngine.get();
+		
+		if (e.depth++ > 0)
+			return;
+		
+		e.enteredAt = System.nanoTime();
+		sections.incrementAndGet();
+		
+		int inScripts = threadsInScripts.incrementAndGet();
+		
+		// with one engine for every thread, this section would have waited
+		if (inScripts > 1)
+			overlappingSections.incrementAndGet();
+		
+		int most = mostThreadsInScripts.get();
+		
+		while (inScripts > most && !mostThreadsInScripts.compareAndSet(most, inScripts))
+			most = mostThreadsInScripts.get();
 	}
 	
 	public static void unlock()
 	{
-		lock.unlock();
+		ThreadEngine e = threadEngine.get();
+		
+		if (--e.depth > 0)
+			return;
+		
+		threadsInScripts.decrementAndGet();
+		e.time.addAndGet(System.nanoTime() - e.enteredAt);
+	}
+	
+	/** Returns the number of sections in which threads have run scripts. */
+	public static long getSections()
+	{
+		return sections.get();
+	}
+	
+	/**
+	 * Returns the number of sections which began while another thread was
+	 * running scripts, each of which would have waited for the one engine
+	 * that every thread used to share.
+	 */
+	public static long getOverlappingSections()
+	{
+		return overlappingSections.get();
+	}
+	
+	/** Returns the most threads which have run scripts at the same time. */
+	public static int getMostThreadsInScripts()
+	{
+		return mostThreadsInScripts.get();
+	}
+	
+	/** Returns the total time, in nanoseconds, spent in scripts by threads of the given name. */
+	public static long getScriptTime(String threadName)
+	{
+		AtomicLong t = scriptTime.get(threadName);
+		
+		return (t == null) ? 0 : t.get();
+	}
+	
+	public static String getScriptStatistics()
+	{
+		StringBuilder s = new StringBuilder();
+		
+		s.append("sections=" + getSections()
+				+ ", overlapping=" + getOverlappingSections()
+				+ ", mostConcurrent=" + getMostThreadsInScripts());
+		
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(scriptTime).entrySet())
+			s.append(", " + e.getKey() + "=" + (e.getValue().get() / 1000000) + "ms");
+		
+		return s.toString();
 	}
 
 	/**
@@ -36,25 +141,38 @@ public class ScriptManager {
 	public static void bindArgument(String name, Object obj) {
 		//js_engine.put(name,obj);
 		
-		js_engine.put(name, obj);
+		threadEngine.get().engine.put(name, obj);
 	}
 	
 	public static void clearBindings()
 	{
-		js_engine.getBindings(ScriptContext.ENGINE_SCOPE).clear();
+		threadEngine.get().engine.getBindings(ScriptContext.ENGINE_SCOPE).clear();
 	}
 	
 	public static Object retrieveValue(String key)
 	{
-		return js_engine.get(key);
+		return threadEngine.get().engine.get(key);
 	}
 	
 	/**
-	 * Will load the script source from the provided filename.
+	 * Will load the script source from the provided filename. The script is
+	 * compiled the first time it is loaded, and the compiled form is re-used
+	 * until the file is modified.
 	 */
 	public static void loadScript(String script_name) {
+		ThreadEngine e = threadEngine.get();
+		
 		try {
-			js_engine.eval(new java.io.FileReader("src/scripts/" + script_name));
+			CompiledScript script = e.getCompiledScript(script_name);
+			
+			if (script != null) {
+				script.eval();
+			}
+			else {
+				try (java.io.FileReader reader = new java.io.FileReader(SCRIPT_DIRECTORY + script_name)) {
+					e.engine.eval(reader);
+				}
+			}
 		}
 		catch(ScriptException se) {
 			se.printStackTrace();
@@ -64,9 +182,17 @@ public class ScriptManager {
 		}
 	}
 	
+	/**
+	 * Drops every script compiled by the calling thread's engine, so that each
+	 * will be re-read the next time it is loaded.
+	 */
+	public static void clearScriptCache() {
+		threadEngine.get().scriptCache.clear();
+	}
+	
 	public static void invokeFunction(String functionName) {
 		try {
-			js_invocable.invokeFunction(functionName);
+			threadEngine.get().invocable.invokeFunction(functionName);
 		}
 		catch(ScriptException se) {
 			se.printStackTrace();
@@ -78,7 +204,7 @@ public class ScriptManager {
 	
 	public static void invokeFunction(String functionName, Object... args) {
 		try {
-			js_invocable.invokeFunction(functionName, args);
+			threadEngine.get().invocable.invokeFunction(functionName, args);
 		}
 		catch(ScriptException se) {
 			se.printStackTrace();
@@ -87,5 +213,148 @@ public class ScriptManager {
 			nsme.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Invokes a function of the object defined by the named script, with the
+	 * provided arguments. The script is expected to evaluate to an object
+	 * holding its functions, e.g. <code>({ update: function(self, instance)
+	 * { ... } })</code>. The object is kept by the calling thread's engine, so
+	 * the script is only evaluated again if its file changes.
+	 */
+	public static Object invokeScriptFunction(String script_name, String functionName, Object... args) {
+		ThreadEngine e = threadEngine.get();
+		
+		try {
+			Object scriptObject = e.getScriptObject(script_name);
+			
+			if (scriptObject != null)
+				return e.invocable.invokeMethod(scriptObject, functionName, args);
+		}
+		catch(ScriptException se) {
+			se.printStackTrace();
+		}
+		catch(NoSuchMethodException nsme) {
+			nsme.printStackTrace();
+		}
+		catch(java.io.IOException iox) {
+			iox.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	private static AtomicLong timeFor(String threadName) {
+		AtomicLong t = scriptTime.get(threadName);
+		
+		if (t == null) {
+			scriptTime.putIfAbsent(threadName, new AtomicLong());
+			t = scriptTime.get(threadName);
+		}
+		
+		return t;
+	}
+	
+	private static synchronized ScriptEngine createEngine() {
+		return engineManager.getEngineByName("JavaScript");
+	}
+	
+	/**
+	 * A JavaScript engine confined to a single thread, along with the scripts
+	 * it has compiled.
+	 */
+	private static class ThreadEngine {
+		ScriptEngine engine = createEngine();
+		
+		Invocable invocable = (Invocable) engine;
+		
+		/* Scripts which have already been compiled by the engine, keyed by script name. */
+		HashMap<String, CachedScript> scriptCache = new HashMap<String, CachedScript>();
+		
+		/* Times the thread's sections are nested, and when the outermost began. */
+		int depth;
+		
+		long enteredAt;
+		
+		/* Shared by every thread of the same name, e.g. every bot's logic thread. */
+		AtomicLong time = timeFor(Thread.currentThread().getName());
+		
+		/**
+		 * Returns the compiled form of the named script, compiling it if it has
+		 * not been compiled yet or if its file has changed since it was. Returns
+		 * null if the engine does not support compilation.
+		 */
+		CompiledScript getCompiledScript(String script_name)
+				throws ScriptException, java.io.IOException {
+			if (!(engine instanceof Compilable))
+				return null;
+			
+			CachedScript cached = scriptCache.get(script_name);
+			long now = System.nanoTime();
+			
+			if (cached != null && now - cached.lastChecked < MODIFICATION_CHECK_INTERVAL)
+				return cached.script;
+			
+			File file = new File(SCRIPT_DIRECTORY + script_name);
+			long modified = file.lastModified();
+			
+			if (cached == null || cached.lastModified != modified) {
+				java.io.FileReader reader = new java.io.FileReader(file);
+				
+				try {
+					cached = new CachedScript(((Compilable) engine).compile(reader), modified);
+				}
+				finally {
+					reader.close();
+				}
+				
+				scriptCache.put(script_name, cached);
+			}
+			
+			cached.lastChecked = now;
+			
+			return cached.script;
+		}
+		
+		/**
+		 * Returns the object which the named script evaluates to, evaluating it
+		 * if it has not been evaluated since it was last compiled.
+		 */
+		Object getScriptObject(String script_name)
+				throws ScriptException, java.io.IOException {
+			CompiledScript script = getCompiledScript(script_name);
+			
+			if (script == null) {
+				try (java.io.FileReader reader = new java.io.FileReader(SCRIPT_DIRECTORY + script_name)) {
+					return engine.eval(reader);
+				}
+			}
+			
+			CachedScript cached = scriptCache.get(script_name);
+			
+			if (cached.scriptObject == null)
+				cached.scriptObject = script.eval();
+			
+			return cached.scriptObject;
+		}
+	}
+	
+	/**
+	 * A compiled script, along with the modification time of the file it was
+	 * compiled from.
+	 */
+	private static class CachedScript {
+		CompiledScript script;
+		
+		long lastModified;
+		
+		long lastChecked;
+		
+		/* The object the script evaluated to, if it has been evaluated for its functions. */
+		Object scriptObject;
+		
+		CachedScript(CompiledScript script, long lastModified) {
+			this.script = script;
+			this.lastModified = lastModified;
+		}
+	}
 }
-
@@ -7,7 +7,8 @@ public abstract class GameEvent implements Serializable, Comparable<GameEvent>
 {
 	private static final long serialVersionUID = 2310896639535068630L;
 	
-	public UUID eventID = UUID.randomUUID();
+	/** Generated when first asked for, as most events never need one */
+	private UUID eventID;
 	
 	private GameEvent parentEvent;
 	private long timeStamp;
@@ -60,6 +61,14 @@ public abstract class GameEvent implements Serializable, Comparable<GameEvent>
 		}
 	}
 	
+	public synchronized UUID getEventID()
+	{
+		if (eventID == null)
+			eventID = UUID.randomUUID();
+		
+		return eventID;
+	}
+	
 	public boolean isType(Class<?> t)
 	{
 		return t.isInstance(this);
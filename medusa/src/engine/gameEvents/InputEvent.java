@@ -9,6 +9,13 @@ public class InputEvent extends GameEvent
 	
 	private static final int DEFAULT_PRIORITY = 10;
 	
+	/**
+	 * The inputs sent by the engine's clients. MessageCodec sends these as
+	 * their index in this array instead of as text.
+	 */
+	public static final String[] STANDARD_INPUTS = { "LEFT PRESSED", "RIGHT PRESSED",
+			"JUMP PRESSED", "LEFT RELEASED", "RIGHT RELEASED", "JUMP RELEASED" };
+	
 	private PlayerObject player;
 	
 	private String input;
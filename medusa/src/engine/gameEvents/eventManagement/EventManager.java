@@ -1,11 +1,16 @@
 package engine.gameEvents.eventManagement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import engine.gameEvents.GameEvent;
 import engine.gameEvents.NullEvent;
@@ -14,16 +19,116 @@ public class EventManager
 {
 	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 	
-	ConcurrentHashMap<String, List<EventHandler>> handlerMap;
+	/**
+	 * Handlers for each event class. The arrays are never modified, only
+	 * replaced, so dispatching can read them without locking.
+	 */
+	ConcurrentHashMap<Class<?>, EventHandler[]> handlerMap;
+	
+	private static final EventHandler[] NO_HANDLERS = new EventHandler[0];
+	
 	ConcurrentHashMap<UUID, EventQueue> eventQueues = new ConcurrentHashMap<UUID, EventQueue>();
 	
 	EventQueue readyQueue = new EventQueue(null);
 	
 	private long gvt;
 	
+	/** GVT-tracking state of each instance's queue */
+	private HashMap<UUID, QueueState> queueStates = new HashMap<UUID, QueueState>();
+	
+	/** Queue states ordered by blocking tick, so the lowest is always first */
+	private TreeSet<QueueState> blockOrder = new TreeSet<QueueState>();
+	
+	/** Events in the instance queues with timestamps below this have been readied */
+	private long drainedTo = Long.MIN_VALUE;
+	
+	/** Whether events are handled ahead of GVT, as in Time Warp */
+	private boolean optimistic = false;
+	
+	/** The last tick handled optimistically */
+	private long handledTo = Long.MIN_VALUE;
+	
+	/** Lowest timestamp of an event which arrived after its tick was handled */
+	private long stragglerTick = Long.MAX_VALUE;
+	
+	/** The thread handling events optimistically, and the tick it is running */
+	private Thread executingThread;
+	private long executingTick;
+	
+	/** Events handled optimistically, by the tick they were handled in */
+	private TreeMap<Long, ArrayList<GameEvent>> handledEvents = new TreeMap<Long, ArrayList<GameEvent>>();
+	
+	/**
+	 * Events queued by the executing thread, by the tick it was running. If
+	 * that tick is rolled back, they are cancelled.
+	 */
+	private TreeMap<Long, ArrayList<GameEvent>> generatedEvents = new TreeMap<Long, ArrayList<GameEvent>>();
+	
+	/**
+	 * Tracks how far GVT can advance past one instance's queue. GVT can pass
+	 * tick t only once the queue holds that instance's NullEvent for t, or
+	 * that instance has promised it has sent all its events up to t, or the
+	 * queue holds no events at or after t. nullFrontier is the first tick,
+	 * from GVT onwards, with no NullEvent or promise; the queue blocks GVT
+	 * there if any of its events is at or after it.
+	 */
+	private static class QueueState implements Comparable<QueueState>
+	{
+		UUID instanceID;
+		
+		long nullFrontier;
+		
+		long maxTimestamp = Long.MIN_VALUE;
+		
+		/** NullEvents which arrived ahead of nullFrontier */
+		TreeSet<Long> pendingNulls = new TreeSet<Long>();
+		
+		QueueState(UUID instanceID, long gvt)
+		{
+			this.instanceID = instanceID;
+			this.nullFrontier = gvt;
+		}
+		
+		long getBlockingTick()
+		{
+			return (maxTimestamp >= nullFrontier) ? nullFrontier : Long.MAX_VALUE;
+		}
+		
+		void addNull(long ts)
+		{
+			if (ts == nullFrontier)
+				advanceFrontier(ts + 1);
+			else if (ts > nullFrontier)
+				pendingNulls.add(ts);
+		}
+		
+		/** Moves nullFrontier up to at least the given tick */
+		void advanceFrontier(long tick)
+		{
+			if (tick > nullFrontier)
+				nullFrontier = tick;
+			
+			pendingNulls.headSet(nullFrontier).clear();
+			
+			while (!pendingNulls.isEmpty() && pendingNulls.first() == nullFrontier)
+			{
+				pendingNulls.pollFirst();
+				nullFrontier++;
+			}
+		}
+		
+		@Override
+		public int compareTo(QueueState o)
+		{
+			int c = Long.compare(getBlockingTick(), o.getBlockingTick());
+			
+			return (c != 0) ? c : instanceID.compareTo(o.instanceID);
+		}
+	}
+	
 	public EventManager()
 	{
-		handlerMap = new ConcurrentHashMap<String, List<EventHandler>>();
+		handlerMap = new ConcurrentHashMap<Class<?>, EventHandler[]>();
 	}
 	
 	public void lockManager()
@@ -42,9 +147,18 @@ public class EventManager
 		return r;
 	}
 	
-	public void setGVT(long gvt)
+	public synchronized void setGVT(long gvt)
 	{
 		this.gvt = gvt;
+		
+		for (QueueState state : queueStates.values())
+		{
+			blockOrder.remove(state);
+			state.advanceFrontier(gvt);
+			blockOrder.add(state);
+		}
+		
+		notifyAll();
 	}
 	
 	public ConcurrentHashMap<UUID, EventQueue> getQueues()
@@ -53,60 +167,106 @@ public class EventManager
 		return r;
 	}
 	
-	public PriorityBlockingQueue<GameEvent> getAllEvents()
+	/**
+	 * Returns a list of the events waiting in every instance's queue, ordered
+	 * by timestamp and priority.
+	 */
+	public ArrayList<GameEvent> getAllEvents()
 	{
-		PriorityBlockingQueue<GameEvent> allEvents = new PriorityBlockingQueue<GameEvent>();
+		ArrayList<GameEvent> allEvents = new ArrayList<GameEvent>();
 		
 		for(EventQueue q : eventQueues.values())
 		{
-			allEvents.addAll(q.queue);
+			allEvents.addAll(q.getEvents());
 		}
 		
+		Collections.sort(allEvents);
+		
 		return allEvents;
 	}
 	
-	public void registerHandler(EventHandler handler, String[] eventTypes)
+	/**
+	 * Registers a handler for events of the given classes. Events are
+	 * dispatched on their exact class, so subclasses must be registered
+	 * separately.
+	 */
+	public void registerHandler(EventHandler handler, Class<?>[] eventTypes)
 	{
-		for (String eventType : eventTypes)
+		synchronized (handlerMap)
 		{
-			handlerMap.putIfAbsent(eventType, Collections.synchronizedList(new ArrayList<EventHandler>()));
-			
-			List<EventHandler> handlerList = handlerMap.get(eventType);
-			
-			if (handlerList != null && !handlerList.contains(handler))
+			for (Class<?> eventType : eventTypes)
 			{
-				handlerList.add(handler);
+				if (!GameEvent.class.isAssignableFrom(eventType))
+					throw new IllegalArgumentException(eventType.getName() + " is not a GameEvent");
+				
+				EventHandler[] handlers = getHandlers(eventType);
+				
+				if (!Arrays.asList(handlers).contains(handler))
+				{
+					handlers = Arrays.copyOf(handlers, handlers.length + 1);
+					handlers[handlers.length - 1] = handler;
+					handlerMap.put(eventType, handlers);
+				}
 			}
 		}
 	}
 	
-	public void unregisterHandler(EventHandler handler, String[] eventTypes)
+	public void unregisterHandler(EventHandler handler, Class<?>[] eventTypes)
 	{
-		for (String eventType : eventTypes)
+		synchronized (handlerMap)
 		{
-			if (handlerMap.containsKey(eventType))
+			for (Class<?> eventType : eventTypes)
 			{
-				List<EventHandler> handlerList = handlerMap.get(eventType);
+				EventHandler[] handlers = getHandlers(eventType);
+				int index = Arrays.asList(handlers).indexOf(handler);
 				
-				handlerList.remove(handler);
+				if (index < 0)
+					continue;
 				
-				if (handlerList.isEmpty())
+				if (handlers.length == 1)
 				{
 					handlerMap.remove(eventType);
 				}
+				else
+				{
+					EventHandler[] remaining = new EventHandler[handlers.length - 1];
+					System.arraycopy(handlers, 0, remaining, 0, index);
+					System.arraycopy(handlers, index + 1, remaining, index, remaining.length - index);
+					handlerMap.put(eventType, remaining);
+				}
 			}
 		}
 	}
 	
+	private EventHandler[] getHandlers(Class<?> eventType)
+	{
+		EventHandler[] handlers = handlerMap.get(eventType);
+		
+		return (handlers != null) ? handlers : NO_HANDLERS;
+	}
+	
 	public synchronized void addQueue(UUID instanceID)
 	{
 		if (!eventQueues.containsKey(instanceID))
+		{
 			eventQueues.put(instanceID, new EventQueue(instanceID));
+			
+			QueueState state = new QueueState(instanceID, gvt);
+			queueStates.put(instanceID, state);
+			blockOrder.add(state);
+		}
 	}
 	
 	public synchronized void removeQueue(UUID instanceID)
 	{
 		eventQueues.remove(instanceID);
+		
+		QueueState state = queueStates.remove(instanceID);
+		
+		if (state != null)
+			blockOrder.remove(state);
+		
+		notifyAll();
 	}
 	
 	private boolean queueExists(UUID i)
@@ -115,6 +275,16 @@ public class EventManager
 	}
 	
 	public synchronized void queueEvent(GameEvent e)
+	{
+		queueEvent(e, Thread.currentThread() == executingThread);
+	}
+	
+	/**
+	 * Queues an event, recording it as generated by the tick being run if
+	 * generated is set, so that it is cancelled if that tick is rolled back.
+	 * Events made only once, whichever way the tick goes, are not.
+	 */
+	public synchronized void queueEvent(GameEvent e, boolean generated)
 	{
 		UUID instance = e.getInstanceID();
 		
@@ -139,26 +309,122 @@ public class EventManager
 //				}
 //			}
 			
+			if (optimistic)
+			{
+				if (generated)
+					record(generatedEvents, executingTick, e);
+				else if (e.getTimeStamp() <= handledTo)
+					stragglerTick = Math.min(stragglerTick, e.getTimeStamp());
+			}
+			
+			if (e.getTimeStamp() < gvt)
+			{
+				// too late to hold GVT back
+				readyQueue.add(e);
+				return;
+			}
+			
 			eventQueues.get(instance).add(e);
 			
-//			if(e.getTimeStamp() >= gvt)
-//				eventQueues.get(instance).add(e);
-//			else
-//				readyQueue.add(e);
+			QueueState state = queueStates.get(instance);
+			long oldMinimum = getMinimumBlockingTick();
+			
+			blockOrder.remove(state);
+			
+			// GVT may have passed the frontier while this queue had no events
+			state.advanceFrontier(gvt);
+			state.maxTimestamp = Math.max(state.maxTimestamp, e.getTimeStamp());
+			
+			if (e instanceof NullEvent)
+				state.addNull(e.getTimeStamp());
+			
+			blockOrder.add(state);
+			
+			if (getMinimumBlockingTick() > oldMinimum)
+				notifyAll();
+		}
+	}
+	
+	/**
+	 * Records a promise that the given instance has queued all of its events
+	 * with timestamps up to and including safeUntil. This counts as a
+	 * NullEvent from that instance for every tick up to safeUntil.
+	 */
+	public synchronized void promise(UUID instanceID, long safeUntil)
+	{
+		QueueState state = queueStates.get(instanceID);
+		
+		if (state == null)
+			return;
+		
+		long oldMinimum = getMinimumBlockingTick();
+		
+		blockOrder.remove(state);
+		state.advanceFrontier(Math.max(gvt, safeUntil + 1));
+		blockOrder.add(state);
+		
+		if (getMinimumBlockingTick() > oldMinimum)
+			notifyAll();
+	}
+	
+	/**
+	 * Records the same promise as promise() for every instance except the
+	 * given one.
+	 */
+	public synchronized void promiseOthers(UUID instanceID, long safeUntil)
+	{
+		for (QueueState state : queueStates.values())
+		{
+			if (!state.instanceID.equals(instanceID))
+			{
+				blockOrder.remove(state);
+				state.advanceFrontier(Math.max(gvt, safeUntil + 1));
+				blockOrder.add(state);
+			}
+		}
+		
+		notifyAll();
+	}
+	
+	/** The first tick GVT cannot pass yet, or Long.MAX_VALUE if none blocks it */
+	private long getMinimumBlockingTick()
+	{
+		return blockOrder.isEmpty() ? Long.MAX_VALUE : blockOrder.first().getBlockingTick();
+	}
+	
+	/**
+	 * Blocks until the events for cTime can be handled, or until the timeout
+	 * passes, whichever comes first.
+	 */
+	public synchronized void waitForEvents(long cTime, long timeoutMillis)
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		
+		try
+		{
+			while (gvt <= cTime && getMinimumBlockingTick() <= cTime && remaining > 0)
+			{
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
 		}
 	}
 	
 	private void dispatchToHandlers(GameEvent e)
 	{
-		List<EventHandler> handlerList = handlerMap.get(e.getEventType());
+		EventHandler[] handlers = handlerMap.get(e.getClass());
 		
-		if (handlerList != null)
+		if (handlers != null)
 		{
-			for (EventHandler h : handlerList)
+			for (int i = 0; i < handlers.length; i++)
 			{
-				h.handleEvent(e);
+				handlers[i].handleEvent(e);
 			}
-			
 		}
 	}
 	
@@ -174,49 +440,184 @@ public class EventManager
 		}
 	}
 	
-	private boolean nullsReady()
+	/**
+	 * Advances GVT as far as the queues allow, up to cTime + 1, and moves the
+	 * events GVT has passed to the ready queue.
+	 */
+	private synchronized void readyEvents(long cTime)
 	{
-		boolean nullsReady = true;
+		long target = Math.min(cTime + 1, getMinimumBlockingTick());
 		
-		for (EventQueue q : eventQueues.values())
+		if (target > gvt)
+			gvt = target;
+		
+		if (gvt > drainedTo)
 		{
-			while (q.peek() != null && q.getFirstTimestamp() < gvt)
-				readyQueue.add(q.poll());
-			
-			if (q.peek() != null && 
-					(!q.peek().isType(NullEvent.class) || q.getFirstTimestamp() > gvt))
+			for (EventQueue q : eventQueues.values())
 			{
-				nullsReady = false;
+				while (q.peek() != null && q.getFirstTimestamp() < gvt)
+					readyQueue.add(q.poll());
 			}
+			
+			drainedTo = gvt;
 		}
+	}
+	
+	public boolean handleEvents(long currentTime)
+	{
+		readyEvents(currentTime);
 		
-		return nullsReady;
+		handleFromQueue(currentTime, readyQueue);
+		
+		if (gvt <= currentTime)
+			return false;
+		
+		return true;
 	}
 	
-	private void readyEvents(long cTime)
+	/**
+	 * Selects optimistic handling: handleOptimistic() is used in place of
+	 * handleEvents(), and events which arrive for ticks already handled are
+	 * reported by getStragglerTick() so the caller can roll back.
+	 */
+	public synchronized void setOptimistic(boolean optimistic)
 	{
-		while (gvt <= cTime && nullsReady())
+		this.optimistic = optimistic;
+	}
+	
+	public synchronized boolean isOptimistic()
+	{
+		return optimistic;
+	}
+	
+	/**
+	 * Handles every known event up to cTime without waiting for GVT to pass
+	 * it. Events the calling thread queues until the next call are recorded
+	 * as generated by tick cTime.
+	 */
+	public void handleOptimistic(long cTime)
+	{
+		ArrayList<GameEvent> handled;
+		
+		synchronized (this)
 		{
+			readyEvents(cTime);
+			
 			for (EventQueue q : eventQueues.values())
 			{
-				while (q.peek() != null && q.getFirstTimestamp() <= gvt)
+				while (q.peek() != null && q.getFirstTimestamp() <= cTime)
 					readyQueue.add(q.poll());
 			}
 			
-			gvt++;
+			executingThread = Thread.currentThread();
+			executingTick = cTime;
+			handledTo = Math.max(handledTo, cTime);
+			
+			handled = new ArrayList<GameEvent>();
+			handledEvents.put(cTime, handled);
+		}
+		
+		while (readyQueue.peek() != null && readyQueue.getFirstTimestamp() <= cTime)
+		{
+			GameEvent e = readyQueue.poll();
+			
+			handled.add(e);
+			dispatchToHandlers(e);
 		}
 	}
 	
-	public boolean handleEvents(long currentTime)
+	/**
+	 * Advances GVT as far as the queues allow, up to cTime + 1, without
+	 * handling any events, and returns it.
+	 */
+	public synchronized long advanceGVT(long cTime)
 	{
-		readyEvents(currentTime);
+		readyEvents(cTime);
 		
-		handleFromQueue(currentTime, readyQueue);
+		return gvt;
+	}
+	
+	/**
+	 * Returns the lowest timestamp of the events which arrived after their
+	 * tick had been handled optimistically, or Long.MAX_VALUE if none have.
+	 */
+	public synchronized long getStragglerTick()
+	{
+		return stragglerTick;
+	}
+	
+	/**
+	 * Undoes the handling of every tick from the given one onwards. Events
+	 * generated while handling those ticks are cancelled, removing them from
+	 * the queues if they are still waiting; the other events handled in them
+	 * are queued again. Returns every event whose handling was undone.
+	 */
+	public synchronized ArrayList<GameEvent> rollback(long tick)
+	{
+		Set<GameEvent> cancelled = Collections.newSetFromMap(new IdentityHashMap<GameEvent, Boolean>());
+		ArrayList<GameEvent> undone = new ArrayList<GameEvent>();
 		
-		if (gvt <= currentTime)
-			return false;
+		SortedMap<Long, ArrayList<GameEvent>> generated = generatedEvents.tailMap(tick);
 		
-		return true;
+		for (ArrayList<GameEvent> list : generated.values())
+		{
+			for (GameEvent e : list)
+			{
+				cancelled.add(e);
+				
+				// the anti-event: drop it if it has not been handled yet
+				if (!readyQueue.remove(e))
+				{
+					EventQueue q = eventQueues.get(e.getInstanceID());
+					
+					if (q != null)
+						q.remove(e);
+				}
+			}
+		}
+		
+		generated.clear();
+		
+		SortedMap<Long, ArrayList<GameEvent>> handled = handledEvents.tailMap(tick);
+		
+		for (ArrayList<GameEvent> list : handled.values())
+		{
+			for (GameEvent e : list)
+			{
+				undone.add(e);
+				
+				if (!cancelled.contains(e))
+					readyQueue.add(e);
+			}
+		}
+		
+		handled.clear();
+		
+		handledTo = tick - 1;
+		stragglerTick = Long.MAX_VALUE;
+		executingThread = null;
+		
+		return undone;
+	}
+	
+	/** Forgets the records kept for rolling back ticks before the given one */
+	public synchronized void collectFossils(long tick)
+	{
+		handledEvents.headMap(tick).clear();
+		generatedEvents.headMap(tick).clear();
+	}
+	
+	private static void record(TreeMap<Long, ArrayList<GameEvent>> map, long tick, GameEvent e)
+	{
+		ArrayList<GameEvent> list = map.get(tick);
+		
+		if (list == null)
+		{
+			list = new ArrayList<GameEvent>();
+			map.put(tick, list);
+		}
+		
+		list.add(e);
 	}
 	
 	public void handleFromQueue(long cTime, EventQueue queue)
@@ -1,23 +1,108 @@
 package engine.gameEvents.eventManagement;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
 import java.util.UUID;
-import java.util.concurrent.PriorityBlockingQueue;
 import engine.gameEvents.GameEvent;
 import engine.gameEvents.NullEvent;
 
+/**
+ * A queue of GameEvents, ordered by timestamp and then by priority, for one
+ * game instance.
+ * 
+ * Stored as a calendar queue: a ring of buckets with one bucket per tick,
+ * covering BUCKET_COUNT ticks from the timestamp of the last event polled.
+ * Since nearly all events are for ticks close to the current one, adding and
+ * polling are O(1) in the usual case. Events for ticks before the ring
+ * (arriving late) or past it are kept in small heaps on either side. Within
+ * a bucket, events are ordered by priority, and events of equal priority
+ * keep the order they were added in.
+ */
 public class EventQueue implements Serializable
 {
 	private static final long serialVersionUID = 4698026313285744914L;
-
-	PriorityBlockingQueue<GameEvent> queue = new PriorityBlockingQueue<GameEvent>();
+	
+	/** Number of ticks covered by the ring; must be a power of two */
+	private static final int BUCKET_COUNT = 64;
 	
 	UUID instanceID;
 	
+	/** Timestamp of the first tick covered by the ring */
+	private transient long base;
+	
+	/** Timestamp of the first non-empty bucket, valid while ringSize > 0 */
+	private transient long headTick;
+	
+	private transient Bucket[] buckets;
+	
+	private transient int ringSize;
+	
+	/** Events with timestamps before base */
+	private transient PriorityQueue<GameEvent> late;
+	
+	/** Events with timestamps at or past base + BUCKET_COUNT */
+	private transient PriorityQueue<GameEvent> future;
+	
+	/** The events for one tick, in order, from index head onwards */
+	private static class Bucket
+	{
+		ArrayList<GameEvent> events = new ArrayList<GameEvent>(4);
+		int head = 0;
+		
+		boolean isEmpty()
+		{
+			return head == events.size();
+		}
+		
+		void add(GameEvent e)
+		{
+			int i = events.size();
+			
+			// usually appends; later events of equal priority stay behind
+			while (i > head && events.get(i - 1).compareTo(e) > 0)
+				i--;
+			
+			events.add(i, e);
+		}
+		
+		GameEvent poll()
+		{
+			GameEvent e = events.get(head);
+			events.set(head++, null);
+			
+			if (head == events.size())
+			{
+				events.clear();
+				head = 0;
+			}
+			
+			return e;
+		}
+	}
+	
 	public EventQueue(UUID instanceID)
 	{
 		this.instanceID = instanceID;
+		
+		init();
+	}
+	
+	private void init()
+	{
+		buckets = new Bucket[BUCKET_COUNT];
+		
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			buckets[i] = new Bucket();
+		
+		late = new PriorityQueue<GameEvent>();
+		future = new PriorityQueue<GameEvent>();
+		ringSize = 0;
+		base = 0;
 	}
 	
 	public UUID getInstanceID()
@@ -25,117 +110,253 @@ public class EventQueue implements Serializable
 		return this.instanceID;
 	}
 	
-	public boolean containsNullForTS(long ts)
+	public synchronized boolean containsNullForTS(long ts)
 	{
-		//lock.readLock().lock();
+		if (ts >= base && ts < base + BUCKET_COUNT)
+		{
+			Bucket b = bucket(ts);
+			
+			for (int i = b.head; i < b.events.size(); i++)
+			{
+				if (b.events.get(i) instanceof NullEvent)
+					return true;
+			}
+			
+			return false;
+		}
+		
+		for (GameEvent e : (ts < base) ? late : future)
+		{
+			if (e.getTimeStamp() == ts && e instanceof NullEvent)
+				return true;
+		}
 		
-		boolean r = false;
+		return false;
+	}
+	
+	/**
+	 * Returns a list of the events in this queue, in the order they would be
+	 * polled.
+	 */
+	public synchronized ArrayList<GameEvent> getEvents()
+	{
+		ArrayList<GameEvent> r = new ArrayList<GameEvent>(size());
 		
-		ArrayList<GameEvent> a = new ArrayList<GameEvent>(queue);
+		addSorted(late, r);
 		
-		for (GameEvent e : a)
+		if (ringSize > 0)
 		{
-			if (e.getTimeStamp() == ts && e instanceof NullEvent)
+			for (long t = headTick; t < base + BUCKET_COUNT; t++)
 			{
-				r = true;
+				Bucket b = bucket(t);
+				
+				for (int i = b.head; i < b.events.size(); i++)
+					r.add(b.events.get(i));
 			}
 		}
 		
-		//lock.readLock().unlock();
+		addSorted(future, r);
 		
 		return r;
 	}
 	
-	public PriorityBlockingQueue<GameEvent> getQueue()
+	private static void addSorted(PriorityQueue<GameEvent> q, ArrayList<GameEvent> r)
 	{
-		//lock.readLock().lock();
-		
-		PriorityBlockingQueue<GameEvent> b = new PriorityBlockingQueue<GameEvent>(queue);
+		if (q.isEmpty())
+			return;
 		
-		//lock.readLock().unlock();
-		
-		return b;
+		ArrayList<GameEvent> s = new ArrayList<GameEvent>(q);
+		Collections.sort(s);
+		r.addAll(s);
 	}
 	
 	public String toString()
 	{
-		//lock.readLock().lock();
+		StringBuilder a = new StringBuilder("EventQueue " + instanceID + ": ");
+		
+		for (GameEvent e : getEvents())
+			a.append("[" + e.getEventType() + ", ts=" + e.getTimeStamp() + "]");
 		
-		String a = "EventQueue " + instanceID.toString() + ": ";
+		return a.toString();
+	}
+	
+	public synchronized void add(GameEvent e)
+	{
+		long ts = e.getTimeStamp();
 		
-		PriorityBlockingQueue<GameEvent> b = new PriorityBlockingQueue<GameEvent>(queue);
+		// an empty queue can start its ring anywhere
+		if (size() == 0)
+			base = ts;
 		
-		while(!b.isEmpty())
+		if (ts < base)
+		{
+			late.add(e);
+		}
+		else if (ts >= base + BUCKET_COUNT)
+		{
+			future.add(e);
+		}
+		else
 		{
-			GameEvent e = b.poll();
+			bucket(ts).add(e);
+			
+			if (ringSize == 0 || ts < headTick)
+				headTick = ts;
 			
-			a = a + "[" + e.getEventType() + ", ts=" + e.getTimeStamp() + "]";
+			ringSize++;
 		}
-		
-		//lock.readLock().unlock();
-		
-		return a;
 	}
 	
-	public void add(GameEvent e)
+	public synchronized long getFirstTimestamp()
 	{
-		//lock.writeLock().lock();
-		
-		queue.add(e);
-		
-		//lock.writeLock().unlock();
+		return peek().getTimeStamp();
 	}
 	
-	public long getFirstTimestamp()
+	public synchronized GameEvent peek()
 	{
-		//lock.readLock().lock();
+		if (!late.isEmpty())
+			return late.peek();
 		
-		long r = queue.peek().getTimeStamp();
+		if (ringSize == 0)
+			refill();
 		
-		//lock.readLock().unlock();
+		if (ringSize > 0)
+		{
+			Bucket b = bucket(headTick);
+			return b.events.get(b.head);
+		}
 		
-		return r;
+		return null;
 	}
 	
-	public GameEvent peek()
+	public synchronized GameEvent poll()
 	{
-		//lock.readLock().lock();
+		if (!late.isEmpty())
+			return late.poll();
 		
-		GameEvent r = queue.peek();
+		if (ringSize == 0)
+			refill();
 		
-		//lock.readLock().unlock();
+		if (ringSize == 0)
+			return null;
 		
-		return r;
+		GameEvent e = bucket(headTick).poll();
+		ringSize--;
+		
+		// the ring now starts at this event's tick
+		advanceBase(headTick);
+		
+		if (ringSize > 0)
+		{
+			while (bucket(headTick).isEmpty())
+				headTick++;
+		}
+		
+		return e;
 	}
 	
-	public GameEvent poll()
+	/** Removes the given event, if it is in this queue; returns whether it was */
+	public synchronized boolean remove(GameEvent e)
 	{
-		//lock.writeLock().lock();
+		if (late.remove(e) || future.remove(e))
+			return true;
 		
-		GameEvent r = queue.poll();
+		long ts = e.getTimeStamp();
 		
-		//lock.writeLock().unlock();
+		if (ringSize == 0 || ts < headTick || ts >= base + BUCKET_COUNT)
+			return false;
 		
-		return r;
+		Bucket b = bucket(ts);
+		
+		for (int i = b.head; i < b.events.size(); i++)
+		{
+			if (b.events.get(i) == e)
+			{
+				b.events.remove(i);
+				ringSize--;
+				
+				if (b.isEmpty())
+				{
+					b.events.clear();
+					b.head = 0;
+					
+					while (ringSize > 0 && bucket(headTick).isEmpty())
+						headTick++;
+				}
+				
+				return true;
+			}
+		}
+		
+		return false;
 	}
-
-	public boolean isEmpty()
+	
+	public synchronized boolean isEmpty()
 	{
-		//lock.readLock().lock();
-		
-		boolean r = queue.isEmpty();
+		return size() == 0;
+	}
+	
+	public synchronized int size()
+	{
+		return late.size() + ringSize + future.size();
+	}
+	
+	public synchronized void addAll(ArrayList<GameEvent> t)
+	{
+		for (GameEvent e : t)
+			add(e);
+	}
+	
+	/** Moves the ring up to the first future event, once the ring is empty */
+	private void refill()
+	{
+		if (!future.isEmpty())
+			advanceBase(future.peek().getTimeStamp());
+	}
+	
+	/**
+	 * Moves the start of the ring forward to the given tick, pulling in any
+	 * future events the ring now covers.
+	 */
+	private void advanceBase(long newBase)
+	{
+		if (newBase <= base)
+			return;
 		
-		//lock.readLock().unlock();
+		base = newBase;
 		
-		return r;
+		while (!future.isEmpty() && future.peek().getTimeStamp() < base + BUCKET_COUNT)
+		{
+			GameEvent e = future.poll();
+			long ts = e.getTimeStamp();
+			
+			bucket(ts).add(e);
+			
+			if (ringSize == 0 || ts < headTick)
+				headTick = ts;
+			
+			ringSize++;
+		}
 	}
-
-	public void addAll(ArrayList<GameEvent> t)
+	
+	private Bucket bucket(long ts)
+	{
+		return buckets[(int) (ts & (BUCKET_COUNT - 1))];
+	}
+	
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeObject(getEvents());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
 	{
-		//lock.writeLock().lock();
+		in.defaultReadObject();
 		
-		queue.addAll(t);
+		init();
 		
-		//lock.writeLock().unlock();
+		addAll((ArrayList<GameEvent>) in.readObject());
 	}
 }
@@ -2,7 +2,7 @@ package engine.gameObjects;
 
 import java.util.UUID;
 import engine.GameInstance;
-import engine.ScriptManager;
+import engine.gameObjects.objectClasses.Behavior;
 import engine.gameObjects.objectClasses.Killable;
 import engine.gameObjects.objectClasses.PhysicsObject;
 import engine.gameObjects.objectClasses.RenderableObject;
@@ -41,40 +41,18 @@ public class Bullet extends GameObject implements PhysicsObject, Killable, Rende
 		return count;
 	}
 	
-	private void exposeScriptingObjects(GameInstance instance)
+	public int getSpeed()
 	{
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("height", height);
-		ScriptManager.bindArgument("width", width);
-		ScriptManager.bindArgument("speed", speed);
-		ScriptManager.bindArgument("count", count);
-		
-		ScriptManager.bindArgument("instance", instance);
-		ScriptManager.bindArgument("bullet", this);
-	}
-	
-	private void updateValues()
-	{
-		x = ((Number) ScriptManager.retrieveValue("x")).floatValue();
-		y = ((Number) ScriptManager.retrieveValue("y")).floatValue();
-		height = ((Number) ScriptManager.retrieveValue("height")).floatValue();
-		width = ((Number) ScriptManager.retrieveValue("width")).floatValue();
-		speed = ((Number) ScriptManager.retrieveValue("speed")).intValue();
-		count = ((Number) ScriptManager.retrieveValue("count")).intValue();
+		return speed;
 	}
 	
 	@Override
 	public void doPhysics(GameInstance instance)
 	{
-		ScriptManager.lock();
-		exposeScriptingObjects(instance);
-		
-		ScriptManager.loadScript("invaders/bullet_behaviour.js");
+		Behavior<Bullet> behavior = instance.getBehavior(Bullet.class);
 		
-		updateValues();
-		ScriptManager.clearBindings();
-		ScriptManager.unlock();
+		if (behavior != null)
+			behavior.update(this, instance);
 	}
 
 	@Override
@@ -0,0 +1,553 @@
+package engine.gameObjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dynamic bounding volume tree broadphase. Each object is a leaf whose box is
+ * its bounds grown by a margin, so an object which moves a little stays
+ * inside its leaf and does not need to be reinserted. Inner nodes hold the
+ * union of their children, and the tree is kept balanced with rotations on
+ * insertion and removal. Unlike a grid, cost does not depend on object size
+ * or on how evenly objects are spread out.
+ * 
+ * Nodes are stored in parallel arrays, indexed by node number.
+ */
+public class DynamicAabbTree implements SpatialIndex
+{
+	private static final int NULL = -1;
+	
+	private final float margin;
+	
+	private int root = NULL;
+	
+	private int capacity = 0;
+	private int freeList = NULL;
+	
+	private double[] minX, minY, maxX, maxY;
+	private int[] parent, child1, child2, height;
+	private GameObject[] objects;
+	
+	private HashMap<UUID, Proxy> proxies = new HashMap<UUID, Proxy>();
+	
+	private ArrayList<Proxy> mobile = new ArrayList<Proxy>();
+	
+	/**
+	 * The stack of nodes still to visit, kept between queries. Queries only
+	 * hold the set's read lock, so one which finds another using it makes
+	 * its own.
+	 */
+	private AtomicReference<int[]> spareStack = new AtomicReference<int[]>(new int[64]);
+	
+	private static class Proxy
+	{
+		GameObject object;
+		int leaf;
+		
+		Proxy(GameObject object, int leaf)
+		{
+			this.object = object;
+			this.leaf = leaf;
+		}
+	}
+	
+	/**
+	 * @param margin
+	 *            how far, in pixels, each leaf's box extends past the bounds
+	 *            of its object
+	 */
+	public DynamicAabbTree(float margin)
+	{
+		this.margin = margin;
+		
+		grow(16);
+	}
+	
+	public float getMargin()
+	{
+		return margin;
+	}
+	
+	@Override
+	public void insert(GameObject o, boolean canMove)
+	{
+		remove(o);
+		
+		int leaf = allocateNode();
+		
+		objects[leaf] = o;
+		fatten(leaf, o);
+		insertLeaf(leaf);
+		
+		Proxy p = new Proxy(o, leaf);
+		proxies.put(o.objectID, p);
+		
+		if (canMove)
+			mobile.add(p);
+	}
+	
+	@Override
+	public void remove(GameObject o)
+	{
+		Proxy p = proxies.remove(o.objectID);
+		
+		if (p != null)
+		{
+			removeLeaf(p.leaf);
+			freeNode(p.leaf);
+			mobile.remove(p);
+		}
+	}
+	
+	@Override
+	public void update(GameObject o)
+	{
+		Proxy p = proxies.get(o.objectID);
+		
+		if (p != null)
+			update(p);
+	}
+	
+	@Override
+	public void updateMobile()
+	{
+		for (int i = 0; i < mobile.size(); i++)
+			update(mobile.get(i));
+	}
+	
+	@Override
+	public void clear()
+	{
+		root = NULL;
+		proxies.clear();
+		mobile.clear();
+		
+		// rebuild the free list over every node
+		Arrays.fill(objects, null);
+		
+		for (int i = 0; i < capacity - 1; i++)
+			parent[i] = i + 1;
+		
+		parent[capacity - 1] = NULL;
+		freeList = 0;
+	}
+	
+	@Override
+	public void query(double x, double y, double w, double h, boolean physOnly,
+			ArrayList<GameObject> out)
+	{
+		if (root == NULL)
+			return;
+		
+		int[] stack = takeStack();
+		int top = 0;
+		
+		stack[top++] = root;
+		
+		while (top > 0)
+		{
+			int node = stack[--top];
+			
+			if (!overlaps(node, x, y, w, h))
+				continue;
+			
+			if (child1[node] == NULL)
+			{
+				GameObject o = objects[node];
+				
+				if (o.intersects(x, y, w, h) && (!physOnly || o.hasPhysicalCollision()))
+					out.add(o);
+			}
+			else
+			{
+				stack[top++] = child1[node];
+				stack[top++] = child2[node];
+			}
+		}
+		
+		spareStack.set(stack);
+	}
+	
+	@Override
+	public boolean anyPhysical(double x, double y, double w, double h)
+	{
+		if (root == NULL)
+			return false;
+		
+		int[] stack = takeStack();
+		int top = 0;
+		
+		stack[top++] = root;
+		
+		while (top > 0)
+		{
+			int node = stack[--top];
+			
+			if (!overlaps(node, x, y, w, h))
+				continue;
+			
+			if (child1[node] == NULL)
+			{
+				GameObject o = objects[node];
+				
+				if (o.intersects(x, y, w, h) && o.hasPhysicalCollision())
+				{
+					spareStack.set(stack);
+					return true;
+				}
+			}
+			else
+			{
+				stack[top++] = child1[node];
+				stack[top++] = child2[node];
+			}
+		}
+		
+		spareStack.set(stack);
+		return false;
+	}
+	
+	/**
+	 * Returns a stack deep enough for a walk of the tree, which the caller
+	 * hands back once done with it
+	 */
+	private int[] takeStack()
+	{
+		int needed = 2 * height[root] + 2;
+		int[] stack = spareStack.getAndSet(null);
+		
+		if (stack == null || stack.length < needed)
+			stack = new int[Math.max(64, 2 * needed)];
+		
+		return stack;
+	}
+	
+	/** Height of the tree, or -1 if it is empty */
+	public int getHeight()
+	{
+		return (root == NULL) ? -1 : height[root];
+	}
+	
+	private void update(Proxy p)
+	{
+		int leaf = p.leaf;
+		GameObject o = p.object;
+		
+		// still inside the fattened box
+		if (o.x >= minX[leaf] && o.y >= minY[leaf]
+				&& (double) o.x + o.width <= maxX[leaf]
+				&& (double) o.y + o.height <= maxY[leaf])
+			return;
+		
+		removeLeaf(leaf);
+		fatten(leaf, o);
+		insertLeaf(leaf);
+	}
+	
+	private void fatten(int leaf, GameObject o)
+	{
+		minX[leaf] = o.x - margin;
+		minY[leaf] = o.y - margin;
+		maxX[leaf] = (double) o.x + o.width + margin;
+		maxY[leaf] = (double) o.y + o.height + margin;
+	}
+	
+	private boolean overlaps(int node, double x, double y, double w, double h)
+	{
+		return (minX[node] <= x + w && maxX[node] >= x
+				&& minY[node] <= y + h && maxY[node] >= y);
+	}
+	
+	private void insertLeaf(int leaf)
+	{
+		if (root == NULL)
+		{
+			root = leaf;
+			parent[leaf] = NULL;
+			return;
+		}
+		
+		// walk down to the cheapest sibling, measuring cost by perimeter
+		int index = root;
+		
+		while (child1[index] != NULL)
+		{
+			int c1 = child1[index];
+			int c2 = child2[index];
+			
+			double area = perimeter(index);
+			double combinedArea = unionPerimeter(index, leaf);
+			
+			// cost of making a new parent for this node and the leaf
+			double cost = 2 * combinedArea;
+			
+			// minimum cost of pushing the leaf further down
+			double inheritanceCost = 2 * (combinedArea - area);
+			
+			double cost1 = descendCost(c1, leaf) + inheritanceCost;
+			double cost2 = descendCost(c2, leaf) + inheritanceCost;
+			
+			if (cost < cost1 && cost < cost2)
+				break;
+			
+			index = (cost1 < cost2) ? c1 : c2;
+		}
+		
+		int sibling = index;
+		int oldParent = parent[sibling];
+		int newParent = allocateNode();
+		
+		parent[newParent] = oldParent;
+		setUnion(newParent, leaf, sibling);
+		height[newParent] = height[sibling] + 1;
+		
+		if (oldParent != NULL)
+		{
+			if (child1[oldParent] == sibling)
+				child1[oldParent] = newParent;
+			else
+				child2[oldParent] = newParent;
+		}
+		else
+		{
+			root = newParent;
+		}
+		
+		child1[newParent] = sibling;
+		child2[newParent] = leaf;
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+		
+		refitFrom(parent[leaf]);
+	}
+	
+	private void removeLeaf(int leaf)
+	{
+		if (leaf == root)
+		{
+			root = NULL;
+			return;
+		}
+		
+		int p = parent[leaf];
+		int grandParent = parent[p];
+		int sibling = (child1[p] == leaf) ? child2[p] : child1[p];
+		
+		if (grandParent != NULL)
+		{
+			if (child1[grandParent] == p)
+				child1[grandParent] = sibling;
+			else
+				child2[grandParent] = sibling;
+			
+			parent[sibling] = grandParent;
+			freeNode(p);
+			
+			refitFrom(grandParent);
+		}
+		else
+		{
+			root = sibling;
+			parent[sibling] = NULL;
+			freeNode(p);
+		}
+	}
+	
+	/** Rebalances and refits every node from the given one up to the root */
+	private void refitFrom(int index)
+	{
+		while (index != NULL)
+		{
+			index = balance(index);
+			
+			int c1 = child1[index];
+			int c2 = child2[index];
+			
+			height[index] = 1 + Math.max(height[c1], height[c2]);
+			setUnion(index, c1, c2);
+			
+			index = parent[index];
+		}
+	}
+	
+	/**
+	 * Performs a left or right rotation if node a is imbalanced. Returns the
+	 * node now at a's position.
+	 */
+	private int balance(int a)
+	{
+		if (child1[a] == NULL || height[a] < 2)
+			return a;
+		
+		int b = child1[a];
+		int c = child2[a];
+		
+		int balance = height[c] - height[b];
+		
+		// rotate c up
+		if (balance > 1)
+		{
+			int f = child1[c];
+			int g = child2[c];
+			
+			child1[c] = a;
+			parent[c] = parent[a];
+			parent[a] = c;
+			replaceChild(parent[c], a, c);
+			
+			if (height[f] > height[g])
+			{
+				child2[c] = f;
+				child2[a] = g;
+				parent[g] = a;
+				setUnion(a, b, g);
+				setUnion(c, a, f);
+				
+				height[a] = 1 + Math.max(height[b], height[g]);
+				height[c] = 1 + Math.max(height[a], height[f]);
+			}
+			else
+			{
+				child2[c] = g;
+				child2[a] = f;
+				parent[f] = a;
+				setUnion(a, b, f);
+				setUnion(c, a, g);
+				
+				height[a] = 1 + Math.max(height[b], height[f]);
+				height[c] = 1 + Math.max(height[a], height[g]);
+			}
+			
+			return c;
+		}
+		
+		// rotate b up
+		if (balance < -1)
+		{
+			int d = child1[b];
+			int e = child2[b];
+			
+			child1[b] = a;
+			parent[b] = parent[a];
+			parent[a] = b;
+			replaceChild(parent[b], a, b);
+			
+			if (height[d] > height[e])
+			{
+				child2[b] = d;
+				child1[a] = e;
+				parent[e] = a;
+				setUnion(a, c, e);
+				setUnion(b, a, d);
+				
+				height[a] = 1 + Math.max(height[c], height[e]);
+				height[b] = 1 + Math.max(height[a], height[d]);
+			}
+			else
+			{
+				child2[b] = e;
+				child1[a] = d;
+				parent[d] = a;
+				setUnion(a, c, d);
+				setUnion(b, a, e);
+				
+				height[a] = 1 + Math.max(height[c], height[d]);
+				height[b] = 1 + Math.max(height[a], height[e]);
+			}
+			
+			return b;
+		}
+		
+		return a;
+	}
+	
+	private void replaceChild(int p, int oldChild, int newChild)
+	{
+		if (p == NULL)
+			root = newChild;
+		else if (child1[p] == oldChild)
+			child1[p] = newChild;
+		else
+			child2[p] = newChild;
+	}
+	
+	private double descendCost(int child, int leaf)
+	{
+		if (child1[child] == NULL)
+			return unionPerimeter(child, leaf);
+		else
+			return unionPerimeter(child, leaf) - perimeter(child);
+	}
+	
+	private double perimeter(int n)
+	{
+		return 2 * ((maxX[n] - minX[n]) + (maxY[n] - minY[n]));
+	}
+	
+	private double unionPerimeter(int a, int b)
+	{
+		double w = Math.max(maxX[a], maxX[b]) - Math.min(minX[a], minX[b]);
+		double h = Math.max(maxY[a], maxY[b]) - Math.min(minY[a], minY[b]);
+		
+		return 2 * (w + h);
+	}
+	
+	private void setUnion(int n, int a, int b)
+	{
+		minX[n] = Math.min(minX[a], minX[b]);
+		minY[n] = Math.min(minY[a], minY[b]);
+		maxX[n] = Math.max(maxX[a], maxX[b]);
+		maxY[n] = Math.max(maxY[a], maxY[b]);
+	}
+	
+	private int allocateNode()
+	{
+		if (freeList == NULL)
+			grow(capacity * 2);
+		
+		int n = freeList;
+		freeList = parent[n];
+		
+		parent[n] = NULL;
+		child1[n] = NULL;
+		child2[n] = NULL;
+		height[n] = 0;
+		objects[n] = null;
+		
+		return n;
+	}
+	
+	private void freeNode(int n)
+	{
+		objects[n] = null;
+		height[n] = -1;
+		parent[n] = freeList;
+		freeList = n;
+	}
+	
+	private void grow(int newCapacity)
+	{
+		int old = capacity;
+		
+		minX = Arrays.copyOf(minX == null ? new double[0] : minX, newCapacity);
+		minY = Arrays.copyOf(minY == null ? new double[0] : minY, newCapacity);
+		maxX = Arrays.copyOf(maxX == null ? new double[0] : maxX, newCapacity);
+		maxY = Arrays.copyOf(maxY == null ? new double[0] : maxY, newCapacity);
+		parent = Arrays.copyOf(parent == null ? new int[0] : parent, newCapacity);
+		child1 = Arrays.copyOf(child1 == null ? new int[0] : child1, newCapacity);
+		child2 = Arrays.copyOf(child2 == null ? new int[0] : child2, newCapacity);
+		height = Arrays.copyOf(height == null ? new int[0] : height, newCapacity);
+		objects = Arrays.copyOf(objects == null ? new GameObject[0] : objects, newCapacity);
+		
+		for (int i = old; i < newCapacity - 1; i++)
+			parent[i] = i + 1;
+		
+		parent[newCapacity - 1] = freeList;
+		freeList = old;
+		
+		capacity = newCapacity;
+	}
+}
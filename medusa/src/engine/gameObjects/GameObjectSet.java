@@ -1,10 +1,23 @@
 package engine.gameObjects;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import engine.gameObjects.objectClasses.PhysicsObject;
+import engine.gameObjects.objectClasses.Spawnable;
 
 public class GameObjectSet implements Serializable
 {
@@ -12,12 +25,88 @@ public class GameObjectSet implements Serializable
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+	
+	/** Cell size, in pixels, of the collision grid */
+	public static final float DEFAULT_CELL_SIZE = 64;
+	
+	/** Margin, in pixels, added around each object in the collision tree */
+	public static final float DEFAULT_TREE_MARGIN = 8;
 
 	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 	
 	private HashMap<UUID, GameObject> objectMap = new HashMap<UUID, GameObject>();
 	private HashMap<UUID, PlayerObject> playerObjects = new HashMap<UUID, PlayerObject>();
 	
+	private SpatialIndex.Type indexType = SpatialIndex.Type.GRID;
+	
+	private float cellSize = DEFAULT_CELL_SIZE;
+	
+	private float treeMargin = DEFAULT_TREE_MARGIN;
+	
+	/**
+	 * Orders objects by ID, which is the same for an object on every
+	 * instance, unlike the order objects happened to be added in
+	 */
+	public static final Comparator<GameObject> BY_ID = new Comparator<GameObject>()
+	{
+		@Override
+		public int compare(GameObject a, GameObject b)
+		{
+			return a.objectID.compareTo(b.objectID);
+		}
+	};
+	
+	/** Changed whenever an object which cannot move is added or removed */
+	private transient volatile long staticVersion = 0;
+	
+	/** Broadphase for collision queries, rebuilt after deserialization */
+	private transient SpatialIndex index = new SpatialHashGrid(cellSize);
+	
+	/**
+	 * Members of each class or interface which has been looked up, kept up
+	 * to date by addToSet and removeFromSet. Copy-on-write, so they can be
+	 * iterated without holding the lock while objects are added or removed.
+	 * Each is kept in ID order, so that objects are updated in the same order
+	 * on the server and every client.
+	 */
+	private transient ConcurrentHashMap<Class<?>, ClassMembers> classIndex =
+			new ConcurrentHashMap<Class<?>, ClassMembers>();
+	
+	private static class ClassMembers
+	{
+		CopyOnWriteArrayList<GameObject> objects;
+		List<GameObject> view;
+		
+		ClassMembers(ArrayList<GameObject> initial)
+		{
+			Collections.sort(initial, BY_ID);
+			
+			objects = new CopyOnWriteArrayList<GameObject>(initial);
+			view = Collections.unmodifiableList(objects);
+		}
+		
+		/** Inserts an object in ID order. Called with the write lock held. */
+		void add(GameObject o)
+		{
+			int i = Collections.binarySearch(objects, o, BY_ID);
+			
+			objects.add((i < 0) ? -i - 1 : i, o);
+		}
+		
+		/**
+		 * Removes the given object, found by its ID. Objects are equal when
+		 * their bounds are, so remove(Object) could take another one.
+		 * Called with the write lock held.
+		 */
+		void remove(GameObject o)
+		{
+			int i = Collections.binarySearch(objects, o, BY_ID);
+			
+			if (i >= 0 && objects.get(i) == o)
+				objects.remove(i);
+		}
+	}
+	
 	public GameObjectSet()
 	{
 		
@@ -45,10 +134,25 @@ public class GameObjectSet implements Serializable
 		
 		if (o != null)
 		{
-			objectMap.put(o.objectID, o);
+			GameObject replaced = objectMap.put(o.objectID, o);
 			
 			if (o instanceof PlayerObject)
 				playerObjects.put(((PlayerObject) o).parentInstanceID, (PlayerObject) o);
+			
+			if (index != null)
+				index.insert(o, canMove(o));
+			
+			if (!canMove(o))
+				staticVersion++;
+			
+			for (Map.Entry<Class<?>, ClassMembers> e : classIndex.entrySet())
+			{
+				if (replaced != null)
+					e.getValue().remove(replaced);
+				
+				if (e.getKey().isInstance(o))
+					e.getValue().add(o);
+			}
 		}
 		
 		lock.writeLock().unlock();
@@ -60,10 +164,175 @@ public class GameObjectSet implements Serializable
 		
 		if (o != null)
 		{
-			objectMap.remove(o.objectID);
+			GameObject removed = objectMap.remove(o.objectID);
 			
 			if (o instanceof PlayerObject)
 				playerObjects.remove(((PlayerObject) o).parentInstanceID);
+			
+			if (index != null)
+				index.remove(o);
+			
+			if (!canMove(o))
+				staticVersion++;
+			
+			if (removed != null)
+			{
+				for (ClassMembers m : classIndex.values())
+					m.remove(removed);
+			}
+		}
+		
+		lock.writeLock().unlock();
+	}
+	
+	/**
+	 * Updates the collision index after the given object has moved. Should be
+	 * called after any change to an object's position or size.
+	 */
+	public void updatePosition(GameObject o)
+	{
+		lock.writeLock().lock();
+		
+		if (index != null)
+			index.update(o);
+		
+		lock.writeLock().unlock();
+	}
+	
+	/**
+	 * Updates the collision index for every object which can move on its own
+	 * (PhysicsObjects and Spawnables), e.g. at the start of a tick, after
+	 * events have been handled.
+	 */
+	public void updatePositions()
+	{
+		lock.writeLock().lock();
+		
+		if (index != null)
+			index.updateMobile();
+		
+		lock.writeLock().unlock();
+	}
+	
+	/**
+	 * Selects the broadphase used for collision queries, rebuilding it. NONE
+	 * makes every query scan the whole set.
+	 */
+	public void setSpatialIndex(SpatialIndex.Type type)
+	{
+		lock.writeLock().lock();
+		
+		indexType = type;
+		rebuildIndex();
+		
+		lock.writeLock().unlock();
+	}
+	
+	public SpatialIndex.Type getSpatialIndexType()
+	{
+		return indexType;
+	}
+	
+	/**
+	 * Sets the cell size used when the index is a grid. A size of 0 or less
+	 * turns the grid off, so that collision queries scan every object, as
+	 * with NONE.
+	 */
+	public void setCellSize(float size)
+	{
+		lock.writeLock().lock();
+		
+		cellSize = size;
+		rebuildIndex();
+		
+		lock.writeLock().unlock();
+	}
+	
+	/** Sets the margin used when the index is a tree */
+	public void setTreeMargin(float margin)
+	{
+		lock.writeLock().lock();
+		
+		treeMargin = margin;
+		rebuildIndex();
+		
+		lock.writeLock().unlock();
+	}
+	
+	private void rebuildIndex()
+	{
+		switch (indexType)
+		{
+			case GRID:
+				if (cellSize <= 0)
+				{
+					index = null;
+					return;
+				}
+				
+				index = new SpatialHashGrid(cellSize);
+				break;
+			case TREE:
+				index = new DynamicAabbTree(treeMargin);
+				break;
+			default:
+				index = null;
+				return;
+		}
+		
+		for (GameObject o : objectMap.values())
+			index.insert(o, canMove(o));
+	}
+	
+	private static boolean canMove(GameObject o)
+	{
+		return (o instanceof PhysicsObject || o instanceof Spawnable);
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		classIndex = new ConcurrentHashMap<Class<?>, ClassMembers>();
+		
+		lock.writeLock().lock();
+		
+		rebuildIndex();
+		
+		lock.writeLock().unlock();
+	}
+	
+	/**
+	 * Replaces the contents of this set with those of a saved copy, e.g. to
+	 * roll back to a checkpoint. The copy's objects are taken over rather
+	 * than copied, so the copy should not be used afterwards.
+	 */
+	public void restore(GameObjectSet saved)
+	{
+		lock.writeLock().lock();
+		
+		objectMap = saved.objectMap;
+		playerObjects = saved.playerObjects;
+		
+		staticVersion++;
+		
+		rebuildIndex();
+		
+		// refill the class lists in place, as callers may hold their views
+		for (Map.Entry<Class<?>, ClassMembers> e : classIndex.entrySet())
+		{
+			ArrayList<GameObject> members = new ArrayList<GameObject>();
+			
+			for (GameObject o : objectMap.values())
+			{
+				if (e.getKey().isInstance(o))
+					members.add(o);
+			}
+			
+			Collections.sort(members, BY_ID);
+			
+			e.getValue().objects.clear();
+			e.getValue().objects.addAll(members);
 		}
 		
 		lock.writeLock().unlock();
@@ -81,6 +350,88 @@ public class GameObjectSet implements Serializable
 		return o;
 	}
 	
+	/**
+	 * Returns a number which changes whenever the objects which cannot move,
+	 * such as a level's blocks, may have changed
+	 */
+	public long getStaticVersion()
+	{
+		return staticVersion;
+	}
+	
+	/** Returns the objects which cannot move */
+	public ArrayList<GameObject> getStaticObjects()
+	{
+		return getObjects(false);
+	}
+	
+	/** Returns the objects which can move, players included */
+	public ArrayList<GameObject> getDynamicObjects()
+	{
+		return getObjects(true);
+	}
+	
+	/**
+	 * Returns the objects which can move and intersect the given rectangle,
+	 * found through the spatial index
+	 */
+	public ArrayList<GameObject> getDynamicObjects(double x, double y, double w, double h)
+	{
+		ArrayList<GameObject> r = getColliding(x, y, w, h, false);
+		
+		for (Iterator<GameObject> i = r.iterator(); i.hasNext();)
+		{
+			if (!canMove(i.next()))
+				i.remove();
+		}
+		
+		return r;
+	}
+	
+	private ArrayList<GameObject> getObjects(boolean moving)
+	{
+		lock.readLock().lock();
+		
+		ArrayList<GameObject> r = new ArrayList<GameObject>();
+		
+		for (GameObject o : objectMap.values())
+		{
+			if (canMove(o) == moving)
+				r.add(o);
+		}
+		
+		lock.readLock().unlock();
+		
+		return r;
+	}
+	
+	/**
+	 * Gives the objects which cannot move IDs made from the given name, such
+	 * as the game's, and their class and bounds, in place of random ones, so
+	 * that a level has the same IDs, and so the same StaticBlob hash, every
+	 * time it is built
+	 */
+	public void assignStaticIDs(String name)
+	{
+		ArrayList<GameObject> statics = getStaticObjects();
+		HashMap<String, Integer> seen = new HashMap<String, Integer>();
+		
+		for (GameObject o : statics)
+		{
+			String key = name + " " + o.getClass().getName() + " " + o.x + " " + o.y + " " + o.width + " "
+					+ o.height;
+			
+			// objects alike in all of these are told apart by a count
+			Integer n = seen.get(key);
+			seen.put(key, (n == null) ? 1 : n + 1);
+			
+			removeFromSet(o);
+			o.objectID = UUID.nameUUIDFromBytes((key + " " + ((n == null) ? 0 : n))
+					.getBytes(StandardCharsets.UTF_8));
+			addToSet(o);
+		}
+	}
+	
 	public GameObject getObject(UUID objectID)
 	{
 		lock.readLock().lock();
@@ -114,21 +465,63 @@ public class GameObjectSet implements Serializable
 		return r;
 	}
 	
+	/**
+	 * Returns a new list of the objects which are instances of the given
+	 * class or interface.
+	 */
 	public ArrayList<GameObject> getObjectsOfClass(Class<?> t)
 	{
-		lock.readLock().lock();
-		
-		ArrayList<GameObject> objects = new ArrayList<GameObject>();
+		return new ArrayList<GameObject>(getClassMembers(t).objects);
+	}
+	
+	/**
+	 * Returns a read-only view of the objects which are instances of the given
+	 * class or interface. The view follows later changes to the set, but each
+	 * iteration sees the members as they were when it started.
+	 */
+	public List<GameObject> getObjectsOfClassView(Class<?> t)
+	{
+		return getClassMembers(t).view;
+	}
+	
+	/**
+	 * Performs the given action for each object which is an instance of the
+	 * given class or interface, without copying. Objects added or removed by
+	 * the action do not affect which objects it is called for.
+	 */
+	public void forEachOfClass(Class<?> t, Consumer<? super GameObject> action)
+	{
+		getClassMembers(t).objects.forEach(action);
+	}
+	
+	private ClassMembers getClassMembers(Class<?> t)
+	{
+		ClassMembers m = classIndex.get(t);
 		
-		for (GameObject o : objectMap.values())
+		if (m == null)
 		{
-			if (o.isType(t))
-				objects.add(o);
+			lock.writeLock().lock();
+			
+			m = classIndex.get(t);
+			
+			if (m == null)
+			{
+				ArrayList<GameObject> objects = new ArrayList<GameObject>();
+				
+				for (GameObject o : objectMap.values())
+				{
+					if (o.isType(t))
+						objects.add(o);
+				}
+				
+				m = new ClassMembers(objects);
+				classIndex.put(t, m);
+			}
+			
+			lock.writeLock().unlock();
 		}
-
-		lock.readLock().unlock();
 		
-		return objects;
+		return m;
 	}
 	
 	public boolean contains(GameObject o)
@@ -155,11 +548,18 @@ public class GameObjectSet implements Serializable
 		
 		ArrayList<GameObject> c = new ArrayList<GameObject>();
 		
-		for (GameObject e : objectMap.values())
+		if (index != null)
+		{
+			index.query(x, y, w, h, physOnly, c);
+		}
+		else
 		{
-			if (e.intersects(x, y, w, h) && (!physOnly || e.hasPhysicalCollision()))
+			for (GameObject e : objectMap.values())
 			{
-				c.add(e);
+				if (e.intersects(x, y, w, h) && (!physOnly || e.hasPhysicalCollision()))
+				{
+					c.add(e);
+				}
 			}
 		}
 
@@ -174,14 +574,147 @@ public class GameObjectSet implements Serializable
 		
 		boolean result = false;
 		
-		for (GameObject e : objectMap.values())
+		if (index != null)
+		{
+			result = index.anyPhysical(x, y, w, h);
+		}
+		else
 		{
-			if (e.intersects(x, y, w, h) && e.hasPhysicalCollision())
-				result = true;
+			for (GameObject e : objectMap.values())
+			{
+				if (e.intersects(x, y, w, h) && e.hasPhysicalCollision())
+				{
+					result = true;
+					break;
+				}
+			}
 		}
 		
 		lock.readLock().unlock();
 		
 		return result;
 	}
+	
+	/**
+	 * Moves a box by (dx, dy) and returns where it first touches a physically
+	 * colliding object, or null if the path is clear. Needs only one
+	 * broadphase query, over the bounds of the whole path.
+	 */
+	public SweepResult sweep(double x, double y, double w, double h, double dx, double dy)
+	{
+		SweepResult first = null;
+		
+		for (GameObject e : getColliding(Math.min(x, x + dx), Math.min(y, y + dy),
+				w + Math.abs(dx), h + Math.abs(dy), true))
+		{
+			SweepResult hit = sweep(x, y, w, h, dx, dy, e);
+			
+			if (hit != null && (first == null || hit.getTime() < first.getTime()))
+				first = hit;
+		}
+		
+		return first;
+	}
+	
+	/**
+	 * Moves o by (dx, dy) and returns every other object it touches on the
+	 * way, earliest first.
+	 */
+	public ArrayList<SweepResult> sweepColliding(GameObject o, double dx, double dy, boolean physOnly)
+	{
+		ArrayList<SweepResult> hits = new ArrayList<SweepResult>();
+		
+		for (GameObject e : getColliding(Math.min(o.x, o.x + dx), Math.min(o.y, o.y + dy),
+				o.width + Math.abs(dx), o.height + Math.abs(dy), physOnly))
+		{
+			if (e == o)
+				continue;
+			
+			SweepResult hit = sweep(o.x, o.y, o.width, o.height, dx, dy, e);
+			
+			if (hit != null)
+				hits.add(hit);
+		}
+		
+		Collections.sort(hits, SWEEP_ORDER);
+		
+		return hits;
+	}
+	
+	private static final Comparator<SweepResult> SWEEP_ORDER = new Comparator<SweepResult>()
+	{
+		@Override
+		public int compare(SweepResult a, SweepResult b)
+		{
+			return Double.compare(a.getTime(), b.getTime());
+		}
+	};
+	
+	/**
+	 * Swept test of a moving box against one object. Overlap is strict, as in
+	 * Rectangle2D.intersects(), so boxes which only touch do not collide.
+	 */
+	private static SweepResult sweep(double x, double y, double w, double h,
+			double dx, double dy, GameObject e)
+	{
+		double enterX, exitX, gapX, enterY, exitY, gapY;
+		
+		if (dx > 0)
+		{
+			gapX = e.x - (x + w);
+			enterX = gapX / dx;
+			exitX = ((double) e.x + e.width - x) / dx;
+		}
+		else if (dx < 0)
+		{
+			gapX = x - ((double) e.x + e.width);
+			enterX = gapX / -dx;
+			exitX = (x + w - e.x) / -dx;
+		}
+		else if (x < (double) e.x + e.width && x + w > e.x)
+		{
+			gapX = 0;
+			enterX = Double.NEGATIVE_INFINITY;
+			exitX = Double.POSITIVE_INFINITY;
+		}
+		else
+		{
+			return null;
+		}
+		
+		if (dy > 0)
+		{
+			gapY = e.y - (y + h);
+			enterY = gapY / dy;
+			exitY = ((double) e.y + e.height - y) / dy;
+		}
+		else if (dy < 0)
+		{
+			gapY = y - ((double) e.y + e.height);
+			enterY = gapY / -dy;
+			exitY = (y + h - e.y) / -dy;
+		}
+		else if (y < (double) e.y + e.height && y + h > e.y)
+		{
+			gapY = 0;
+			enterY = Double.NEGATIVE_INFINITY;
+			exitY = Double.POSITIVE_INFINITY;
+		}
+		else
+		{
+			return null;
+		}
+		
+		double enter = Math.max(enterX, enterY);
+		double exit = Math.min(exitX, exitY);
+		
+		if (enter >= exit || enter >= 1 || exit <= 0)
+			return null;
+		
+		// the axis entered last is the one the boxes meet on
+		if (enterX >= enterY)
+			return new SweepResult(e, Math.max(enter, 0), Math.max(gapX, 0), dx > 0 ? -1 : 1, 0);
+		else
+			return new SweepResult(e, Math.max(enter, 0), Math.max(gapY, 0), 0, dy > 0 ? -1 : 1);
+	}
 }
@@ -1,7 +1,7 @@
 package engine.gameObjects;
 
 import engine.GameInstance;
-import engine.ScriptManager;
+import engine.gameObjects.objectClasses.Behavior;
 import engine.gameObjects.objectClasses.PhysicsObject;
 
 public class HorizontalMovingBlock extends Block implements PhysicsObject
@@ -21,41 +21,13 @@ public class HorizontalMovingBlock extends Block implements PhysicsObject
 		height = 10;
 	}
 	
-	private void exposeScriptingObjects(GameInstance instance)
-	{
-		ScriptManager.bindArgument("movementDirection", movementDirection);
-		ScriptManager.bindArgument("movementSpeed", movementSpeed);
-		ScriptManager.bindArgument("hSpeed", hSpeed);
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("height", height);
-		ScriptManager.bindArgument("width", width);
-		
-		// objects that will not have their values updated after running the script
-		ScriptManager.bindArgument("instance", instance);
-		ScriptManager.bindArgument("this", this);
-	}
-	
-	private void updateValues()
-	{
-		movementDirection = ((Number) ScriptManager.retrieveValue("movementDirection")).intValue();
-		movementSpeed = ((Number) ScriptManager.retrieveValue("movementSpeed")).floatValue();
-		hSpeed = ((Number) ScriptManager.retrieveValue("hSpeed")).floatValue();
-		x = ((Number) ScriptManager.retrieveValue("x")).floatValue();
-		y = ((Number) ScriptManager.retrieveValue("y")).floatValue();
-		height = ((Number) ScriptManager.retrieveValue("height")).floatValue();
-		width = ((Number) ScriptManager.retrieveValue("width")).floatValue();
-	}
-	
 	@Override
 	public synchronized void doPhysics(GameInstance instance)
 	{
-		ScriptManager.lock();
-		exposeScriptingObjects(instance);
-		ScriptManager.loadScript("platformer/movingBlock_behaviour.js");
-		updateValues();
-		ScriptManager.clearBindings();
-		ScriptManager.unlock();
+		Behavior<HorizontalMovingBlock> behavior = instance.getBehavior(HorizontalMovingBlock.class);
+		
+		if (behavior != null)
+			behavior.update(this, instance);
 	}
 
 	public int getMovementDirection()
@@ -73,4 +45,14 @@ public class HorizontalMovingBlock extends Block implements PhysicsObject
 		this.movementDirection = movementDirection;
 	}
 	
+	public float getHSpeed()
+	{
+		return hSpeed;
+	}
+	
+	public void setHSpeed(float hSpeed)
+	{
+		this.hSpeed = hSpeed;
+	}
+	
 }
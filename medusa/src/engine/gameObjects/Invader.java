@@ -2,6 +2,7 @@ package engine.gameObjects;
 
 import engine.GameInstance;
 import engine.ScriptManager;
+import engine.gameObjects.objectClasses.Behavior;
 import engine.gameObjects.objectClasses.Killable;
 import engine.gameObjects.objectClasses.PhysicsObject;
 import engine.gameObjects.objectClasses.RenderableObject;
@@ -25,6 +26,8 @@ public class Invader extends GameObject implements PhysicsObject, RenderableObje
 	
 	private static float fleetSpeed = 5f;
 	
+	private static final String DISPLAY = "invaders/invader_display.js";
+	
 	public Invader(int sX, int sY)
 	{
 		super(sX, sY);
@@ -35,72 +38,66 @@ public class Invader extends GameObject implements PhysicsObject, RenderableObje
 	@Override
 	public void display(GameInstance parent)
 	{
-		ScriptManager.lock();
-		
-		ScriptManager.bindArgument("parent", parent);
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("width", width);
-		ScriptManager.bindArgument("height", height);
-		
-		ScriptManager.loadScript("invaders/invader_display.js");
-		
-		ScriptManager.clearBindings();
+		ScriptManager.invokeScriptFunction(DISPLAY, "display", this, parent);
+	}
+	
+	@Override
+	public void doPhysics(GameInstance instance)
+	{
+		Behavior<Invader> behavior = instance.getBehavior(Invader.class);
 		
-		ScriptManager.unlock();
+		if (behavior != null)
+			behavior.update(this, instance);
 	}
 	
-	private void exposeScriptingObjects(GameInstance instance)
+	/**
+	 * Gets the time at which the fleet will next turn around. Replays keep a
+	 * separate turn time from the live game.
+	 */
+	public long getTurnTime(GameInstance instance)
 	{
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("width", width);
-		ScriptManager.bindArgument("height", height);
-		if(!instance.replayManager.isPlaying())
-		{
-			ScriptManager.bindArgument("turnTime", turnTime);
-		}
+		if (!instance.replayManager.isPlaying())
+			return turnTime;
 		else
-		{
-			ScriptManager.bindArgument("turnTime", rTurnTime);
-		}
-		ScriptManager.bindArgument("thisLastTurned", thisLastTurned);
-		ScriptManager.bindArgument("movementDelay", movementDelay);
-		ScriptManager.bindArgument("fleetSpeed", fleetSpeed);
-		ScriptManager.bindArgument("movementDirection", movementDirection);
-
-		ScriptManager.bindArgument("invader", this);
-		ScriptManager.bindArgument("objectMap", instance.getObjectMap());
-		ScriptManager.bindArgument("instance", instance);
+			return rTurnTime;
 	}
 	
-	private void updateValues(GameInstance instance)
+	public void setTurnTime(GameInstance instance, long time)
 	{
-		x = ((Number) ScriptManager.retrieveValue("x")).floatValue();
-		y = ((Number) ScriptManager.retrieveValue("y")).floatValue();
-		height = ((Number) ScriptManager.retrieveValue("height")).floatValue();
-		width = ((Number) ScriptManager.retrieveValue("width")).floatValue();
-		if(!instance.replayManager.isPlaying())
-			turnTime = ((Number) ScriptManager.retrieveValue("turnTime")).longValue();
+		if (!instance.replayManager.isPlaying())
+			turnTime = time;
 		else
-			rTurnTime = ((Number) ScriptManager.retrieveValue("turnTime")).longValue();
-		thisLastTurned = ((Number) ScriptManager.retrieveValue("thisLastTurned")).longValue();
-		fleetSpeed = ((Number) ScriptManager.retrieveValue("fleetSpeed")).floatValue();
-		movementDirection = ((Number) ScriptManager.retrieveValue("movementDirection")).intValue();
-		movementDelay = ((Number) ScriptManager.retrieveValue("movementDelay")).floatValue();
+			rTurnTime = time;
 	}
 	
-	@Override
-	public void doPhysics(GameInstance instance)
+	public long getLastTurned()
 	{
-		ScriptManager.lock();
-		exposeScriptingObjects(instance);
-		
-		ScriptManager.loadScript("invaders/invader_behaviour.js");
-		
-		updateValues(instance);
-		ScriptManager.clearBindings();
-		ScriptManager.unlock();
+		return thisLastTurned;
+	}
+	
+	public void setLastTurned(long time)
+	{
+		thisLastTurned = time;
+	}
+	
+	public float getMovementDelay()
+	{
+		return movementDelay;
+	}
+	
+	public float getFleetSpeed()
+	{
+		return fleetSpeed;
+	}
+	
+	public int getMovementDirection()
+	{
+		return movementDirection;
+	}
+	
+	public void setMovementDirection(int movementDirection)
+	{
+		this.movementDirection = movementDirection;
 	}
 
 	@Override
@@ -1,8 +1,10 @@
 package engine.gameObjects;
 
+import java.util.Random;
 import java.util.UUID;
 import engine.GameInstance;
 import engine.ScriptManager;
+import engine.gameObjects.objectClasses.Behavior;
 import engine.gameObjects.objectClasses.Killable;
 import engine.gameObjects.objectClasses.PhysicsObject;
 import engine.gameObjects.objectClasses.RenderableObject;
@@ -19,8 +21,11 @@ public class PlayerObject
 {
 	private static final long serialVersionUID = 6154481363016678189L;
 	
-	private int[] color = { (int) (Math.random() * 255),
-			(int) (Math.random() * 255), (int) (Math.random() * 255) };
+	/**
+	 * Picked from the parent instance's ID rather than at random, so that it
+	 * is the same on every instance. Snapshots do not keep arrays in step.
+	 */
+	private int[] color = colorFor(null);
 			
 	UUID parentInstanceID;
 	
@@ -29,6 +34,11 @@ public class PlayerObject
 	
 	public static final long DEFAULT_RESPAWN = 90;
 	
+	// == SCRIPTS == //
+	
+	private static final String PLATFORM_DISPLAY = "platformer/playerObject_display.js";
+	private static final String INVADERS_DISPLAY = "invaders/playerObject_display.js";
+	
 	static final float DEFAULT_X = 120;
 	static final float DEFAULT_Y = 100;
 	
@@ -158,6 +168,14 @@ public class PlayerObject
 	public void setParentInstanceID(UUID id)
 	{
 		this.parentInstanceID = id;
+		this.color = colorFor(id);
+	}
+	
+	private static int[] colorFor(UUID id)
+	{
+		Random r = new Random((id == null) ? 0 : id.getMostSignificantBits() ^ id.getLeastSignificantBits());
+		
+		return new int[] { r.nextInt(255), r.nextInt(255), r.nextInt(255) };
 	}
 	
 	/*
@@ -167,25 +185,10 @@ public class PlayerObject
 	 */
 	public void display(GameInstance parent)
 	{
-		ScriptManager.lock();
-		
-		ScriptManager.bindArgument("parent", parent);
-		ScriptManager.bindArgument("r", color[0]);
-		ScriptManager.bindArgument("g", color[1]);
-		ScriptManager.bindArgument("b", color[2]);
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("width", width);
-		ScriptManager.bindArgument("height", height);
-		
 		if (parent.getGameTitle().equals("platform"))
-			ScriptManager.loadScript("platformer/playerObject_display.js");
+			ScriptManager.invokeScriptFunction(PLATFORM_DISPLAY, "display", this, parent);
 		else if (parent.getGameTitle().equals("invaders"))
-			ScriptManager.loadScript("invaders/playerObject_display.js");
-		
-		ScriptManager.clearBindings();
-		
-		ScriptManager.unlock();
+			ScriptManager.invokeScriptFunction(INVADERS_DISPLAY, "display", this, parent);
 	}
 	
 	public void setLeftPressed(boolean leftPressed)
@@ -212,62 +215,13 @@ public class PlayerObject
 		}
 	}
 	
-	private void exposeScriptingObjects(GameInstance instance)
-	{	
-		ScriptManager.bindArgument("movementDirection", movementDirection);
-		ScriptManager.bindArgument("leftPressed", leftPressed);
-		ScriptManager.bindArgument("rightPressed", rightPressed);
-		ScriptManager.bindArgument("jumpPressed", jumpPressed);
-		ScriptManager.bindArgument("movementSpeed", movementSpeed);
-		ScriptManager.bindArgument("hSpeed", hSpeed);
-		ScriptManager.bindArgument("vSpeed", vSpeed);
-		ScriptManager.bindArgument("maxFallSpeed", maxFallSpeed);
-		ScriptManager.bindArgument("gravity", gravity);
-		ScriptManager.bindArgument("canJump", canJump);
-		ScriptManager.bindArgument("jumpSpeed", jumpSpeed);
-		ScriptManager.bindArgument("x", x);
-		ScriptManager.bindArgument("y", y);
-		ScriptManager.bindArgument("height", height);
-		ScriptManager.bindArgument("width", width);
-		
-		// objects that will not have their values updated after running the script
-		ScriptManager.bindArgument("instance", instance);
-		ScriptManager.bindArgument("player", this);
-	}
-	
-	private void updateValues()
-	{
-		movementDirection = ((Number) ScriptManager.retrieveValue("movementDirection")).intValue();
-		leftPressed = (boolean) ScriptManager.retrieveValue("leftPressed");
-		rightPressed = (boolean) ScriptManager.retrieveValue("rightPressed");
-		jumpPressed = (boolean) ScriptManager.retrieveValue("jumpPressed");
-		movementSpeed = ((Number) ScriptManager.retrieveValue("movementSpeed")).floatValue();
-		hSpeed = ((Number) ScriptManager.retrieveValue("hSpeed")).floatValue();
-		vSpeed = ((Number) ScriptManager.retrieveValue("vSpeed")).floatValue();
-		maxFallSpeed = ((Number) ScriptManager.retrieveValue("maxFallSpeed")).floatValue();
-		gravity = ((Number) ScriptManager.retrieveValue("gravity")).floatValue();
-		jumpSpeed = ((Number) ScriptManager.retrieveValue("jumpSpeed")).floatValue();
-		canJump = (boolean) ScriptManager.retrieveValue("canJump");
-		x = ((Number) ScriptManager.retrieveValue("x")).floatValue();
-		y = ((Number) ScriptManager.retrieveValue("y")).floatValue();
-		height = ((Number) ScriptManager.retrieveValue("height")).floatValue();
-		width = ((Number) ScriptManager.retrieveValue("width")).floatValue();
-	}
-	
 	/** Updates this PlayerObject's position based on its current state. */
 	public synchronized void doPhysics(GameInstance instance)
 	{
-		ScriptManager.lock();
-		exposeScriptingObjects(instance);
+		Behavior<PlayerObject> behavior = instance.getBehavior(PlayerObject.class);
 		
-		if (instance.getGameTitle().equals("platform"))
-			ScriptManager.loadScript("platformer/playerObject_behaviour.js");
-		else if (instance.getGameTitle().equals("invaders"))
-			ScriptManager.loadScript("invaders/playerObject_behaviour.js");
-		
-		updateValues();
-		ScriptManager.clearBindings();
-		ScriptManager.unlock();
+		if (behavior != null)
+			behavior.update(this, instance);
 	}
 	
 	public static PlayerObject createNew()
@@ -362,4 +316,39 @@ public class PlayerObject
 	{
 		return jumpPressed;
 	}
+	
+	public float getMovementSpeed()
+	{
+		return movementSpeed;
+	}
+	
+	public float getMaxFallSpeed()
+	{
+		return maxFallSpeed;
+	}
+	
+	public float getGravity()
+	{
+		return gravity;
+	}
+	
+	public float getJumpSpeed()
+	{
+		return jumpSpeed;
+	}
+	
+	public boolean canJump()
+	{
+		return canJump;
+	}
+	
+	public void setCanJump(boolean canJump)
+	{
+		this.canJump = canJump;
+	}
+	
+	public int[] getColor()
+	{
+		return color;
+	}
 }
@@ -0,0 +1,347 @@
+package engine.gameObjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Uniform grid broadphase. Each object is stored in every cell its bounds
+ * overlap, so a query only has to test the objects in the cells covered by
+ * the query rectangle. Works best when objects are spread evenly and are
+ * not much larger than a cell.
+ */
+public class SpatialHashGrid implements SpatialIndex
+{
+	/**
+	 * Objects covering more than this many cells are kept in a separate list
+	 * which is tested on every query, instead of being copied into each cell.
+	 */
+	private static final int MAX_CELLS_PER_OBJECT = 64;
+	
+	private final float cellSize;
+	
+	private CellMap cells = new CellMap();
+	
+	private HashMap<UUID, Entry> entries = new HashMap<UUID, Entry>();
+	
+	private ArrayList<Entry> oversized = new ArrayList<Entry>();
+	
+	private ArrayList<Entry> mobile = new ArrayList<Entry>();
+	
+	private static class Entry
+	{
+		GameObject object;
+		int minX, minY, maxX, maxY;
+		boolean isOversized;
+		
+		Entry(GameObject object)
+		{
+			this.object = object;
+		}
+	}
+	
+	/** The entries in one cell, which is found by its key */
+	private static class Cell extends ArrayList<Entry>
+	{
+		private static final long serialVersionUID = -6971112786258688449L;
+		
+		final long key;
+		
+		Cell(long key)
+		{
+			super(4);
+			this.key = key;
+		}
+	}
+	
+	/**
+	 * Cells by key, in an open addressed table, so that looking one up does
+	 * not box its key. Cells are never removed, except all at once by clear().
+	 */
+	private static class CellMap
+	{
+		private Cell[] table = new Cell[256];
+		
+		private int size = 0;
+		
+		Cell get(long key)
+		{
+			int mask = table.length - 1;
+			
+			for (int i = slot(key, mask);; i = (i + 1) & mask)
+			{
+				Cell c = table[i];
+				
+				if (c == null || c.key == key)
+					return c;
+			}
+		}
+		
+		/** Returns the cell with the given key, adding an empty one if there is none */
+		Cell getOrAdd(long key)
+		{
+			Cell c = get(key);
+			
+			if (c != null)
+				return c;
+			
+			// kept at most half full, so that probes stay short
+			if (++size * 2 > table.length)
+				resize();
+			
+			c = new Cell(key);
+			put(table, c);
+			
+			return c;
+		}
+		
+		void clear()
+		{
+			Arrays.fill(table, null);
+			size = 0;
+		}
+		
+		private void resize()
+		{
+			Cell[] old = table;
+			
+			table = new Cell[old.length * 2];
+			
+			for (Cell c : old)
+			{
+				if (c != null)
+					put(table, c);
+			}
+		}
+		
+		private static void put(Cell[] table, Cell c)
+		{
+			int mask = table.length - 1;
+			int i = slot(c.key, mask);
+			
+			while (table[i] != null)
+				i = (i + 1) & mask;
+			
+			table[i] = c;
+		}
+		
+		private static int slot(long key, int mask)
+		{
+			// neighbouring cells differ in the low bits of either half
+			long h = key * 0x9E3779B97F4A7C15L;
+			
+			return (int) (h >>> 32) & mask;
+		}
+	}
+	
+	public SpatialHashGrid(float cellSize)
+	{
+		this.cellSize = cellSize;
+	}
+	
+	public float getCellSize()
+	{
+		return cellSize;
+	}
+	
+	@Override
+	public void insert(GameObject o, boolean canMove)
+	{
+		remove(o);
+		
+		Entry e = new Entry(o);
+		
+		entries.put(o.objectID, e);
+		
+		if (canMove)
+			mobile.add(e);
+		
+		place(e);
+	}
+	
+	@Override
+	public void remove(GameObject o)
+	{
+		Entry e = entries.remove(o.objectID);
+		
+		if (e != null)
+		{
+			unplace(e);
+			mobile.remove(e);
+		}
+	}
+	
+	@Override
+	public void update(GameObject o)
+	{
+		Entry e = entries.get(o.objectID);
+		
+		if (e != null)
+			update(e);
+	}
+	
+	@Override
+	public void updateMobile()
+	{
+		for (int i = 0; i < mobile.size(); i++)
+			update(mobile.get(i));
+	}
+	
+	@Override
+	public void clear()
+	{
+		cells.clear();
+		entries.clear();
+		oversized.clear();
+		mobile.clear();
+	}
+	
+	@Override
+	public void query(double x, double y, double w, double h, boolean physOnly,
+			ArrayList<GameObject> out)
+	{
+		for (int i = 0; i < oversized.size(); i++)
+		{
+			Entry e = oversized.get(i);
+			
+			if (e.object.intersects(x, y, w, h) && (!physOnly || e.object.hasPhysicalCollision()))
+				out.add(e.object);
+		}
+		
+		int qMinX = cell(x), qMinY = cell(y);
+		int qMaxX = cell(x + w), qMaxY = cell(y + h);
+		
+		for (int cx = qMinX; cx <= qMaxX; cx++)
+		{
+			for (int cy = qMinY; cy <= qMaxY; cy++)
+			{
+				Cell cell = cells.get(key(cx, cy));
+				
+				if (cell == null)
+					continue;
+				
+				for (int i = 0; i < cell.size(); i++)
+				{
+					Entry e = cell.get(i);
+					
+					// an object spanning several cells is only reported from the
+					// first cell it shares with the query
+					if (cx != Math.max(qMinX, e.minX) || cy != Math.max(qMinY, e.minY))
+						continue;
+					
+					if (e.object.intersects(x, y, w, h) && (!physOnly || e.object.hasPhysicalCollision()))
+						out.add(e.object);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public boolean anyPhysical(double x, double y, double w, double h)
+	{
+		for (int i = 0; i < oversized.size(); i++)
+		{
+			Entry e = oversized.get(i);
+			
+			if (e.object.intersects(x, y, w, h) && e.object.hasPhysicalCollision())
+				return true;
+		}
+		
+		int qMinX = cell(x), qMinY = cell(y);
+		int qMaxX = cell(x + w), qMaxY = cell(y + h);
+		
+		for (int cx = qMinX; cx <= qMaxX; cx++)
+		{
+			for (int cy = qMinY; cy <= qMaxY; cy++)
+			{
+				Cell cell = cells.get(key(cx, cy));
+				
+				if (cell == null)
+					continue;
+				
+				for (int i = 0; i < cell.size(); i++)
+				{
+					GameObject o = cell.get(i).object;
+					
+					if (o.intersects(x, y, w, h) && o.hasPhysicalCollision())
+						return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	private void update(Entry e)
+	{
+		GameObject o = e.object;
+		
+		if (cell(o.x) == e.minX && cell(o.y) == e.minY
+				&& cell(o.x + o.width) == e.maxX && cell(o.y + o.height) == e.maxY)
+			return;
+		
+		unplace(e);
+		place(e);
+	}
+	
+	private void place(Entry e)
+	{
+		GameObject o = e.object;
+		
+		e.minX = cell(o.x);
+		e.minY = cell(o.y);
+		e.maxX = cell(o.x + o.width);
+		e.maxY = cell(o.y + o.height);
+		
+		long count = (long) (e.maxX - e.minX + 1) * (e.maxY - e.minY + 1);
+		
+		if (count > MAX_CELLS_PER_OBJECT)
+		{
+			e.isOversized = true;
+			oversized.add(e);
+			return;
+		}
+		
+		e.isOversized = false;
+		
+		for (int cx = e.minX; cx <= e.maxX; cx++)
+		{
+			for (int cy = e.minY; cy <= e.maxY; cy++)
+			{
+				cells.getOrAdd(key(cx, cy)).add(e);
+			}
+		}
+	}
+	
+	private void unplace(Entry e)
+	{
+		if (e.isOversized)
+		{
+			oversized.remove(e);
+			return;
+		}
+		
+		for (int cx = e.minX; cx <= e.maxX; cx++)
+		{
+			for (int cy = e.minY; cy <= e.maxY; cy++)
+			{
+				// empty cells are kept, since moving objects tend to come back
+				Cell cell = cells.get(key(cx, cy));
+				
+				if (cell != null)
+					cell.remove(e);
+			}
+		}
+	}
+	
+	private int cell(double v)
+	{
+		return (int) Math.floor(v / cellSize);
+	}
+	
+	private static long key(int cx, int cy)
+	{
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,48 @@
+package engine.gameObjects;
+
+import java.util.ArrayList;
+
+/**
+ * Broadphase used by GameObjectSet to answer collision queries without
+ * testing every object. Implementations are not thread safe; GameObjectSet
+ * guards them with its own lock.
+ */
+public interface SpatialIndex
+{
+	/** The available SpatialIndex implementations */
+	public enum Type
+	{
+		/** No index; every query scans the whole set */
+		NONE,
+		/** Uniform grid (SpatialHashGrid) */
+		GRID,
+		/** Dynamic bounding volume tree (DynamicAabbTree) */
+		TREE
+	}
+	
+	/**
+	 * Adds an object to the index. Objects which can move are re-checked by
+	 * updateMobile().
+	 */
+	public void insert(GameObject o, boolean canMove);
+	
+	public void remove(GameObject o);
+	
+	/** Brings the index up to date with an object's current bounds */
+	public void update(GameObject o);
+	
+	/** Calls update() for every object inserted as able to move */
+	public void updateMobile();
+	
+	public void clear();
+	
+	/** Collects the objects intersecting the given rectangle into out */
+	public void query(double x, double y, double w, double h, boolean physOnly,
+			ArrayList<GameObject> out);
+	
+	/**
+	 * Returns true as soon as any physically colliding object intersects the
+	 * given rectangle.
+	 */
+	public boolean anyPhysical(double x, double y, double w, double h);
+}
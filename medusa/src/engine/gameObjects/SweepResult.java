@@ -0,0 +1,62 @@
+package engine.gameObjects;
+
+/**
+ * Where a moving box first touches an object, as found by
+ * GameObjectSet.sweep().
+ */
+public class SweepResult
+{
+	private GameObject object;
+	
+	private double time;
+	
+	private double distance;
+	
+	private int normalX, normalY;
+	
+	SweepResult(GameObject object, double time, double distance, int normalX, int normalY)
+	{
+		this.object = object;
+		this.time = time;
+		this.distance = distance;
+		this.normalX = normalX;
+		this.normalY = normalY;
+	}
+	
+	/** The object which was hit */
+	public GameObject getObject()
+	{
+		return object;
+	}
+	
+	/**
+	 * Fraction of the movement, from 0 to 1, completed before the boxes
+	 * start to overlap. 0 if they already overlapped.
+	 */
+	public double getTime()
+	{
+		return time;
+	}
+	
+	/**
+	 * Gap between the two boxes along the normal's axis before moving, i.e.
+	 * how far the box can move before it touches the object. 0 if they
+	 * already overlapped.
+	 */
+	public double getDistance()
+	{
+		return distance;
+	}
+	
+	/** X component of the contact normal, pointing away from the object */
+	public int getNormalX()
+	{
+		return normalX;
+	}
+	
+	/** Y component of the contact normal, pointing away from the object */
+	public int getNormalY()
+	{
+		return normalY;
+	}
+}
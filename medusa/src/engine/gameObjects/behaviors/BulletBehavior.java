@@ -0,0 +1,43 @@
+package engine.gameObjects.behaviors;
+
+import java.util.ArrayList;
+import engine.GameInstance;
+import engine.gameEvents.CollisionEvent;
+import engine.gameEvents.DeathEvent;
+import engine.gameObjects.Bullet;
+import engine.gameObjects.SweepResult;
+import engine.gameObjects.objectClasses.Behavior;
+
+/**
+ * Straight-line upward movement for Bullets. Java implementation of
+ * invaders/bullet_behaviour.js.
+ */
+public class BulletBehavior implements Behavior<Bullet>
+{
+	@Override
+	public void update(Bullet bullet, GameInstance instance)
+	{
+		double y = (double) bullet.y - bullet.getSpeed();
+		
+		if (y <= -10)
+		{
+			instance.queueEvent(new DeathEvent(instance.getCurrentTime() + 1,
+					bullet.getParentInstanceID(), bullet.getID()), false);
+		}
+		
+		// swept, so that fast bullets cannot pass through an object between
+		// ticks; only the first objects reached on the way are hit
+		ArrayList<SweepResult> hits = instance.sweepColliding(bullet, 0, -bullet.getSpeed());
+		
+		for (SweepResult hit : hits)
+		{
+			if (hit.getTime() > hits.get(0).getTime())
+				break;
+			
+			instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
+					bullet.getParentInstanceID(), bullet.getID(), hit.getObject().getID()), false);
+		}
+		
+		bullet.y = (float) y;
+	}
+}
@@ -0,0 +1,90 @@
+package engine.gameObjects.behaviors;
+
+import java.util.ArrayList;
+import engine.GameInstance;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.Invader;
+import engine.gameObjects.PlayerObject;
+import engine.gameObjects.TextObject;
+import engine.gameObjects.objectClasses.Behavior;
+
+/**
+ * Fleet movement for Invaders. Java implementation of
+ * invaders/invader_behaviour.js.
+ */
+public class InvaderBehavior implements Behavior<Invader>
+{
+	@Override
+	public void update(Invader invader, GameInstance instance)
+	{
+		long cTime;
+		int pCount;
+		
+		if (!instance.replayManager.isPlaying())
+		{
+			cTime = instance.getCurrentTime();
+			pCount = instance.getPlayerCount();
+		}
+		else
+		{
+			cTime = instance.replayManager.getReplayTime();
+			pCount = instance.replayManager.getReplayPlayerCount();
+		}
+		
+		double movementDelay = invader.getMovementDelay();
+		long turnTime = invader.getTurnTime(instance);
+		int movementDirection = invader.getMovementDirection();
+		
+		if (cTime % movementDelay == 0)
+		{
+			if (cTime >= turnTime && turnTime > invader.getLastTurned())
+			{
+				if (pCount > 0)
+				{
+					invader.y += 20;
+					
+					if (invader.y > 773)
+					{
+						// remove all the enemies from the map
+						ArrayList<GameObject> objects = new ArrayList<GameObject>(
+								instance.getObjectMap().getFullMap().values());
+						
+						for (GameObject o : objects)
+						{
+							if (o instanceof Invader || o instanceof PlayerObject)
+							{
+								instance.removeFromMap(o);
+							}
+						}
+						
+						// add a game over message to the map
+						instance.addToMap(new TextObject("YOU LOSE", 30, 300, 300, 200, 0, 0));
+					}
+				}
+				
+				invader.setMovementDirection(movementDirection * -1);
+				
+				invader.setLastTurned(cTime);
+			}
+			else
+			{
+				invader.x = (float) (invader.x + (double) invader.getFleetSpeed() * movementDirection);
+				
+				if (movementDirection > 0)
+				{
+					if ((double) invader.x + invader.width > GameInstance.SCREEN_WIDTH - 20)
+					{
+						invader.setTurnTime(instance, (long) (cTime + movementDelay));
+					}
+				}
+				else if (movementDirection < 0)
+				{
+					if (invader.x < 20)
+					{
+						invader.setTurnTime(instance, (long) (cTime + movementDelay));
+					}
+				}
+			}
+		}
+	}
+}
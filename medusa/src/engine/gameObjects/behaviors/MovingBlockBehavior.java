@@ -0,0 +1,67 @@
+package engine.gameObjects.behaviors;
+
+import engine.GameInstance;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.objectClasses.Behavior;
+
+/**
+ * Back-and-forth movement for HorizontalMovingBlocks. Java implementation of
+ * platformer/movingBlock_behaviour.js.
+ */
+public class MovingBlockBehavior implements Behavior<HorizontalMovingBlock>
+{
+	@Override
+	public void update(HorizontalMovingBlock block, GameInstance instance)
+	{
+		double x = block.x;
+		double y = block.y;
+		double width = block.width;
+		double height = block.height;
+		int movementDirection = block.getMovementDirection();
+		
+		double hSpeed = (double) block.getMovementSpeed() * movementDirection;
+		
+		if (movementDirection > 0)
+		{
+			if ((instance.checkForPhysicalCollision(x + width + hSpeed + 1, y,
+					1, height))
+					|| (x + hSpeed + width - 1) > GameInstance.SCREEN_WIDTH)
+			{
+				x = Math.round(x);
+				while ((!instance.checkForPhysicalCollision(x + width
+						+ movementDirection + 1, y, 1, height))
+						&& (x + movementDirection + width - 1) < GameInstance.SCREEN_WIDTH)
+				{
+					x += movementDirection;
+				}
+				hSpeed = 0;
+				
+				movementDirection = -1;
+			}
+		}
+		else if (movementDirection < 0)
+		{
+			if ((instance.checkForPhysicalCollision(x + hSpeed - 1, y,
+					1, height))
+					|| (x + hSpeed - 1) < 0)
+			{
+				x = Math.round(x);
+				while ((!instance.checkForPhysicalCollision(x
+						+ movementDirection - 1, y, 1, height))
+						&& (x + movementDirection - 1) > 0)
+				{
+					x += movementDirection;
+				}
+				hSpeed = 0;
+				
+				movementDirection = 1;
+			}
+		}
+		
+		x += hSpeed;
+		
+		block.x = (float) x;
+		block.setMovementDirection(movementDirection);
+		block.setHSpeed((float) hSpeed);
+	}
+}
@@ -0,0 +1,112 @@
+package engine.gameObjects.behaviors;
+
+import java.util.ArrayList;
+import engine.GameInstance;
+import engine.gameEvents.CollisionEvent;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.PlayerObject;
+import engine.gameObjects.SweepResult;
+import engine.gameObjects.objectClasses.Behavior;
+
+/**
+ * Player movement for the platform game. Java implementation of
+ * platformer/playerObject_behaviour.js; arithmetic is done in doubles so that
+ * the results match the script exactly.
+ */
+public class PlatformerPlayerBehavior implements Behavior<PlayerObject>
+{
+	@Override
+	public void update(PlayerObject player, GameInstance instance)
+	{
+		double x = player.x;
+		double y = player.y;
+		double width = player.width;
+		double height = player.height;
+		double vSpeed = player.getVSpeed();
+		boolean canJump = false;
+		
+		int movementDirection = 0;
+		
+		if (player.isLeftPressed())
+			movementDirection -= 1;
+		if (player.isRightPressed())
+			movementDirection += 1;
+		
+		double hSpeed = (double) player.getMovementSpeed() * movementDirection;
+		
+		if (vSpeed < player.getMaxFallSpeed())
+			vSpeed += player.getGravity();
+		
+		if (instance.checkForPhysicalCollision(x, y + height + 1, width, 1))
+		{
+			canJump = true;
+		}
+		
+		if (canJump && player.isJumpPressed())
+		{
+			vSpeed = -1 * (double) player.getJumpSpeed();
+		}
+		
+		ArrayList<GameObject> standingOn = instance.getPhysicalCollisions(x, y + height
+				+ 1, width, 1);
+		
+		for (GameObject floor : standingOn)
+		{
+			if (floor instanceof HorizontalMovingBlock)
+			{
+				hSpeed += (double) ((HorizontalMovingBlock) floor).getMovementSpeed()
+						* ((HorizontalMovingBlock) floor).getMovementDirection();
+			}
+		}
+		
+		// horizontal collision; stops short of the obstacle, leaving a 1-2 pixel
+		// gap as the pixel-by-pixel stepping this replaces did
+		if (movementDirection != 0)
+		{
+			SweepResult hit = instance.sweepForPhysicalCollision(x, y, width, height,
+					movementDirection * (Math.max(hSpeed * movementDirection, 0) + 1), 0);
+			
+			if (hit != null)
+			{
+				if (hit.getDistance() >= 2)
+					x += movementDirection * (Math.floor(hit.getDistance()) - 1);
+				
+				hSpeed = 0;
+			}
+		}
+		
+		double vDirection = Math.signum(vSpeed);
+		// vertical collision
+		if (vDirection != 0)
+		{
+			SweepResult hit = instance.sweepForPhysicalCollision(x, y, width, height,
+					0, vDirection * (Math.abs(vSpeed) + 1));
+			
+			if (hit != null)
+			{
+				if (hit.getDistance() >= 2)
+					y += vDirection * (Math.floor(hit.getDistance()) - 1);
+				
+				vSpeed = 0;
+			}
+		}
+		
+		x = x + hSpeed;
+		y += vSpeed;
+		
+		// handle Non-Physical collisions
+		for (GameObject e : instance.getColliding(player))
+		{
+			instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
+					player.getParentInstanceID(), player.getID(), e.getID()), false);
+		}
+		
+		player.x = (float) x;
+		player.y = (float) y;
+		player.setMovementDirection(movementDirection);
+		player.setHSpeed((float) hSpeed);
+		player.setVSpeed((float) vSpeed);
+		player.setCanJump(canJump);
+	}
+}
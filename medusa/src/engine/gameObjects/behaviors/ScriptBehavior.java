@@ -0,0 +1,32 @@
+package engine.gameObjects.behaviors;
+
+import engine.GameInstance;
+import engine.ScriptManager;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.objectClasses.Behavior;
+
+/**
+ * A behavior which runs the update function of a behaviour script.
+ * 
+ * @see ScriptManager#invokeScriptFunction(String, String, Object...)
+ */
+public class ScriptBehavior<T extends GameObject> implements Behavior<T>
+{
+	private String scriptName;
+	
+	public ScriptBehavior(String scriptName)
+	{
+		this.scriptName = scriptName;
+	}
+	
+	public String getScriptName()
+	{
+		return scriptName;
+	}
+	
+	@Override
+	public void update(T self, GameInstance instance)
+	{
+		ScriptManager.invokeScriptFunction(scriptName, "update", self, instance);
+	}
+}
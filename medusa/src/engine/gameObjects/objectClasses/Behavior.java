@@ -0,0 +1,14 @@
+package engine.gameObjects.objectClasses;
+
+import engine.GameInstance;
+import engine.gameObjects.GameObject;
+
+/**
+ * Per-tick logic for a class of PhysicsObject. The behavior used for each
+ * class is chosen by the game instance, so that a game can swap the built-in
+ * Java implementation for a script.
+ */
+public interface Behavior<T extends GameObject>
+{
+	public void update(T self, GameInstance instance);
+}
@@ -0,0 +1,103 @@
+package engine.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the StaticBlobs a client has been sent, in files named by their
+ * hashes, so that a client which joins the same level again is not sent it
+ * again. Only the MAX_ENTRIES most recently used are kept.
+ */
+public class BlobCache
+{
+	private static final String CACHE_DIRECTORY = "cache/";
+	
+	/** Most blobs kept; the least recently used are deleted beyond this */
+	public static final int MAX_ENTRIES = 16;
+	
+	private static final Comparator<File> OLDEST_FIRST = new Comparator<File>()
+	{
+		@Override
+		public int compare(File a, File b)
+		{
+			return Long.compare(a.lastModified(), b.lastModified());
+		}
+	};
+	
+	private final File directory;
+	
+	public BlobCache()
+	{
+		this(new File(CACHE_DIRECTORY));
+	}
+	
+	public BlobCache(File directory)
+	{
+		this.directory = directory;
+	}
+	
+	/**
+	 * Returns the cached blob with the given hash, or null if there is none,
+	 * or if its file no longer matches the hash
+	 */
+	public byte[] get(byte[] hash)
+	{
+		File file = new File(directory, StaticBlob.toHex(hash));
+		
+		if (!file.isFile())
+			return null;
+		
+		try
+		{
+			byte[] b = Files.readAllBytes(file.toPath());
+			
+			if (!StaticBlob.matches(b, hash))
+			{
+				file.delete();
+				return null;
+			}
+			
+			// marks it as used, so that it is the last to be pruned
+			file.setLastModified(System.currentTimeMillis());
+			
+			return b;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+	
+	/** Caches a blob; failing to is not an error, as it can be sent again */
+	public void put(byte[] hash, byte[] b)
+	{
+		try
+		{
+			Files.createDirectories(directory.toPath());
+			Files.write(new File(directory, StaticBlob.toHex(hash)).toPath(), b);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not cache the level: " + e.getMessage());
+		}
+		
+		prune();
+	}
+	
+	/** Deletes the least recently used blobs beyond MAX_ENTRIES */
+	private void prune()
+	{
+		File[] files = directory.listFiles();
+		
+		if (files == null || files.length <= MAX_ENTRIES)
+			return;
+		
+		Arrays.sort(files, OLDEST_FIRST);
+		
+		for (int i = 0; i < files.length - MAX_ENTRIES; i++)
+			files[i].delete();
+	}
+}
@@ -0,0 +1,64 @@
+package engine.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap ByteBuffers of one size, so that encoding a message does not
+ * allocate a new buffer each time. Buffers of other sizes can be released
+ * into the pool, but are dropped.
+ */
+public class BufferPool
+{
+	/** Buffers kept beyond this are left to the garbage collector */
+	private static final int MAX_POOLED = 256;
+	
+	private final int bufferSize;
+	
+	private ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	private AtomicInteger freeCount = new AtomicInteger();
+	
+	public BufferPool(int bufferSize)
+	{
+		this.bufferSize = bufferSize;
+	}
+	
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	/** Returns a cleared buffer of at least the given size */
+	public ByteBuffer acquire(int size)
+	{
+		if (size > bufferSize)
+			return ByteBuffer.allocate(size);
+		
+		ByteBuffer b = free.poll();
+		
+		if (b == null)
+			return ByteBuffer.allocate(bufferSize);
+		
+		freeCount.decrementAndGet();
+		b.clear();
+		
+		return b;
+	}
+	
+	public ByteBuffer acquire()
+	{
+		return acquire(bufferSize);
+	}
+	
+	/** Returns a buffer to the pool; it must not be used afterwards */
+	public void release(ByteBuffer b)
+	{
+		if (b.capacity() != bufferSize || freeCount.get() >= MAX_POOLED)
+			return;
+		
+		freeCount.incrementAndGet();
+		free.add(b);
+	}
+}
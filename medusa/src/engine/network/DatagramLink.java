@@ -0,0 +1,390 @@
+package engine.network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Carries the events and promises of one connection as datagrams, on a
+ * DatagramTransport, so that a lost packet holds up nothing behind it.
+ * 
+ * Each event is numbered, and every packet carries the oldest events the
+ * peer has not acknowledged, up to REDUNDANT_EVENTS of them, so that an
+ * event lost in one packet usually arrives in the next. The peer takes
+ * events in order, and drops those it already has. A promise is carried
+ * only in a packet with every unacknowledged event, so that it cannot
+ * arrive ahead of an event it covers; as only the latest one matters, it
+ * replaces any before it, and older ones arriving late are ignored.
+ * 
+ * Each packet acknowledges the peer's events and promise, and a packet is
+ * sent again every DatagramTransport.RESEND_INTERVAL while anything is
+ * unacknowledged, so that a game stalled on a lost promise starts again.
+ */
+public class DatagramLink
+{
+	/** Most unacknowledged events sent in each packet */
+	public static final int REDUNDANT_EVENTS = 16;
+	
+	/** Size up to which packets are filled with events */
+	public static final int PACKET_SIZE = 1200;
+	
+	/** Link ID and token */
+	static final int HEADER = 4 + 8;
+	
+	private final DatagramTransport transport;
+	
+	private final NetworkHandler handler;
+	
+	private final int linkID;
+	
+	/** Sent in every packet, so that no one else can send on the link */
+	private final long token;
+	
+	private volatile SocketAddress peer;
+	
+	private volatile boolean closed = false;
+	
+	// == SENDING, GUARDED BY THIS == //
+	
+	/** Events the peer has not acknowledged, oldest first */
+	private ArrayDeque<SharedFrame> unacked = new ArrayDeque<SharedFrame>();
+	
+	/** Sequence number of the first event in unacked */
+	private long firstUnacked = 0;
+	
+	private SharedFrame promise;
+	
+	private long promiseValue = Long.MIN_VALUE;
+	
+	/** The latest promise the peer has acknowledged */
+	private long peerPromise = Long.MIN_VALUE;
+	
+	/** Set when something has been queued since the last packet */
+	private boolean pending = false;
+	
+	private long lastSent = 0;
+	
+	private ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE * 2);
+	
+	// == RECEIVING, ON THE TRANSPORT'S RECEIVE THREAD == //
+	
+	/** Sequence number of the next event expected from the peer */
+	private volatile long expected = 0;
+	
+	/** The latest promise received from the peer */
+	private volatile long promiseReceived = Long.MIN_VALUE;
+	
+	/** Set when something new has arrived which the peer needs to hear of */
+	private volatile boolean ackOwed = false;
+	
+	/** Set once a packet has arrived from the peer */
+	private volatile boolean established = false;
+	
+	// == STATISTICS == //
+	
+	private volatile long packetsSent = 0;
+	private volatile long packetsResent = 0;
+	private volatile long eventsSent = 0;
+	private volatile long eventCopiesSent = 0;
+	private volatile long packetsReceived = 0;
+	private volatile long duplicateEvents = 0;
+	private volatile long stalePromises = 0;
+	
+	DatagramLink(DatagramTransport transport, NetworkHandler handler, int linkID, long token,
+			SocketAddress peer)
+	{
+		this.transport = transport;
+		this.handler = handler;
+		this.linkID = linkID;
+		this.token = token;
+		this.peer = peer;
+	}
+	
+	public int getID()
+	{
+		return linkID;
+	}
+	
+	public long getToken()
+	{
+		return token;
+	}
+	
+	/** Whether a message is sent on a link, rather than on its connection */
+	public static boolean carries(NetworkMessage m)
+	{
+		return m instanceof GameEventMessage || m instanceof TimePromiseMessage;
+	}
+	
+	/**
+	 * Queues a frame holding a message which the link carries, taking over
+	 * the caller's reference to it, to be sent by flush()
+	 */
+	synchronized void queue(SharedFrame frame)
+	{
+		if (closed)
+		{
+			frame.release();
+			return;
+		}
+		
+		NetworkMessage m = frame.getMessage();
+		
+		if (m instanceof TimePromiseMessage)
+		{
+			if (promise != null)
+				promise.release();
+			
+			promise = frame;
+			promiseValue = ((TimePromiseMessage) m).getSafeUntil();
+		}
+		else
+		{
+			unacked.add(frame);
+			eventsSent++;
+		}
+		
+		pending = true;
+	}
+	
+	/** Sends anything queued since the last packet */
+	synchronized void flush()
+	{
+		if (pending)
+			sendPacket();
+	}
+	
+	/**
+	 * Called by the transport every so often, to send again what the peer
+	 * has not acknowledged, and to acknowledge what it sent
+	 */
+	synchronized void resend()
+	{
+		if (closed || System.nanoTime() - lastSent < DatagramTransport.RESEND_INTERVAL * 1000000L)
+			return;
+		
+		if (!unacked.isEmpty() || (promise != null && peerPromise < promiseValue) || ackOwed || pending
+				|| !established)
+		{
+			packetsResent++;
+			sendPacket();
+		}
+	}
+	
+	/** Sends a packet; with no peer yet, it is held until one is heard from */
+	private void sendPacket()
+	{
+		SocketAddress to = peer;
+		
+		if (to == null)
+			return;
+		
+		pending = false;
+		ackOwed = false;
+		lastSent = System.nanoTime();
+		
+		packet.clear();
+		packet.putInt(linkID);
+		packet.putLong(token);
+		
+		MessageCodec.writeVarLong(packet, expected);
+		MessageCodec.writeSignedVarLong(packet, promiseReceived);
+		
+		// as many of the oldest events as fit, at least one
+		int count = 0, size = 0;
+		
+		for (SharedFrame frame : unacked)
+		{
+			int length = frame.getBytes().remaining();
+			
+			if (count == REDUNDANT_EVENTS || (count > 0 && packet.position() + size + length > PACKET_SIZE))
+				break;
+			
+			count++;
+			size += length;
+		}
+		
+		ensureSpace(size + 64 + ((promise == null) ? 0 : promise.getBytes().remaining()));
+		
+		MessageCodec.writeVarLong(packet, firstUnacked);
+		MessageCodec.writeVarLong(packet, count);
+		
+		int n = 0;
+		
+		for (SharedFrame frame : unacked)
+		{
+			if (n++ == count)
+				break;
+			
+			packet.put(frame.getBytes());
+		}
+		
+		eventCopiesSent += count;
+		
+		// the promise only goes with every event it may cover
+		boolean withPromise = promise != null && peerPromise < promiseValue && count == unacked.size();
+		
+		packet.put((byte) (withPromise ? 1 : 0));
+		
+		if (withPromise)
+			packet.put(promise.getBytes());
+		
+		try
+		{
+			transport.send(packet.array(), packet.position(), to);
+			packetsSent++;
+		}
+		catch (IOException e)
+		{
+			// sent again later, as if lost
+			if (transport.isOpen())
+				System.err.println("Could not send a datagram: " + e.getMessage());
+		}
+	}
+	
+	private void ensureSpace(int n)
+	{
+		if (packet.remaining() < n)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(packet.position() + n);
+			
+			packet.flip();
+			larger.put(packet);
+			packet = larger;
+		}
+	}
+	
+	/** Called by the transport with a packet for this link, after its ID */
+	void receive(ByteBuffer b, SocketAddress from) throws IOException
+	{
+		try
+		{
+			if (closed || b.getLong() != token)
+				return;
+			
+			// follows the peer if its address changes
+			peer = from;
+			established = true;
+			packetsReceived++;
+			
+			long ack = MessageCodec.readVarLong(b);
+			long promiseAck = MessageCodec.readSignedVarLong(b);
+			
+			synchronized (this)
+			{
+				while (firstUnacked < ack && !unacked.isEmpty())
+				{
+					unacked.poll().release();
+					firstUnacked++;
+				}
+				
+				peerPromise = Math.max(peerPromise, promiseAck);
+			}
+			
+			long first = MessageCodec.readVarLong(b);
+			long count = MessageCodec.readVarLong(b);
+			boolean gap = false;
+			
+			for (long seq = first; seq < first + count; seq++)
+			{
+				ByteBuffer frame = nextFrame(b);
+				
+				if (seq < expected)
+				{
+					duplicateEvents++;
+				}
+				else if (seq == expected && !gap)
+				{
+					NetworkMessage m = NetworkHandler.CODEC.readMessage(frame);
+					
+					expected++;
+					ackOwed = true;
+					deliver(m);
+				}
+				else
+				{
+					gap = true;
+				}
+			}
+			
+			if (b.get() == 1)
+			{
+				NetworkMessage m = NetworkHandler.CODEC.readMessage(nextFrame(b));
+				long value = ((TimePromiseMessage) m).getSafeUntil();
+				
+				if (gap || value <= promiseReceived)
+				{
+					stalePromises++;
+				}
+				else
+				{
+					promiseReceived = value;
+					ackOwed = true;
+					deliver(m);
+				}
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Datagram ended early", e);
+		}
+		catch (ClassCastException e)
+		{
+			throw new IOException("Datagram promise was not a promise", e);
+		}
+	}
+	
+	/** Returns the next frame in the packet, without its length */
+	private static ByteBuffer nextFrame(ByteBuffer b) throws IOException
+	{
+		int length = MessageCodec.readFrameLength(b);
+		
+		if (length < 0 || length > b.remaining())
+			throw new IOException("Datagram ended early");
+		
+		ByteBuffer frame = b.slice();
+		frame.limit(length);
+		b.position(b.position() + length);
+		
+		return frame;
+	}
+	
+	private void deliver(NetworkMessage m)
+	{
+		if (handler.connected)
+			handler.respondToMessage(m);
+	}
+	
+	/** Stops the link, and releases whatever it still held */
+	synchronized void close()
+	{
+		if (closed)
+			return;
+		
+		closed = true;
+		transport.remove(this);
+		
+		for (SharedFrame frame : unacked)
+			frame.release();
+		
+		unacked.clear();
+		
+		if (promise != null)
+			promise.release();
+		
+		promise = null;
+	}
+	
+	public String getStatistics()
+	{
+		return String.format("%d packets sent (%d again), %d events sent %.2f times each, %d packets received, "
+				+ "%d duplicate events, %d stale promises", packetsSent, packetsResent, eventsSent,
+				(eventsSent == 0) ? 0.0 : (double) eventCopiesSent / eventsSent, packetsReceived,
+				duplicateEvents, stalePromises);
+	}
+}
@@ -0,0 +1,183 @@
+package engine.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A UDP socket shared by the DatagramLinks of one instance: one on a
+ * client, or one for every client on a server. One thread receives packets
+ * and hands each to the link it is addressed to, and another has each link
+ * send again whatever its peer has not acknowledged.
+ */
+public class DatagramTransport
+{
+	/** How long a link waits for an acknowledgement before sending again, in milliseconds */
+	public static final int RESEND_INTERVAL = 30;
+	
+	/** The largest packet which can be received */
+	static final int MAX_PACKET = 65507;
+	
+	private final DatagramSocket socket;
+	
+	private ConcurrentHashMap<Integer, DatagramLink> links = new ConcurrentHashMap<Integer, DatagramLink>();
+	
+	private AtomicInteger nextLinkID = new AtomicInteger(1);
+	
+	private SecureRandom random = new SecureRandom();
+	
+	private volatile boolean open = true;
+	
+	/** Opens a socket on the given port, or on any free port if it is 0 */
+	public DatagramTransport(int port) throws SocketException
+	{
+		socket = new DatagramSocket(port);
+		
+		Thread receiveThread = new Thread("Datagram Receive Thread")
+		{
+			public void run()
+			{
+				receiveLoop();
+			}
+		};
+		
+		Thread resendThread = new Thread("Datagram Resend Thread")
+		{
+			public void run()
+			{
+				resendLoop();
+			}
+		};
+		
+		receiveThread.setDaemon(true);
+		resendThread.setDaemon(true);
+		
+		receiveThread.start();
+		resendThread.start();
+	}
+	
+	public int getPort()
+	{
+		return socket.getLocalPort();
+	}
+	
+	/**
+	 * Creates a link for one of this instance's connections, whose peer is
+	 * found from the first packet it sends. Its ID and token must be sent to
+	 * the peer some other way, e.g. on the connection.
+	 */
+	public DatagramLink createLink(NetworkHandler handler)
+	{
+		DatagramLink link = new DatagramLink(this, handler, nextLinkID.getAndIncrement(),
+				random.nextLong(), null);
+		
+		links.put(link.getID(), link);
+		
+		return link;
+	}
+	
+	/** Creates the other end of a link created by the peer at the given address */
+	public DatagramLink connect(NetworkHandler handler, int linkID, long token, SocketAddress peer)
+	{
+		DatagramLink link = new DatagramLink(this, handler, linkID, token, peer);
+		
+		links.put(linkID, link);
+		
+		return link;
+	}
+	
+	void remove(DatagramLink link)
+	{
+		links.remove(link.getID(), link);
+	}
+	
+	boolean isOpen()
+	{
+		return open;
+	}
+	
+	void send(byte[] b, int length, SocketAddress to) throws IOException
+	{
+		socket.send(new DatagramPacket(b, length, to));
+	}
+	
+	/** Closes the socket; links using it can no longer send or receive */
+	public void close()
+	{
+		open = false;
+		socket.close();
+	}
+	
+	private void receiveLoop()
+	{
+		byte[] buffer = new byte[MAX_PACKET];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		
+		while (open)
+		{
+			try
+			{
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				
+				ByteBuffer b = ByteBuffer.wrap(buffer, 0, packet.getLength());
+				
+				if (b.remaining() < DatagramLink.HEADER)
+					continue;
+				
+				DatagramLink link = links.get(b.getInt());
+				
+				if (link != null)
+					link.receive(b, packet.getSocketAddress());
+			}
+			catch (SocketException e)
+			{
+				if (open)
+					e.printStackTrace();
+			}
+			catch (IOException e)
+			{
+				// a packet which does not parse is dropped, like a lost one
+				System.err.println("Dropped a bad datagram: " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				// one bad message should not stop every link
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void resendLoop()
+	{
+		while (open)
+		{
+			try
+			{
+				Thread.sleep(RESEND_INTERVAL / 2);
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			
+			for (DatagramLink link : links.values())
+			{
+				try
+				{
+					link.resend();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package engine.network;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The fields of a class which snapshots keep track of: every field, of this
+ * class or its superclasses, which is not final or transient and holds a
+ * primitive or a Boolean. Each value is held as a long. The fields are in
+ * the same order on every instance, so that they can be sent by index.
+ * Arrays are not kept track of, so objects should fill them the same way on
+ * every instance.
+ * 
+ * A class has one table for the fields of its objects, and one for its
+ * static fields, for state which is shared by all its objects.
+ */
+public class FieldTable
+{
+	private static ConcurrentHashMap<Class<?>, FieldTable> instanceTables =
+			new ConcurrentHashMap<Class<?>, FieldTable>();
+	
+	private static ConcurrentHashMap<Class<?>, FieldTable> staticTables =
+			new ConcurrentHashMap<Class<?>, FieldTable>();
+	
+	private static final Comparator<Field> BY_NAME = new Comparator<Field>()
+	{
+		@Override
+		public int compare(Field a, Field b)
+		{
+			return a.getName().compareTo(b.getName());
+		}
+	};
+	
+	private final Field[] fields;
+	
+	private FieldTable(ArrayList<Field> fields)
+	{
+		this.fields = fields.toArray(new Field[fields.size()]);
+		
+		for (Field f : this.fields)
+			f.setAccessible(true);
+	}
+	
+	/** Returns the table for the fields of the given class's objects */
+	public static FieldTable forClass(Class<?> c)
+	{
+		FieldTable t = instanceTables.get(c);
+		
+		if (t == null)
+		{
+			t = new FieldTable(findFields(c, false));
+			instanceTables.putIfAbsent(c, t);
+		}
+		
+		return t;
+	}
+	
+	/** Returns the table for the static fields of the given class alone */
+	public static FieldTable forStatics(Class<?> c)
+	{
+		FieldTable t = staticTables.get(c);
+		
+		if (t == null)
+		{
+			t = new FieldTable(findFields(c, true));
+			staticTables.putIfAbsent(c, t);
+		}
+		
+		return t;
+	}
+	
+	private static ArrayList<Field> findFields(Class<?> c, boolean statics)
+	{
+		ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+		
+		if (statics)
+		{
+			classes.add(c);
+		}
+		else
+		{
+			// superclasses first
+			for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass())
+				classes.add(0, k);
+		}
+		
+		ArrayList<Field> r = new ArrayList<Field>();
+		
+		for (Class<?> k : classes)
+		{
+			ArrayList<Field> declared = new ArrayList<Field>();
+			
+			for (Field f : k.getDeclaredFields())
+			{
+				int m = f.getModifiers();
+				
+				if (Modifier.isStatic(m) == statics && !Modifier.isFinal(m) && !Modifier.isTransient(m)
+						&& !f.isSynthetic() && (f.getType().isPrimitive() || f.getType() == Boolean.class))
+					declared.add(f);
+			}
+			
+			// getDeclaredFields() has no set order
+			Collections.sort(declared, BY_NAME);
+			r.addAll(declared);
+		}
+		
+		return r;
+	}
+	
+	public int size()
+	{
+		return fields.length;
+	}
+	
+	public String getName(int i)
+	{
+		return fields[i].getName();
+	}
+	
+	/** Returns the values of every field, from o, or from the class if static */
+	public long[] capture(Object o)
+	{
+		long[] values = new long[fields.length];
+		
+		try
+		{
+			for (int i = 0; i < fields.length; i++)
+				values[i] = get(fields[i], o);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		
+		return values;
+	}
+	
+	/** Sets field i of o, or of the class if static */
+	public void set(Object o, int i, long value)
+	{
+		try
+		{
+			set(fields[i], o, value);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static long get(Field f, Object o) throws IllegalAccessException
+	{
+		Class<?> t = f.getType();
+		
+		if (t == float.class)
+			return Float.floatToIntBits(f.getFloat(o));
+		else if (t == double.class)
+			return Double.doubleToLongBits(f.getDouble(o));
+		else if (t == boolean.class)
+			return f.getBoolean(o) ? 1 : 0;
+		else if (t == Boolean.class)
+		{
+			Boolean b = (Boolean) f.get(o);
+			
+			return (b == null) ? 2 : (b ? 1 : 0);
+		}
+		else if (t == char.class)
+			return f.getChar(o);
+		else
+			return f.getLong(o);
+	}
+	
+	private static void set(Field f, Object o, long v) throws IllegalAccessException
+	{
+		Class<?> t = f.getType();
+		
+		if (t == float.class)
+			f.setFloat(o, Float.intBitsToFloat((int) v));
+		else if (t == double.class)
+			f.setDouble(o, Double.longBitsToDouble(v));
+		else if (t == boolean.class)
+			f.setBoolean(o, v != 0);
+		else if (t == Boolean.class)
+			f.set(o, (v == 2) ? null : Boolean.valueOf(v != 0));
+		else if (t == char.class)
+			f.setChar(o, (char) v);
+		else if (t == byte.class)
+			f.setByte(o, (byte) v);
+		else if (t == short.class)
+			f.setShort(o, (short) v);
+		else if (t == int.class)
+			f.setInt(o, (int) v);
+		else
+			f.setLong(o, v);
+	}
+}
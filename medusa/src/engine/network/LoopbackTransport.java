@@ -0,0 +1,287 @@
+package engine.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import engine.network.messages.NetworkMessage;
+
+/**
+ * Connects a server and its clients within one JVM, e.g. for load tests,
+ * with no sockets. The initial communications go over in-memory pipes, as
+ * they would over a socket. After that, the frames queued on each handler
+ * are taken by one of a few delivery threads, in place of the handler's
+ * input and output threads, and decoded and passed to respondToMessage()
+ * of the handler at the other end.
+ * 
+ * A server takes connections with accept(), as from a ServerSocket, and a
+ * client makes them with connect().
+ */
+public class LoopbackTransport
+{
+	/** Bytes each pipe holds before a writer waits for the reader */
+	private static final int PIPE_SIZE = 1 << 16;
+	
+	private DeliveryThread[] threads;
+	
+	private AtomicInteger nextThread = new AtomicInteger();
+	
+	private LinkedBlockingQueue<Endpoint> pending = new LinkedBlockingQueue<Endpoint>();
+	
+	// == STATISTICS == //
+	
+	private AtomicLong messagesToServer = new AtomicLong();
+	private AtomicLong bytesToServer = new AtomicLong();
+	private AtomicLong messagesToClients = new AtomicLong();
+	private AtomicLong bytesToClients = new AtomicLong();
+	
+	/** One end of a connection, before and after its handler starts using it */
+	public class Endpoint
+	{
+		final InputStream input;
+		
+		final OutputStream output;
+		
+		/** Whether this is the server's end */
+		final boolean accepted;
+		
+		Endpoint peer;
+		
+		/** Set once the handler at this end has started */
+		volatile Connection connection;
+		
+		Endpoint(InputStream input, OutputStream output, boolean accepted)
+		{
+			this.input = input;
+			this.output = output;
+			this.accepted = accepted;
+		}
+	}
+	
+	/** The state of one end once its handler has started */
+	class Connection
+	{
+		final NetworkHandler handler;
+		
+		final Endpoint endpoint;
+		
+		final DeliveryThread thread;
+		
+		/** Set while this connection is waiting in its thread's queue */
+		AtomicBoolean deliveryScheduled = new AtomicBoolean();
+		
+		AtomicBoolean closed = new AtomicBoolean();
+		
+		Connection(NetworkHandler handler, Endpoint endpoint, DeliveryThread thread)
+		{
+			this.handler = handler;
+			this.endpoint = endpoint;
+			this.thread = thread;
+		}
+		
+		/** Has the delivery thread pass on the messages queued on the handler */
+		void scheduleWrite()
+		{
+			if (deliveryScheduled.compareAndSet(false, true))
+				thread.deliveries.add(this);
+		}
+		
+		/** Drops what is queued, and disconnects the other end */
+		void close()
+		{
+			if (!closed.compareAndSet(false, true))
+				return;
+			
+			SharedFrame f;
+			
+			while ((f = handler.messageQueue.poll()) != null)
+				f.release();
+			
+			Connection peer = endpoint.peer.connection;
+			
+			if (peer != null && peer.handler.connected)
+				peer.handler.disconnect();
+		}
+	}
+	
+	/** Starts the given number of delivery threads */
+	public LoopbackTransport(int threadCount)
+	{
+		threads = new DeliveryThread[Math.max(1, threadCount)];
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new DeliveryThread(i);
+			threads[i].start();
+		}
+	}
+	
+	/** Opens a connection to the server taking connections from this transport */
+	public Endpoint connect() throws IOException
+	{
+		PipedInputStream toServer = new PipedInputStream(PIPE_SIZE);
+		PipedInputStream toClient = new PipedInputStream(PIPE_SIZE);
+		
+		Endpoint client = new Endpoint(toClient, new PipedOutputStream(toServer), false);
+		Endpoint server = new Endpoint(toServer, new PipedOutputStream(toClient), true);
+		
+		client.peer = server;
+		server.peer = client;
+		
+		pending.add(server);
+		
+		return client;
+	}
+	
+	/** Waits for a client to connect, and returns the server's end */
+	public Endpoint accept() throws InterruptedException
+	{
+		return pending.take();
+	}
+	
+	/**
+	 * Starts passing messages between a handler and the other end, giving
+	 * connections to the delivery threads in turn. The initial
+	 * communications must be finished.
+	 */
+	void register(NetworkHandler handler, Endpoint endpoint)
+	{
+		DeliveryThread thread = threads[Math.floorMod(nextThread.getAndIncrement(), threads.length)];
+		Connection c = new Connection(handler, endpoint, thread);
+		
+		handler.loopbackConnection = c;
+		endpoint.connection = c;
+		
+		// sends anything queued before now, and anything held for this end
+		c.scheduleWrite();
+		
+		Connection peer = endpoint.peer.connection;
+		
+		if (peer != null)
+			peer.scheduleWrite();
+	}
+	
+	private class DeliveryThread extends Thread
+	{
+		LinkedBlockingQueue<Connection> deliveries = new LinkedBlockingQueue<Connection>();
+		
+		DeliveryThread(int index)
+		{
+			this.setName("Loopback Delivery Thread " + index);
+			this.setDaemon(true);
+		}
+		
+		public void run()
+		{
+			while (true)
+			{
+				Connection c;
+				
+				try
+				{
+					c = deliveries.take();
+				}
+				catch (InterruptedException e)
+				{
+					e.printStackTrace();
+					continue;
+				}
+				
+				c.deliveryScheduled.set(false);
+				
+				deliver(c);
+			}
+		}
+	}
+	
+	/**
+	 * Passes the frames queued on a connection's handler to the other end
+	 * as one batch, unless the other end has not started yet, in which case
+	 * they are left until it does
+	 */
+	private void deliver(Connection c)
+	{
+		Connection peer = c.endpoint.peer.connection;
+		
+		if (c.closed.get() || peer == null)
+			return;
+		
+		int messages = 0;
+		long bytes = 0;
+		SharedFrame f;
+		
+		while ((f = c.handler.messageQueue.poll()) != null)
+		{
+			ByteBuffer frame = f.getBytes();
+			
+			bytes += frame.remaining();
+			messages++;
+			
+			try
+			{
+				MessageCodec.readFrameLength(frame);
+				NetworkMessage m = NetworkHandler.CODEC.readMessage(frame);
+				
+				if (peer.handler.connected)
+					peer.handler.respondToMessage(m);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not decode a message: " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				// one bad message should not stop every connection on this thread
+				e.printStackTrace();
+			}
+			
+			f.release();
+		}
+		
+		c.handler.recordBatch(messages, 0);
+		
+		if (c.endpoint.accepted)
+		{
+			messagesToClients.addAndGet(messages);
+			bytesToClients.addAndGet(bytes);
+		}
+		else
+		{
+			messagesToServer.addAndGet(messages);
+			bytesToServer.addAndGet(bytes);
+		}
+	}
+	
+	/** Bytes of messages passed from clients to the server, after joining */
+	public long getBytesToServer()
+	{
+		return bytesToServer.get();
+	}
+	
+	/** Bytes of messages passed from the server to its clients, after joining */
+	public long getBytesToClients()
+	{
+		return bytesToClients.get();
+	}
+	
+	public long getMessagesToServer()
+	{
+		return messagesToServer.get();
+	}
+	
+	public long getMessagesToClients()
+	{
+		return messagesToClients.get();
+	}
+	
+	public int getThreadCount()
+	{
+		return threads.length;
+	}
+}
@@ -0,0 +1,816 @@
+package engine.network;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import engine.gameEvents.CollisionEvent;
+import engine.gameEvents.DeathEvent;
+import engine.gameEvents.EndReplayEvent;
+import engine.gameEvents.GameEvent;
+import engine.gameEvents.InputEvent;
+import engine.gameEvents.NullEvent;
+import engine.gameObjects.GameObject;
+import engine.network.messages.ClientDisconnectMessage;
+import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.SnapshotAckMessage;
+import engine.network.messages.SnapshotMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Binary encoding of NetworkMessages, used on the wire in place of Java
+ * serialization.
+ * 
+ * A message is written as its type id, from a registry of message formats,
+ * followed by its fields. Ticks and other integers are written as varints,
+ * so that small values take a single byte, and strings found in the string
+ * table (e.g. the standard input names) as their index in it. Messages and
+ * events with no registered format are written with Java serialization, so
+ * that any message can still be sent.
+ * 
+ * Events are sent without their parent events or event IDs, and InputEvents
+ * without their PlayerObject, as receivers look players up by instance ID.
+ * 
+ * On a stream, each message is framed by its length in bytes as a varint.
+ * Formats must be registered before the codec is first used, and in the
+ * same way on both ends.
+ */
+public class MessageCodec
+{
+	/** Type id of messages and events written with Java serialization */
+	private static final int SERIALIZED = 0;
+	
+	/** Longest frame accepted from the network */
+	public static final int MAX_FRAME_LENGTH = 1 << 24;
+	
+	/** Space left before an encoded message for its frame length */
+	private static final int FRAME_HEADER = 5;
+	
+	private static final int DEFAULT_BUFFER_SIZE = 512;
+	
+	/** How one type of message or event is written and read back */
+	public interface Format<T>
+	{
+		void write(MessageCodec codec, T value, ByteBuffer out);
+		
+		T read(MessageCodec codec, ByteBuffer in) throws IOException;
+	}
+	
+	/**
+	 * How the fields of one type of event are written and read back. The
+	 * timestamp, instance ID and priority are handled by the codec.
+	 */
+	public interface EventFormat<E extends GameEvent>
+	{
+		void write(MessageCodec codec, E e, ByteBuffer out);
+		
+		E read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in) throws IOException;
+	}
+	
+	private HashMap<Class<?>, Integer> messageIDs = new HashMap<Class<?>, Integer>();
+	
+	private ArrayList<Format<?>> messageFormats = new ArrayList<Format<?>>();
+	
+	private HashMap<Class<?>, Integer> eventIDs = new HashMap<Class<?>, Integer>();
+	
+	private ArrayList<EventFormat<?>> eventFormats = new ArrayList<EventFormat<?>>();
+	
+	private HashMap<String, Integer> stringIDs = new HashMap<String, Integer>();
+	
+	private ArrayList<String> strings = new ArrayList<String>();
+	
+	private BufferPool pool = new BufferPool(DEFAULT_BUFFER_SIZE);
+	
+	/** Creates a codec with formats for the engine's messages and events */
+	public MessageCodec()
+	{
+		messageFormats.add(null);
+		eventFormats.add(null);
+		
+		registerCoreFormats();
+		
+		for (String s : InputEvent.STANDARD_INPUTS)
+			registerString(s);
+	}
+	
+	public BufferPool getBufferPool()
+	{
+		return pool;
+	}
+	
+	// == REGISTRY == //
+	
+	/** Registers the format used for messages of exactly the given class */
+	public <M extends NetworkMessage> void registerMessage(int id, Class<M> type,
+			Format<? super M> format)
+	{
+		register(id, type, format, messageIDs, messageFormats);
+	}
+	
+	/** Registers the format used for events of exactly the given class */
+	public <E extends GameEvent> void registerEvent(int id, Class<E> type,
+			EventFormat<? super E> format)
+	{
+		register(id, type, format, eventIDs, eventFormats);
+	}
+	
+	private static <F> void register(int id, Class<?> type, F format,
+			HashMap<Class<?>, Integer> ids, ArrayList<F> formats)
+	{
+		if (id <= SERIALIZED || id > 127)
+			throw new IllegalArgumentException("Type ids must be from 1 to 127: " + id);
+		
+		while (formats.size() <= id)
+			formats.add(null);
+		
+		if (formats.get(id) != null || ids.containsKey(type))
+			throw new IllegalArgumentException("Already registered: " + type + " as " + id);
+		
+		formats.set(id, format);
+		ids.put(type, id);
+	}
+	
+	/** Adds a string which will be sent as its index in the string table */
+	public void registerString(String s)
+	{
+		if (!stringIDs.containsKey(s))
+		{
+			stringIDs.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+	
+	// == MESSAGES == //
+	
+	/**
+	 * Encodes a message as a frame, in a buffer from the pool. The frame
+	 * runs from the buffer's position to its limit. The buffer should be
+	 * given back with release() once written.
+	 */
+	public ByteBuffer encode(NetworkMessage m)
+	{
+		ByteBuffer b = pool.acquire();
+		
+		while (true)
+		{
+			try
+			{
+				b.position(FRAME_HEADER);
+				writeMessage(m, b);
+				break;
+			}
+			catch (BufferOverflowException e)
+			{
+				int size = b.capacity() * 2;
+				
+				pool.release(b);
+				b = pool.acquire(size);
+			}
+		}
+		
+		int length = b.position() - FRAME_HEADER;
+		int start = FRAME_HEADER - varLongSize(length);
+		
+		b.limit(b.position());
+		b.position(start);
+		writeVarLong(b, length);
+		b.position(start);
+		
+		return b;
+	}
+	
+	public void release(ByteBuffer b)
+	{
+		pool.release(b);
+	}
+	
+	/** Writes a message without a frame length */
+	@SuppressWarnings("unchecked")
+	public void writeMessage(NetworkMessage m, ByteBuffer out)
+	{
+		Integer id = messageIDs.get(m.getClass());
+		
+		if (id == null)
+		{
+			out.put((byte) SERIALIZED);
+			writeSerialized(m, out);
+		}
+		else
+		{
+			out.put(id.byteValue());
+			((Format<NetworkMessage>) messageFormats.get(id)).write(this, m, out);
+		}
+	}
+	
+	/** Reads a message written by writeMessage() */
+	public NetworkMessage readMessage(ByteBuffer in) throws IOException
+	{
+		try
+		{
+			int id = in.get();
+			
+			if (id == SERIALIZED)
+				return (NetworkMessage) readSerialized(in);
+			
+			Format<?> f = (id > 0 && id < messageFormats.size()) ? messageFormats.get(id) : null;
+			
+			if (f == null)
+				throw new IOException("Unknown message type " + id);
+			
+			return (NetworkMessage) f.read(this, in);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Message ended early", e);
+		}
+	}
+	
+	/** Writes a message to a stream as a frame */
+	public void writeFrame(NetworkMessage m, OutputStream out) throws IOException
+	{
+		ByteBuffer b = encode(m);
+		
+		try
+		{
+			out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		}
+		finally
+		{
+			release(b);
+		}
+	}
+	
+	/** Reads the next frame from a stream, blocking until it is all there */
+	public NetworkMessage readFrame(InputStream in) throws IOException
+	{
+		long length = 0;
+		
+		for (int shift = 0;; shift += 7)
+		{
+			int b = in.read();
+			
+			if (b < 0)
+				throw new EOFException();
+			
+			length |= (long) (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0)
+				break;
+			
+			if (shift > 28)
+				throw new IOException("Bad frame length");
+		}
+		
+		if (length > MAX_FRAME_LENGTH)
+			throw new IOException("Frame too long: " + length);
+		
+		ByteBuffer b = pool.acquire((int) length);
+		
+		try
+		{
+			int n = 0;
+			
+			while (n < length)
+			{
+				int r = in.read(b.array(), b.arrayOffset() + n, (int) length - n);
+				
+				if (r < 0)
+					throw new EOFException();
+				
+				n += r;
+			}
+			
+			b.limit((int) length);
+			
+			return readMessage(b);
+		}
+		finally
+		{
+			pool.release(b);
+		}
+	}
+	
+	/**
+	 * Reads the length at the start of a frame in a buffer. Returns -1, and
+	 * leaves the buffer as it was, if the buffer ends before the length does.
+	 */
+	public static int readFrameLength(ByteBuffer in) throws IOException
+	{
+		int start = in.position();
+		long length = 0;
+		
+		for (int shift = 0; in.hasRemaining(); shift += 7)
+		{
+			byte b = in.get();
+			
+			length |= (long) (b & 0x7F) << shift;
+			
+			if (b >= 0)
+			{
+				if (length > MAX_FRAME_LENGTH)
+					throw new IOException("Frame too long: " + length);
+				
+				return (int) length;
+			}
+			
+			if (shift > 28)
+				throw new IOException("Bad frame length");
+		}
+		
+		in.position(start);
+		
+		return -1;
+	}
+	
+	// == EVENTS == //
+	
+	/** Writes an event, with its timestamp, instance ID and priority */
+	@SuppressWarnings("unchecked")
+	public void writeEvent(GameEvent e, ByteBuffer out)
+	{
+		Integer id = eventIDs.get(e.getClass());
+		
+		if (id == null)
+		{
+			out.put((byte) SERIALIZED);
+			writeSerialized(e, out);
+			return;
+		}
+		
+		out.put(id.byteValue());
+		writeSignedVarLong(out, e.getTimeStamp());
+		writeUUID(out, e.getInstanceID());
+		writeSignedVarLong(out, e.getPriority());
+		
+		((EventFormat<GameEvent>) eventFormats.get(id)).write(this, e, out);
+	}
+	
+	public GameEvent readEvent(ByteBuffer in) throws IOException
+	{
+		int id = in.get();
+		
+		if (id == SERIALIZED)
+			return (GameEvent) readSerialized(in);
+		
+		EventFormat<?> f = (id > 0 && id < eventFormats.size()) ? eventFormats.get(id) : null;
+		
+		if (f == null)
+			throw new IOException("Unknown event type " + id);
+		
+		long ts = readSignedVarLong(in);
+		UUID instanceID = readUUID(in);
+		int priority = (int) readSignedVarLong(in);
+		
+		GameEvent e = f.read(this, ts, instanceID, in);
+		e.setPriority(priority);
+		
+		return e;
+	}
+	
+	// == FIELDS == //
+	
+	public static void writeVarLong(ByteBuffer out, long v)
+	{
+		while ((v & ~0x7FL) != 0)
+		{
+			out.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		
+		out.put((byte) v);
+	}
+	
+	public static long readVarLong(ByteBuffer in) throws IOException
+	{
+		long v = 0;
+		
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.get();
+			
+			v |= (long) (b & 0x7F) << shift;
+			
+			if (b >= 0)
+				return v;
+		}
+		
+		throw new IOException("Bad varint");
+	}
+	
+	private static int varLongSize(long v)
+	{
+		int n = 1;
+		
+		while ((v & ~0x7FL) != 0)
+		{
+			v >>>= 7;
+			n++;
+		}
+		
+		return n;
+	}
+	
+	/** Writes a varint which is short for values near zero of either sign */
+	public static void writeSignedVarLong(ByteBuffer out, long v)
+	{
+		writeVarLong(out, (v << 1) ^ (v >> 63));
+	}
+	
+	public static long readSignedVarLong(ByteBuffer in) throws IOException
+	{
+		long v = readVarLong(in);
+		
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	public static void writeUUID(ByteBuffer out, UUID id)
+	{
+		out.putLong(id.getMostSignificantBits());
+		out.putLong(id.getLeastSignificantBits());
+	}
+	
+	public static UUID readUUID(ByteBuffer in)
+	{
+		return new UUID(in.getLong(), in.getLong());
+	}
+	
+	public static void writeNullableUUID(ByteBuffer out, UUID id)
+	{
+		out.put((byte) (id == null ? 0 : 1));
+		
+		if (id != null)
+			writeUUID(out, id);
+	}
+	
+	public static UUID readNullableUUID(ByteBuffer in)
+	{
+		return (in.get() == 0) ? null : readUUID(in);
+	}
+	
+	/**
+	 * Writes a string as its index in the string table plus one, or as 0
+	 * followed by its UTF-8 bytes if it is not in the table
+	 */
+	public void writeString(ByteBuffer out, String s)
+	{
+		Integer id = stringIDs.get(s);
+		
+		if (id != null)
+		{
+			writeVarLong(out, id + 1);
+		}
+		else
+		{
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			
+			writeVarLong(out, 0);
+			writeVarLong(out, b.length);
+			out.put(b);
+		}
+	}
+	
+	public String readString(ByteBuffer in) throws IOException
+	{
+		long id = readVarLong(in);
+		
+		if (id > 0)
+		{
+			if (id > strings.size())
+				throw new IOException("Unknown string " + id);
+			
+			return strings.get((int) id - 1);
+		}
+		
+		int length = (int) readVarLong(in);
+		
+		if (length < 0 || length > in.remaining())
+			throw new IOException("Bad string length " + length);
+		
+		byte[] b = new byte[length];
+		in.get(b);
+		
+		return new String(b, StandardCharsets.UTF_8);
+	}
+	
+	/** Writes an object with Java serialization, prefixed by its length */
+	public static void writeSerialized(Object o, ByteBuffer out)
+	{
+		byte[] b = serialize(o);
+		
+		writeVarLong(out, b.length);
+		out.put(b);
+	}
+	
+	public static Object readSerialized(ByteBuffer in) throws IOException
+	{
+		int length = (int) readVarLong(in);
+		
+		if (length < 0 || length > in.remaining())
+			throw new IOException("Bad object length " + length);
+		
+		byte[] b = new byte[length];
+		in.get(b);
+		
+		try
+		{
+			return deserialize(b);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Unknown class in message", e);
+		}
+	}
+	
+	public static byte[] serialize(Object o)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			
+			out.writeObject(o);
+			out.close();
+			
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("Could not serialize " + o, e);
+		}
+	}
+	
+	public static Object deserialize(byte[] b) throws IOException, ClassNotFoundException
+	{
+		return new ObjectInputStream(new ByteArrayInputStream(b)).readObject();
+	}
+	
+	// == CORE FORMATS == //
+	
+	private void registerCoreFormats()
+	{
+		registerMessage(1, GameEventMessage.class, new Format<GameEventMessage>()
+		{
+			@Override
+			public void write(MessageCodec codec, GameEventMessage m, ByteBuffer out)
+			{
+				codec.writeEvent(m.getEvent(), out);
+				
+				// usually within a tick or two of the event
+				writeSignedVarLong(out, m.getSafeUntil() - m.getEvent().getTimeStamp());
+			}
+			
+			@Override
+			public GameEventMessage read(MessageCodec codec, ByteBuffer in) throws IOException
+			{
+				GameEvent e = codec.readEvent(in);
+				
+				return new GameEventMessage(e, e.getTimeStamp() + readSignedVarLong(in));
+			}
+		});
+		
+		registerMessage(2, TimePromiseMessage.class, new Format<TimePromiseMessage>()
+		{
+			@Override
+			public void write(MessageCodec codec, TimePromiseMessage m, ByteBuffer out)
+			{
+				writeNullableUUID(out, m.getInstanceID());
+				writeSignedVarLong(out, m.getSafeUntil());
+			}
+			
+			@Override
+			public TimePromiseMessage read(MessageCodec codec, ByteBuffer in) throws IOException
+			{
+				UUID instanceID = readNullableUUID(in);
+				
+				return new TimePromiseMessage(instanceID, readSignedVarLong(in));
+			}
+		});
+		
+		registerMessage(3, ClientDisconnectMessage.class, new Format<ClientDisconnectMessage>()
+		{
+			@Override
+			public void write(MessageCodec codec, ClientDisconnectMessage m, ByteBuffer out)
+			{
+				writeUUID(out, m.getClientID());
+			}
+			
+			@Override
+			public ClientDisconnectMessage read(MessageCodec codec, ByteBuffer in)
+			{
+				return new ClientDisconnectMessage(readUUID(in));
+			}
+		});
+		
+		registerMessage(4, SnapshotMessage.class, new Format<SnapshotMessage>()
+		{
+			@Override
+			public void write(MessageCodec codec, SnapshotMessage m, ByteBuffer out)
+			{
+				writeSignedVarLong(out, m.getTick());
+				writeSignedVarLong(out, m.getBaseTick());
+				
+				Rectangle2D.Float region = m.getRegion();
+				
+				out.put((byte) (region == null ? 0 : 1));
+				
+				if (region != null)
+				{
+					out.putFloat(region.x);
+					out.putFloat(region.y);
+					out.putFloat(region.width);
+					out.putFloat(region.height);
+				}
+				
+				writeVarLong(out, m.getEntries().size());
+				
+				for (SnapshotMessage.Entry e : m.getEntries())
+				{
+					out.put(e.getKind());
+					
+					if (e.getKind() == SnapshotMessage.STATICS)
+						codec.writeString(out, e.getClassName());
+					else
+						writeUUID(out, e.getObjectID());
+					
+					if (e.getKind() == SnapshotMessage.REMOVED)
+						continue;
+					
+					if (e.getKind() == SnapshotMessage.FULL)
+						writeSerialized(e.getObject(), out);
+					
+					writeVarLong(out, e.getIndices().length);
+					
+					for (int i = 0; i < e.getIndices().length; i++)
+					{
+						writeVarLong(out, e.getIndices()[i]);
+						writeSignedVarLong(out, e.getValues()[i]);
+					}
+				}
+			}
+			
+			@Override
+			public SnapshotMessage read(MessageCodec codec, ByteBuffer in) throws IOException
+			{
+				long tick = readSignedVarLong(in);
+				long baseTick = readSignedVarLong(in);
+				Rectangle2D.Float region = null;
+				
+				if (in.get() != 0)
+					region = new Rectangle2D.Float(in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+				
+				int count = (int) readVarLong(in);
+				
+				if (count < 0 || count > in.remaining())
+					throw new IOException("Bad snapshot size " + count);
+				
+				ArrayList<SnapshotMessage.Entry> entries = new ArrayList<SnapshotMessage.Entry>(count);
+				
+				for (int n = 0; n < count; n++)
+				{
+					byte kind = in.get();
+					String className = null;
+					UUID objectID = null;
+					
+					if (kind == SnapshotMessage.STATICS)
+						className = codec.readString(in);
+					else
+						objectID = readUUID(in);
+					
+					if (kind == SnapshotMessage.REMOVED)
+					{
+						entries.add(new SnapshotMessage.Entry(kind, objectID, null, null, null, null));
+						continue;
+					}
+					
+					GameObject object = null;
+					
+					if (kind == SnapshotMessage.FULL)
+						object = (GameObject) readSerialized(in);
+					
+					int fields = (int) readVarLong(in);
+					
+					if (fields < 0 || fields > in.remaining())
+						throw new IOException("Bad snapshot entry size " + fields);
+					
+					int[] indices = new int[fields];
+					long[] values = new long[fields];
+					
+					for (int i = 0; i < fields; i++)
+					{
+						indices[i] = (int) readVarLong(in);
+						values[i] = readSignedVarLong(in);
+					}
+					
+					entries.add(new SnapshotMessage.Entry(kind, objectID, className, object, indices, values));
+				}
+				
+				return new SnapshotMessage(tick, baseTick, region, entries);
+			}
+		});
+		
+		registerMessage(5, SnapshotAckMessage.class, new Format<SnapshotAckMessage>()
+		{
+			@Override
+			public void write(MessageCodec codec, SnapshotAckMessage m, ByteBuffer out)
+			{
+				writeSignedVarLong(out, m.getTick());
+			}
+			
+			@Override
+			public SnapshotAckMessage read(MessageCodec codec, ByteBuffer in) throws IOException
+			{
+				return new SnapshotAckMessage(readSignedVarLong(in));
+			}
+		});
+		
+		registerEvent(1, InputEvent.class, new EventFormat<InputEvent>()
+		{
+			@Override
+			public void write(MessageCodec codec, InputEvent e, ByteBuffer out)
+			{
+				codec.writeString(out, e.getInput());
+			}
+			
+			@Override
+			public InputEvent read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in)
+					throws IOException
+			{
+				return new InputEvent(ts, instanceID, codec.readString(in), null);
+			}
+		});
+		
+		registerEvent(2, NullEvent.class, new EventFormat<NullEvent>()
+		{
+			@Override
+			public void write(MessageCodec codec, NullEvent e, ByteBuffer out)
+			{
+			}
+			
+			@Override
+			public NullEvent read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in)
+			{
+				return new NullEvent(ts, instanceID);
+			}
+		});
+		
+		registerEvent(3, CollisionEvent.class, new EventFormat<CollisionEvent>()
+		{
+			@Override
+			public void write(MessageCodec codec, CollisionEvent e, ByteBuffer out)
+			{
+				writeUUID(out, e.getIDs()[0]);
+				writeUUID(out, e.getIDs()[1]);
+			}
+			
+			@Override
+			public CollisionEvent read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in)
+			{
+				UUID id1 = readUUID(in);
+				
+				return new CollisionEvent(ts, instanceID, id1, readUUID(in));
+			}
+		});
+		
+		registerEvent(4, DeathEvent.class, new EventFormat<DeathEvent>()
+		{
+			@Override
+			public void write(MessageCodec codec, DeathEvent e, ByteBuffer out)
+			{
+				writeUUID(out, e.getObjectID());
+			}
+			
+			@Override
+			public DeathEvent read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in)
+			{
+				return new DeathEvent(ts, instanceID, readUUID(in));
+			}
+		});
+		
+		registerEvent(5, EndReplayEvent.class, new EventFormat<EndReplayEvent>()
+		{
+			@Override
+			public void write(MessageCodec codec, EndReplayEvent e, ByteBuffer out)
+			{
+			}
+			
+			@Override
+			public EndReplayEvent read(MessageCodec codec, long ts, UUID instanceID, ByteBuffer in)
+			{
+				return new EndReplayEvent(ts, 0, instanceID);
+			}
+		});
+	}
+}
@@ -1,44 +1,478 @@
 package engine.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import engine.network.messages.NetworkMessage;
 
 public abstract class NetworkHandler
 {
+	/** Encodes and decodes the messages sent on every connection */
+	protected static final MessageCodec CODEC = new MessageCodec();
+	
+	/**
+	 * Send messages with Java serialization on one long-lived object stream,
+	 * as before CODEC, instead of with CODEC. Must be the same on both ends.
+	 * Turned on with -Dmedusa.javaSerialization=true.
+	 */
+	public static final boolean JAVA_SERIALIZATION = Boolean.getBoolean("medusa.javaSerialization");
+	
+	/**
+	 * When the object stream of JAVA_SERIALIZATION is reset. Until it is,
+	 * the streams on both ends keep every object sent, and an object which
+	 * is sent again goes out as a reference to its earlier state.
+	 */
+	public enum ResetPolicy
+	{
+		/** Never reset; the streams grow for as long as the connection */
+		NEVER,
+		
+		/** Reset after every resetPeriod messages */
+		PERIODIC,
+		
+		/** Reset whenever the queue of messages to send has been emptied */
+		PER_BATCH
+	}
+	
+	/**
+	 * Run the input and output work of startThreads() on virtual threads, on
+	 * JVMs which have them. The output wakeup is a Semaphore and the server's
+	 * broadcasts take no monitors, so a blocked connection parks its virtual
+	 * thread rather than pinning a carrier thread.
+	 */
+	public static final boolean VIRTUAL_THREADS = false;
+	
+	/**
+	 * Hold back queued messages which are not marked to be sent straight
+	 * away, such as events, until the next one which is, usually the
+	 * promise which ends the tick, so that each tick goes out as one batch.
+	 * Peers cannot run an event before the promise covering it anyway.
+	 */
+	public static final boolean BATCH_PER_TICK = true;
+	
+	/**
+	 * Turn off Nagle's algorithm on every connection. Messages are gathered
+	 * into one write per batch here, so that delaying small writes in the
+	 * kernel would only add latency.
+	 */
+	public static final boolean TCP_NO_DELAY = true;
+	
+	/**
+	 * Send events and promises as datagrams, on a DatagramLink beside each
+	 * connection, so that a lost packet does not hold up the ones behind
+	 * it. Everything else, such as joining and leaving, stays on the
+	 * connection. Must be the same on both ends; not for use with
+	 * JAVA_SERIALIZATION.
+	 */
+	public static final boolean DATAGRAMS = false;
+	
+	/** Size of the buffer a batch is gathered in before it is written */
+	public static final int OUTPUT_BUFFER_SIZE = 16384;
+	
+	/** Set with -Dmedusa.resetPolicy, e.g. to NEVER */
+	public static final ResetPolicy DEFAULT_RESET_POLICY =
+			ResetPolicy.valueOf(System.getProperty("medusa.resetPolicy", ResetPolicy.PER_BATCH.name()));
+	
+	/** Set with -Dmedusa.resetPeriod */
+	public static final int DEFAULT_RESET_PERIOD = Integer.getInteger("medusa.resetPeriod", 64);
+	
 	protected Socket connectionSocket;
-	protected ObjectOutputStream networkOutput;
-	protected ObjectInputStream networkInput;
+	protected DataOutputStream networkOutput;
+	protected DataInputStream networkInput;
 	public boolean connected;
 	
 	Semaphore outputLock = new Semaphore(0);
-	ConcurrentLinkedQueue<NetworkMessage> messageQueue = new ConcurrentLinkedQueue<NetworkMessage>();
+	ConcurrentLinkedQueue<SharedFrame> messageQueue = new ConcurrentLinkedQueue<SharedFrame>();
 	
 	protected NetworkOutputThread outputThread;
 	protected NetworkInputThread inputThread;
 	
+	/** Set when this connection is served by a SelectorTransport instead */
+	volatile SelectorTransport.Connection selectorConnection;
+	
+	/** The end of a LoopbackTransport connection used in place of a socket */
+	private LoopbackTransport.Endpoint loopbackEndpoint;
+	
+	/** Set once this connection's messages are passed on by its LoopbackTransport */
+	volatile LoopbackTransport.Connection loopbackConnection;
+	
+	/** Set when this connection's events and promises are sent as datagrams */
+	private volatile DatagramLink datagramLink;
+	
+	// == BATCHING == //
+	
+	private final long startTime = System.nanoTime();
+	
+	private volatile long messagesSent = 0;
+	private volatile long batchesSent = 0;
+	private volatile long largestBatch = 0;
+	
+	/** Write calls made on the socket or channel */
+	private volatile long socketWrites = 0;
+	
+	/** Counts the writes which reach the socket's own output stream */
+	private class CountingOutputStream extends FilterOutputStream
+	{
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException
+		{
+			socketWrites++;
+			out.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			socketWrites++;
+			out.write(b, off, len);
+		}
+	}
+	
+	// == JAVA SERIALIZATION == //
+	
+	private ObjectOutputStream objectOutput;
+	private ObjectInputStream objectInput;
+	
+	private ResetPolicy resetPolicy = DEFAULT_RESET_POLICY;
+	private int resetPeriod = DEFAULT_RESET_PERIOD;
+	
+	private int messagesSinceReset = 0;
+	
+	/** Objects written since the last reset, which both streams are keeping */
+	private volatile long retainedObjects = 0;
+	private volatile long peakRetainedObjects = 0;
+	private volatile long resetCount = 0;
+	
+	/** Value of networkOutput.size() at the last reset */
+	private volatile long bytesAtReset = 0;
+	
+	/** An object stream which counts the objects it keeps handles to */
+	private class RetainingObjectOutputStream extends ObjectOutputStream
+	{
+		RetainingObjectOutputStream(OutputStream out) throws IOException
+		{
+			super(out);
+			
+			enableReplaceObject(true);
+		}
+		
+		/** Called once for each object not yet in the stream's handle table */
+		@Override
+		protected Object replaceObject(Object o)
+		{
+			retainedObjects++;
+			
+			return o;
+		}
+	}
+	
 	/**
 	 * disconnect from this connection
 	 */
 	protected void disconnect()
 	{
 		connected = false;
+		
+		DatagramLink link = datagramLink;
+		
+		if (link != null)
+			link.close();
+		
+		LoopbackTransport.Connection c = loopbackConnection;
+		
+		if (c != null)
+			c.close();
+	}
+	
+	/** Opens buffered data streams on the connection socket */
+	protected void openStreams() throws IOException
+	{
+		connectionSocket.setTcpNoDelay(TCP_NO_DELAY);
+		
+		networkOutput = new DataOutputStream(new BufferedOutputStream(
+				new CountingOutputStream(connectionSocket.getOutputStream()), OUTPUT_BUFFER_SIZE));
+		networkInput = new DataInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
+	}
+	
+	/** Opens buffered data streams on the pipes of a LoopbackTransport connection */
+	protected void openStreams(LoopbackTransport.Endpoint endpoint)
+	{
+		loopbackEndpoint = endpoint;
+		
+		networkOutput = new DataOutputStream(new BufferedOutputStream(endpoint.output, OUTPUT_BUFFER_SIZE));
+		networkInput = new DataInputStream(new BufferedInputStream(endpoint.input));
+	}
+	
+	/**
+	 * Writes an object with Java serialization, for the initial
+	 * communications; messages after that are sent with CODEC
+	 */
+	protected void writeObject(Object o) throws IOException
+	{
+		writeSerialized(MessageCodec.serialize(o));
+	}
+	
+	/**
+	 * Writes an object serialized beforehand, e.g. while a lock was held, to
+	 * be read with readObject()
+	 */
+	protected void writeSerialized(byte[] b) throws IOException
+	{
+		networkOutput.writeInt(b.length);
+		networkOutput.write(b);
+	}
+	
+	protected Object readObject() throws IOException, ClassNotFoundException
+	{
+		byte[] b = new byte[networkInput.readInt()];
+		
+		networkInput.readFully(b);
+		
+		return MessageCodec.deserialize(b);
+	}
+	
+	public void setResetPolicy(ResetPolicy policy, int period)
+	{
+		this.resetPolicy = policy;
+		this.resetPeriod = Math.max(1, period);
+	}
+	
+	public ResetPolicy getResetPolicy()
+	{
+		return resetPolicy;
+	}
+	
+	/**
+	 * Returns the number of objects sent since the object stream was last
+	 * reset. The streams on both ends each hold on to all of them, since a
+	 * reset clears the receiving stream as well. Always 0 unless
+	 * JAVA_SERIALIZATION is on.
+	 */
+	public long getRetainedObjects()
+	{
+		return retainedObjects;
+	}
+	
+	public long getPeakRetainedObjects()
+	{
+		return peakRetainedObjects;
+	}
+	
+	/** Returns the number of bytes sent since the object stream was last reset */
+	public long getRetainedBytes()
+	{
+		return (objectOutput == null) ? 0 : networkOutput.size() - bytesAtReset;
+	}
+	
+	public long getResetCount()
+	{
+		return resetCount;
+	}
+	
+	public String getRetentionStatistics()
+	{
+		if (!JAVA_SERIALIZATION)
+			return "no objects retained (binary codec)";
+		
+		return "retained " + retainedObjects + " objects, " + getRetainedBytes() + " bytes (peak "
+				+ peakRetainedObjects + " objects), " + resetCount + " resets, policy " + resetPolicy;
+	}
+	
+	private void writeSerializedMessage(NetworkMessage m) throws IOException
+	{
+		if (objectOutput == null)
+		{
+			objectOutput = new RetainingObjectOutputStream(networkOutput);
+			bytesAtReset = networkOutput.size();
+		}
+		
+		objectOutput.writeObject(m);
+		messagesSinceReset++;
+		
+		if (retainedObjects > peakRetainedObjects)
+			peakRetainedObjects = retainedObjects;
+		
+		if ((resetPolicy == ResetPolicy.PERIODIC && messagesSinceReset >= resetPeriod)
+				|| (resetPolicy == ResetPolicy.PER_BATCH && messageQueue.isEmpty()))
+		{
+			objectOutput.reset();
+			
+			messagesSinceReset = 0;
+			retainedObjects = 0;
+			resetCount++;
+			bytesAtReset = networkOutput.size();
+		}
+	}
+	
+	/** Writes out everything buffered for the connection */
+	private void flushOutput() throws IOException
+	{
+		// the object stream keeps a buffer of its own
+		if (objectOutput != null)
+			objectOutput.flush();
+		else
+			networkOutput.flush();
+	}
+	
+	private NetworkMessage readSerializedMessage() throws IOException, ClassNotFoundException
+	{
+		// the stream header is only sent along with the first message
+		if (objectInput == null)
+			objectInput = new ObjectInputStream(networkInput);
+		
+		return (NetworkMessage) objectInput.readObject();
 	}
 	
 	public void queueMessage(NetworkMessage message)
 	{
-		messageQueue.add(message);
-		outputLock.release();
+		queueMessage(message, true);
+	}
+	
+	/**
+	 * Queues a message, to be sent straight away if sendNow is set, or else
+	 * with the next batch if BATCH_PER_TICK is on
+	 */
+	public void queueMessage(NetworkMessage message, boolean sendNow)
+	{
+		enqueue(new SharedFrame(message), sendNow);
+	}
+	
+	public void queueFrame(SharedFrame frame)
+	{
+		queueFrame(frame, true);
 	}
 	
+	/**
+	 * Queues a frame which may also be queued on other connections, so that
+	 * its message is encoded only once for all of them
+	 */
+	public void queueFrame(SharedFrame frame, boolean sendNow)
+	{
+		frame.retain();
+		enqueue(frame, sendNow);
+	}
+	
+	/** Sends every message being held back for the next batch */
+	public void flushQueue()
+	{
+		DatagramLink link = datagramLink;
+		
+		if (link != null)
+			link.flush();
+		
+		if (!messageQueue.isEmpty())
+			wakeOutput();
+	}
+	
+	/**
+	 * Sends the messages a DatagramLink carries on the given link from now
+	 * on, and hands it those it receives. Should be called before any such
+	 * messages are queued, as they must all go the same way.
+	 */
+	public void useDatagrams(DatagramLink link)
+	{
+		if (JAVA_SERIALIZATION)
+			throw new IllegalStateException("Datagrams are only sent with CODEC");
+		
+		datagramLink = link;
+	}
+	
+	public DatagramLink getDatagramLink()
+	{
+		return datagramLink;
+	}
+	
+	private void enqueue(SharedFrame frame, boolean sendNow)
+	{
+		DatagramLink link = datagramLink;
+		
+		if (link != null && DatagramLink.carries(frame.getMessage()))
+			link.queue(frame);
+		else
+			messageQueue.add(frame);
+		
+		// whatever was held back goes with it, whichever way it goes
+		if (sendNow || !BATCH_PER_TICK)
+			flushQueue();
+	}
+	
+	private void wakeOutput()
+	{
+		SelectorTransport.Connection c = selectorConnection;
+		LoopbackTransport.Connection l = loopbackConnection;
+		
+		if (c != null)
+			c.scheduleWrite();
+		else if (l != null)
+			l.scheduleWrite();
+		else
+			outputLock.release();
+	}
+	
+	/** Counts a batch of messages, and the write calls made for it */
+	void recordBatch(int messages, int writes)
+	{
+		socketWrites += writes;
+		
+		if (messages == 0)
+			return;
+		
+		messagesSent += messages;
+		batchesSent++;
+		
+		if (messages > largestBatch)
+			largestBatch = messages;
+	}
+	
+	public long getMessagesSent()
+	{
+		return messagesSent;
+	}
+	
+	public long getBatchesSent()
+	{
+		return batchesSent;
+	}
+	
+	/** Returns the number of write calls made on the socket or channel */
+	public long getSocketWrites()
+	{
+		return socketWrites;
+	}
+	
+	public String getBatchStatistics()
+	{
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		
+		return String.format("%d messages in %d batches (%.1f per batch, largest %d), %d writes (%.1f per second)",
+				messagesSent, batchesSent, (batchesSent == 0) ? 0.0 : (double) messagesSent / batchesSent,
+				largestBatch, socketWrites, socketWrites / seconds);
+	}
+	
+	/** Handles a message received on this connection */
+	protected abstract void respondToMessage(NetworkMessage message);
+	
 	public class NetworkOutputThread extends Thread
 	{
-		NetworkMessage outgoingMessage;
+		SharedFrame outgoingFrame;
 		
 		public NetworkOutputThread()
 		{
@@ -55,7 +489,7 @@ public abstract class NetworkHandler
 		
 		private void outputLoop()
 		{
-			outgoingMessage = null;
+			outgoingFrame = null;
 			
 			// Wait for a message to be available
 			waitForMessage();
@@ -76,31 +510,71 @@ public abstract class NetworkHandler
 			}
 		}
 		
+		/**
+		 * Sends everything queued as one batch, gathered in the output
+		 * buffer and flushed once
+		 */
 		private void sendMessage()
 		{
-			outgoingMessage = messageQueue.poll();
+			// this wakeup covers every message queued so far
+			outputLock.drainPermits();
+			
+			int messages = 0;
 			
-			if (outgoingMessage != null)
+			while (connected && (outgoingFrame = messageQueue.poll()) != null)
 			{
 				try
 				{
-					networkOutput.writeObject(outgoingMessage);
+					if (JAVA_SERIALIZATION)
+					{
+						writeSerializedMessage(outgoingFrame.getMessage());
+					}
+					else
+					{
+						ByteBuffer b = outgoingFrame.getBytes();
+						
+						networkOutput.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+					}
+					
+					messages++;
 				}
 				catch (SocketException e)
 				{
 					System.err.println("SocketException occurred when trying to send the"
-							+ " message: " + outgoingMessage);
+							+ " message: " + outgoingFrame.getMessage());
 					disconnect();
 				}
 				catch (IOException e)
 				{
 					e.printStackTrace();
 				}
+				
+				outgoingFrame.release();
+			}
+			
+			if (messages == 0)
+				return;
+			
+			try
+			{
+				flushOutput();
+			}
+			catch (SocketException e)
+			{
+				System.err.println("SocketException occurred when trying to send "
+						+ messages + " messages");
+				disconnect();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
 			}
+			
+			recordBatch(messages, 0);
 		}
 	}
 	
-	public abstract class NetworkInputThread extends Thread
+	public class NetworkInputThread extends Thread
 	{
 		protected NetworkMessage incomingMessage;
 		
@@ -123,9 +597,9 @@ public abstract class NetworkHandler
 			
 			receiveMessage();
 			
-			if (connected)
+			if (connected && incomingMessage != null)
 			{
-				respondToMessage();
+				respondToMessage(incomingMessage);
 			}
 		}
 		
@@ -133,7 +607,10 @@ public abstract class NetworkHandler
 		{
 			try
 			{
-				incomingMessage = (NetworkMessage) networkInput.readObject();
+				if (JAVA_SERIALIZATION)
+					incomingMessage = readSerializedMessage();
+				else
+					incomingMessage = CODEC.readFrame(networkInput);
 			}
 			catch (ClassNotFoundException e)
 			{
@@ -141,6 +618,11 @@ public abstract class NetworkHandler
 						+ " message");
 				disconnect();
 			}
+			catch (EOFException e)
+			{
+				System.err.println("Connection closed while trying to read the message");
+				disconnect();
+			}
 			catch (SocketException e)
 			{
 				System.err.println("SocketException occurred when trying to read the"
@@ -149,11 +631,11 @@ public abstract class NetworkHandler
 			}
 			catch (IOException e)
 			{
-				e.printStackTrace();
+				// the rest of the stream cannot be read past a frame which could not be
+				System.err.println("Could not read a message: " + e.getMessage() + " - disconnecting");
+				disconnect();
 			}
 		}
-		
-		protected abstract void respondToMessage();
 	}
 	
 	/**
@@ -174,6 +656,23 @@ public abstract class NetworkHandler
 		}
 	}
 	
+	/**
+	 * Constructor for a connection within this JVM, which performs the
+	 * initial communications over the pipes of a LoopbackTransport in place
+	 * of a socket
+	 */
+	protected NetworkHandler(LoopbackTransport.Endpoint endpoint)
+	{
+		connected = false;
+		
+		createThreads();
+		
+		openStreams(endpoint);
+		connected = true;
+		
+		initDataTransactions();
+	}
+	
 	protected abstract void createThreads();
 	
 	protected abstract void socketSetup(Socket sock);
@@ -182,7 +681,63 @@ public abstract class NetworkHandler
 	
 	public void startThreads()
 	{
-		inputThread.start();
-		outputThread.start();
+		startThreads(VIRTUAL_THREADS);
+	}
+	
+	/**
+	 * Starts the input and output threads, or runs them on virtual threads
+	 * if asked to and the JVM has them
+	 */
+	public void startThreads(boolean virtual)
+	{
+		if (virtual && VirtualThreads.isAvailable())
+		{
+			VirtualThreads.start(inputThread, inputThread.getName());
+			VirtualThreads.start(outputThread, outputThread.getName());
+		}
+		else
+		{
+			inputThread.start();
+			outputThread.start();
+		}
+	}
+	
+	/**
+	 * Serves this connection from the I/O threads of a SelectorTransport,
+	 * in place of startThreads(). The socket must have been opened through
+	 * a channel, and the initial communications must be finished, as the
+	 * channel is made non-blocking. Not for use with JAVA_SERIALIZATION.
+	 */
+	public void startSelector(SelectorTransport transport) throws IOException
+	{
+		SocketChannel channel = connectionSocket.getChannel();
+		
+		if (channel == null)
+			throw new IllegalStateException("Connection was not opened through a channel");
+		
+		if (JAVA_SERIALIZATION)
+			throw new IllegalStateException("SelectorTransport only sends messages with CODEC");
+		
+		networkOutput.flush();
+		
+		transport.register(this, channel);
+	}
+	
+	/**
+	 * Passes this connection's messages through its LoopbackTransport, in
+	 * place of startThreads(), once the initial communications are finished.
+	 * Not for use with JAVA_SERIALIZATION.
+	 */
+	public void startLoopback(LoopbackTransport transport) throws IOException
+	{
+		if (loopbackEndpoint == null)
+			throw new IllegalStateException("Connection was not opened through a LoopbackTransport");
+		
+		if (JAVA_SERIALIZATION)
+			throw new IllegalStateException("LoopbackTransport only sends messages with CODEC");
+		
+		networkOutput.flush();
+		
+		transport.register(this, loopbackEndpoint);
 	}
 }
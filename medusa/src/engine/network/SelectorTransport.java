@@ -0,0 +1,388 @@
+package engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import engine.network.messages.NetworkMessage;
+
+/**
+ * Serves many connections from a few I/O threads, using non-blocking
+ * channels and a Selector per thread, in place of the input and output
+ * threads of each NetworkHandler.
+ * 
+ * Messages are sent as length-prefixed frames from MessageCodec. Received
+ * messages are passed to the handler's respondToMessage() on the I/O thread
+ * of its connection. The frames queued on a handler are sent by the I/O
+ * thread as one batch, with a gathering write of the shared frames
+ * themselves, which are encoded if no other connection has yet.
+ */
+public class SelectorTransport
+{
+	private static final int READ_BUFFER_SIZE = 4096;
+	
+	/** Most buffers passed to one gathering write, as with IOV_MAX */
+	private static final int MAX_GATHER = 1024;
+	
+	/**
+	 * A connection with more than this many bytes waiting to be written is
+	 * not keeping up, and is disconnected
+	 */
+	private static final int MAX_PENDING_WRITE = 1 << 22;
+	
+	/**
+	 * A connection which announces a frame longer than this is sending
+	 * something wrong, and is disconnected rather than buffered for
+	 */
+	private static final int MAX_READ_FRAME = 1 << 22;
+	
+	private IOThread[] threads;
+	
+	private AtomicInteger nextThread = new AtomicInteger();
+	
+	/** The state of one connection, used only by its I/O thread */
+	class Connection
+	{
+		final NetworkHandler handler;
+		
+		final SocketChannel channel;
+		
+		final IOThread thread;
+		
+		SelectionKey key;
+		
+		ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		
+		/** Frames taken from the handler's queue but not yet written in full */
+		ArrayDeque<SharedFrame> pendingFrames = new ArrayDeque<SharedFrame>();
+		
+		/** The unwritten part of each pending frame */
+		ArrayDeque<ByteBuffer> pendingBytes = new ArrayDeque<ByteBuffer>();
+		
+		long pendingLength = 0;
+		
+		/** Set while this connection is waiting in its thread's write queue */
+		AtomicBoolean writeScheduled = new AtomicBoolean();
+		
+		Connection(NetworkHandler handler, SocketChannel channel, IOThread thread)
+		{
+			this.handler = handler;
+			this.channel = channel;
+			this.thread = thread;
+		}
+		
+		/** Has the I/O thread write out the messages queued on the handler */
+		void scheduleWrite()
+		{
+			if (writeScheduled.compareAndSet(false, true))
+			{
+				thread.writes.add(this);
+				thread.selector.wakeup();
+			}
+		}
+	}
+	
+	/** Starts the given number of I/O threads */
+	public SelectorTransport(int threadCount) throws IOException
+	{
+		threads = new IOThread[Math.max(1, threadCount)];
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new IOThread(i);
+			threads[i].start();
+		}
+	}
+	
+	public int getThreadCount()
+	{
+		return threads.length;
+	}
+	
+	/** Adds a connection, giving connections to the I/O threads in turn */
+	void register(NetworkHandler handler, SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		
+		IOThread thread = threads[Math.floorMod(nextThread.getAndIncrement(), threads.length)];
+		Connection c = new Connection(handler, channel, thread);
+		
+		handler.selectorConnection = c;
+		
+		thread.registrations.add(c);
+		
+		// sends anything queued before now
+		c.scheduleWrite();
+	}
+	
+	private class IOThread extends Thread
+	{
+		Selector selector;
+		
+		ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+		
+		ConcurrentLinkedQueue<Connection> writes = new ConcurrentLinkedQueue<Connection>();
+		
+		IOThread(int index) throws IOException
+		{
+			this.setName("Network I/O Thread " + index);
+			this.setDaemon(true);
+			
+			selector = Selector.open();
+		}
+		
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					selector.select();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					continue;
+				}
+				
+				Connection c;
+				
+				while ((c = registrations.poll()) != null)
+				{
+					try
+					{
+						c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+					}
+					catch (IOException e)
+					{
+						close(c);
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					c = (Connection) key.attachment();
+					
+					try
+					{
+						if (key.isReadable())
+							read(c);
+						
+						if (key.isValid() && key.isWritable())
+							write(c);
+					}
+					catch (CancelledKeyException e)
+					{
+						close(c);
+					}
+					catch (IOException e)
+					{
+						close(c);
+					}
+				}
+				
+				// only those scheduled so far, as write() can schedule one again
+				for (int n = writes.size(); n > 0 && (c = writes.poll()) != null; n--)
+				{
+					c.writeScheduled.set(false);
+					
+					try
+					{
+						write(c);
+					}
+					catch (CancelledKeyException e)
+					{
+						close(c);
+					}
+					catch (IOException e)
+					{
+						close(c);
+					}
+				}
+			}
+		}
+	}
+	
+	/** Reads what the channel has, and handles every complete frame */
+	private void read(Connection c) throws IOException
+	{
+		ByteBuffer b = c.readBuffer;
+		
+		if (c.channel.read(b) < 0)
+		{
+			close(c);
+			return;
+		}
+		
+		b.flip();
+		
+		while (true)
+		{
+			int start = b.position();
+			int length = MessageCodec.readFrameLength(b);
+			
+			if (length > MAX_READ_FRAME)
+			{
+				System.err.println("Connection sent a frame of " + length + " bytes - disconnecting");
+				close(c);
+				return;
+			}
+			
+			if (length < 0 || b.remaining() < length)
+			{
+				b.position(start);
+				break;
+			}
+			
+			int end = b.position() + length;
+			int limit = b.limit();
+			
+			b.limit(end);
+			NetworkMessage m = NetworkHandler.CODEC.readMessage(b);
+			b.limit(limit);
+			b.position(end);
+			
+			if (!c.handler.connected)
+				return;
+			
+			try
+			{
+				c.handler.respondToMessage(m);
+			}
+			catch (RuntimeException e)
+			{
+				// one bad message should not stop every connection on this thread
+				e.printStackTrace();
+			}
+		}
+		
+		b.compact();
+		
+		// a frame larger than the buffer
+		if (!b.hasRemaining())
+			c.readBuffer = grow(b, b.capacity() * 2);
+	}
+	
+	/**
+	 * Takes the frames queued on the handler as one batch, and writes as much
+	 * of everything pending as the channel will take
+	 */
+	private void write(Connection c) throws IOException
+	{
+		// not registered yet; its registration is handled first next time
+		if (c.key == null)
+		{
+			c.scheduleWrite();
+			return;
+		}
+		
+		if (!c.key.isValid())
+			return;
+		
+		int messages = 0;
+		SharedFrame f;
+		
+		while ((f = c.handler.messageQueue.poll()) != null)
+		{
+			ByteBuffer frame = f.getBytes();
+			
+			c.pendingFrames.add(f);
+			c.pendingBytes.add(frame);
+			c.pendingLength += frame.remaining();
+			messages++;
+			
+			if (c.pendingLength > MAX_PENDING_WRITE)
+			{
+				System.err.println("Connection is not keeping up with its messages - disconnecting");
+				close(c);
+				return;
+			}
+		}
+		
+		int writes = 0;
+		
+		while (!c.pendingBytes.isEmpty())
+		{
+			ByteBuffer[] gather = new ByteBuffer[Math.min(c.pendingBytes.size(), MAX_GATHER)];
+			Iterator<ByteBuffer> it = c.pendingBytes.iterator();
+			long length = 0;
+			
+			for (int i = 0; i < gather.length; i++)
+			{
+				gather[i] = it.next();
+				length += gather[i].remaining();
+			}
+			
+			long written = c.channel.write(gather);
+			writes++;
+			
+			c.pendingLength -= written;
+			
+			while (!c.pendingBytes.isEmpty() && !c.pendingBytes.peek().hasRemaining())
+			{
+				c.pendingBytes.poll();
+				c.pendingFrames.poll().release();
+			}
+			
+			// the channel is full; OP_WRITE says when it has room again
+			if (written < length)
+				break;
+		}
+		
+		c.handler.recordBatch(messages, writes);
+		
+		c.key.interestOps(c.pendingBytes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+	
+	/** Returns a larger buffer holding the contents of b, ready to be added to */
+	private static ByteBuffer grow(ByteBuffer b, int size)
+	{
+		ByteBuffer r = ByteBuffer.allocate(size);
+		
+		b.flip();
+		r.put(b);
+		
+		return r;
+	}
+	
+	private void close(Connection c)
+	{
+		if (c.key != null)
+			c.key.cancel();
+		
+		SharedFrame f;
+		
+		while ((f = c.pendingFrames.poll()) != null)
+			f.release();
+		
+		c.pendingBytes.clear();
+		c.pendingLength = 0;
+		
+		try
+		{
+			c.channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		if (c.handler.connected)
+		{
+			System.err.println("Connection closed");
+			c.handler.disconnect();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package engine.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import engine.network.messages.NetworkMessage;
+
+/**
+ * A message queued to be sent on one or more connections. It is encoded by
+ * NetworkHandler's codec at most once, by whichever connection sends it
+ * first, and the encoded bytes are then shared, unchanged, by every one.
+ * 
+ * Each connection the frame is queued on holds a reference, and releases it
+ * once the frame is written. When the last reference is released, the
+ * buffer holding the encoded bytes goes back to the codec's pool.
+ */
+public class SharedFrame
+{
+	private final NetworkMessage message;
+	
+	private final MessageCodec codec = NetworkHandler.CODEC;
+	
+	private ByteBuffer bytes;
+	
+	private AtomicInteger references = new AtomicInteger(1);
+	
+	/** Creates a frame holding one reference, for its creator */
+	public SharedFrame(NetworkMessage message)
+	{
+		this.message = message;
+	}
+	
+	public NetworkMessage getMessage()
+	{
+		return message;
+	}
+	
+	/**
+	 * Returns a view of the encoded frame, from its position to its limit,
+	 * encoding it the first time. The view's contents must not be changed.
+	 */
+	public synchronized ByteBuffer getBytes()
+	{
+		if (references.get() <= 0)
+			throw new IllegalStateException("Frame was already released");
+		
+		if (bytes == null)
+			bytes = codec.encode(message);
+		
+		return bytes.duplicate();
+	}
+	
+	public void retain()
+	{
+		if (references.getAndIncrement() <= 0)
+			throw new IllegalStateException("Frame was already released");
+	}
+	
+	public void release()
+	{
+		if (references.decrementAndGet() == 0)
+		{
+			synchronized (this)
+			{
+				if (bytes != null)
+				{
+					codec.release(bytes);
+					bytes = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package engine.network;
+
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import engine.GameInstance;
+import engine.gameObjects.GameObjectSet;
+import engine.network.messages.SnapshotMessage;
+
+/**
+ * A client's side of the server's snapshots. Snapshots are kept as they
+ * arrive until the logic thread reaches their tick, when each is rebuilt
+ * from the client's copy of its base and the client's objects reconciled
+ * with it. How far they had diverged is kept track of, and reported.
+ */
+public class SnapshotReceiver
+{
+	private ConcurrentSkipListMap<Long, SnapshotMessage> received = new ConcurrentSkipListMap<Long, SnapshotMessage>();
+	
+	/** Snapshots applied, kept while the server may send changes from them */
+	private TreeMap<Long, WorldSnapshot> applied = new TreeMap<Long, WorldSnapshot>();
+	
+	/** The first tick the server sends a snapshot for */
+	private volatile long firstTick = Long.MAX_VALUE;
+	
+	private volatile boolean closed = false;
+	
+	private final Object monitor = new Object();
+	
+	// == DIVERGENCE == //
+	
+	private long snapshotsApplied = 0;
+	private long snapshotsSkipped = 0;
+	private long divergentSnapshots = 0;
+	private long objectsCorrected = 0;
+	private long fieldsCorrected = 0;
+	private long objectsMissing = 0;
+	private long objectsExtra = 0;
+	private long objectsEntered = 0;
+	private long objectsCulled = 0;
+	private double maxPositionError = 0;
+	
+	/** Called as a snapshot arrives */
+	public void receive(SnapshotMessage m)
+	{
+		received.put(m.getTick(), m);
+		
+		synchronized (monitor)
+		{
+			monitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * Sets the first tick the server sends a snapshot for, from then on
+	 * every SNAPSHOT_INTERVAL ticks; told to the client as it joins. Since
+	 * promises may come another way, such as by datagram, they cannot be
+	 * relied on to say that a snapshot is not coming.
+	 */
+	public void expectFrom(long tick)
+	{
+		firstTick = tick;
+	}
+	
+	/** Stops any wait for a snapshot, e.g. once the server is gone */
+	public void close()
+	{
+		closed = true;
+		
+		synchronized (monitor)
+		{
+			monitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * Waits until the snapshot for tick t has arrived, and returns it, or
+	 * null if none is coming
+	 */
+	public SnapshotMessage await(long t)
+	{
+		received.headMap(t).clear();
+		
+		if (t < firstTick)
+			return null;
+		
+		synchronized (monitor)
+		{
+			while (!received.containsKey(t) && !closed)
+			{
+				try
+				{
+					monitor.wait();
+				}
+				catch (InterruptedException e)
+				{
+					e.printStackTrace();
+					return null;
+				}
+			}
+		}
+		
+		return received.remove(t);
+	}
+	
+	/**
+	 * Keeps a snapshot which is not going to be applied, e.g. while the time
+	 * warp is on, only as the base of later ones, in place of receive(), and
+	 * returns the tick to acknowledge, as apply() does
+	 */
+	public synchronized long skip(SnapshotMessage m)
+	{
+		WorldSnapshot snapshot = rebuild(m);
+		
+		if (snapshot == null)
+			return SnapshotMessage.NO_BASE;
+		
+		snapshotsSkipped++;
+		keep(m, snapshot);
+		
+		return m.getTick();
+	}
+	
+	/**
+	 * Reconciles the set's moving objects with a snapshot, and returns the
+	 * tick to acknowledge: the snapshot's, or SnapshotMessage.NO_BASE if it
+	 * could not be rebuilt, so that the next is sent in full
+	 */
+	public synchronized long apply(SnapshotMessage m, GameObjectSet set)
+	{
+		WorldSnapshot snapshot = rebuild(m);
+		
+		if (snapshot == null)
+			return SnapshotMessage.NO_BASE;
+		
+		WorldSnapshot.Divergence d = snapshot.reconcile(set);
+		
+		snapshotsApplied++;
+		objectsEntered += d.getEntered();
+		objectsCulled += d.getCulled();
+		
+		if (!d.isEmpty())
+		{
+			divergentSnapshots++;
+			objectsCorrected += d.getObjects();
+			fieldsCorrected += d.getFields();
+			objectsMissing += d.getMissing();
+			objectsExtra += d.getExtra();
+			maxPositionError = Math.max(maxPositionError, d.getMaxPositionError());
+			
+			if (GameInstance.DEBUG)
+				System.out.println("Diverged from the server by tick " + m.getTick() + ": " + d);
+		}
+		
+		keep(m, snapshot);
+		
+		return m.getTick();
+	}
+	
+	/** Rebuilds a snapshot from its base, or returns null if it cannot be */
+	private WorldSnapshot rebuild(SnapshotMessage m)
+	{
+		WorldSnapshot base = null;
+		
+		if (m.getBaseTick() != SnapshotMessage.NO_BASE)
+		{
+			base = applied.get(m.getBaseTick());
+			
+			if (base == null)
+				return null;
+		}
+		
+		try
+		{
+			return WorldSnapshot.rebuild(m, base);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not rebuild the snapshot for tick " + m.getTick() + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private void keep(SnapshotMessage m, WorldSnapshot snapshot)
+	{
+		// the server sends changes from this base or a later one from now on
+		applied.headMap(m.getBaseTick()).clear();
+		applied.put(m.getTick(), snapshot);
+	}
+	
+	public long getSnapshotsApplied()
+	{
+		return snapshotsApplied;
+	}
+	
+	public long getDivergentSnapshots()
+	{
+		return divergentSnapshots;
+	}
+	
+	public String getStatistics()
+	{
+		return snapshotsApplied + " snapshots applied, " + snapshotsSkipped + " skipped, " + divergentSnapshots + " had diverged: "
+				+ objectsCorrected + " objects (" + fieldsCorrected + " fields) corrected, " + objectsMissing
+				+ " missing, " + objectsExtra + " extra, position off by up to " + (float) maxPositionError
+				+ "; " + objectsEntered + " objects came into the region of interest, " + objectsCulled
+				+ " left it";
+	}
+}
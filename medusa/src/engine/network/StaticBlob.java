@@ -0,0 +1,96 @@
+package engine.network;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.GameObjectSet;
+
+/**
+ * The objects of a level which cannot move, serialized once into a blob
+ * named by the SHA-256 hash of its contents. A joining client which already
+ * has a blob with the same hash need not be sent it again.
+ */
+public class StaticBlob
+{
+	public static final int HASH_LENGTH = 32;
+	
+	private final long version;
+	
+	private final byte[] hash;
+	
+	private final byte[] bytes;
+	
+	/**
+	 * Serializes the given objects, for the given static version of their
+	 * set. They are put in order of ID, so that the same objects with the
+	 * same IDs, e.g. from GameObjectSet.assignStaticIDs(), always make the
+	 * same blob.
+	 */
+	public StaticBlob(ArrayList<GameObject> objects, long version) throws IOException
+	{
+		ArrayList<GameObject> sorted = new ArrayList<GameObject>(objects);
+		Collections.sort(sorted, GameObjectSet.BY_ID);
+		
+		this.version = version;
+		this.bytes = MessageCodec.serialize(sorted);
+		this.hash = hash(bytes);
+	}
+	
+	/** Returns the version of the object set the blob was made from */
+	public long getVersion()
+	{
+		return version;
+	}
+	
+	public byte[] getHash()
+	{
+		return hash;
+	}
+	
+	public byte[] getBytes()
+	{
+		return bytes;
+	}
+	
+	/** Returns the SHA-256 hash of the given bytes */
+	public static byte[] hash(byte[] b)
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256").digest(b);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/** Returns whether the given bytes are those named by the given hash */
+	public static boolean matches(byte[] b, byte[] hash)
+	{
+		return Arrays.equals(hash(b), hash);
+	}
+	
+	/** Returns the hash in hexadecimal, e.g. to name a file */
+	public static String toHex(byte[] hash)
+	{
+		StringBuilder s = new StringBuilder(hash.length * 2);
+		
+		for (byte b : hash)
+			s.append(String.format("%02x", b));
+		
+		return s.toString();
+	}
+	
+	/** Reads the objects back out of a blob */
+	@SuppressWarnings("unchecked")
+	public static ArrayList<GameObject> readObjects(byte[] b) throws IOException, ClassNotFoundException
+	{
+		return (ArrayList<GameObject>) MessageCodec.deserialize(b);
+	}
+}
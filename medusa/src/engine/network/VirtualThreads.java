@@ -0,0 +1,69 @@
+package engine.network;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts virtual threads on JVMs which have them (Java 21 and later). The
+ * engine is built for Java 8, so they are found by reflection; where they
+ * are missing, platform threads are started instead.
+ */
+public class VirtualThreads
+{
+	private static Method ofVirtual;
+	
+	private static Method name;
+	
+	private static Method start;
+	
+	static
+	{
+		try
+		{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			ofVirtual = null;
+		}
+	}
+	
+	private VirtualThreads()
+	{
+	}
+	
+	public static boolean isAvailable()
+	{
+		return ofVirtual != null;
+	}
+	
+	/**
+	 * Runs the given task on a new virtual thread with the given name, or on
+	 * a new platform thread if there are no virtual threads
+	 */
+	public static Thread start(Runnable task, String threadName)
+	{
+		if (ofVirtual != null)
+		{
+			try
+			{
+				Object b = name.invoke(ofVirtual.invoke(null), threadName);
+				
+				return (Thread) start.invoke(b, task);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		Thread t = new Thread(task, threadName);
+		t.start();
+		
+		return t;
+	}
+}
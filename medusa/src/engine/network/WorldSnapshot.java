@@ -0,0 +1,447 @@
+package engine.network;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.GameObjectSet;
+import engine.network.messages.SnapshotMessage;
+import engine.network.messages.SnapshotMessage.Entry;
+
+/**
+ * The values of the tracked fields (see FieldTable) of every moving object
+ * at the start of a tick, and of the static fields of their classes.
+ * 
+ * The server captures one every few ticks and sends each client the changes
+ * from the last snapshot that client acknowledged. The client rebuilds the
+ * server's snapshot from its own copy of that base, and reconciles its
+ * objects with it, counting how far they had diverged.
+ * 
+ * A snapshot may be limited to a region, a client's region of interest.
+ */
+public class WorldSnapshot
+{
+	/** The captured state of one object, or of one class's statics */
+	private static class State
+	{
+		final Class<?> type;
+		
+		final boolean statics;
+		
+		final long[] values;
+		
+		/** The object itself, kept to be sent in full where needed */
+		final GameObject object;
+		
+		State(Class<?> type, boolean statics, long[] values, GameObject object)
+		{
+			this.type = type;
+			this.statics = statics;
+			this.values = values;
+			this.object = object;
+		}
+		
+		FieldTable table()
+		{
+			return statics ? FieldTable.forStatics(type) : FieldTable.forClass(type);
+		}
+	}
+	
+	/** How far a client's objects had diverged from a snapshot */
+	public static class Divergence
+	{
+		private int objects = 0;
+		private int fields = 0;
+		private int statics = 0;
+		private int missing = 0;
+		private int extra = 0;
+		private int entered = 0;
+		private int culled = 0;
+		private double maxPositionError = 0;
+		
+		/** Objects with at least one field which differed */
+		public int getObjects()
+		{
+			return objects;
+		}
+		
+		public int getFields()
+		{
+			return fields;
+		}
+		
+		/** Classes with at least one static field which differed */
+		public int getStatics()
+		{
+			return statics;
+		}
+		
+		/** Objects the client did not have */
+		public int getMissing()
+		{
+			return missing;
+		}
+		
+		/** Objects the client had which the server did not */
+		public int getExtra()
+		{
+			return extra;
+		}
+		
+		/**
+		 * Objects the client lacked in a snapshot with a region, which have
+		 * most likely just come into it; these are not counted as missing
+		 */
+		public int getEntered()
+		{
+			return entered;
+		}
+		
+		/**
+		 * Objects the client had outside the snapshot's region, which were
+		 * dropped; these are not counted as divergence
+		 */
+		public int getCulled()
+		{
+			return culled;
+		}
+		
+		public double getMaxPositionError()
+		{
+			return maxPositionError;
+		}
+		
+		public boolean isEmpty()
+		{
+			return fields == 0 && missing == 0 && extra == 0;
+		}
+		
+		public String toString()
+		{
+			return objects + " objects (" + fields + " fields), " + statics + " classes, " + missing
+					+ " missing, " + extra + " extra, position off by up to " + (float) maxPositionError;
+		}
+	}
+	
+	private final long tick;
+	
+	private final Rectangle2D.Float region;
+	
+	private final LinkedHashMap<UUID, State> states;
+	
+	private WorldSnapshot(long tick, Rectangle2D.Float region, LinkedHashMap<UUID, State> states)
+	{
+		this.tick = tick;
+		this.region = region;
+		this.states = states;
+	}
+	
+	public long getTick()
+	{
+		return tick;
+	}
+	
+	public int size()
+	{
+		return states.size();
+	}
+	
+	/** Captures the given objects; they must not change until this returns */
+	public static WorldSnapshot capture(long tick, Collection<GameObject> objects)
+	{
+		return capture(tick, objects, null);
+	}
+	
+	/**
+	 * Captures the given objects, which should be those in the region, as a
+	 * snapshot of the region alone
+	 */
+	public static WorldSnapshot capture(long tick, Collection<GameObject> objects, Rectangle2D.Float region)
+	{
+		LinkedHashMap<UUID, State> states = new LinkedHashMap<UUID, State>();
+		
+		for (GameObject o : objects)
+		{
+			Class<?> type = o.getClass();
+			
+			states.put(o.getID(), new State(type, false, FieldTable.forClass(type).capture(o), o));
+			
+			UUID classID = staticsID(type.getName());
+			
+			if (!states.containsKey(classID) && FieldTable.forStatics(type).size() > 0)
+				states.put(classID, new State(type, true, FieldTable.forStatics(type).capture(null), null));
+		}
+		
+		return new WorldSnapshot(tick, region, states);
+	}
+	
+	/** The key under which the statics of a class are kept */
+	private static UUID staticsID(String className)
+	{
+		return UUID.nameUUIDFromBytes(("statics " + className).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Returns the changes from the given base, or every object in full if it
+	 * is null. Objects new since the base are sent in full, so this should
+	 * be called before they change from their captured state.
+	 */
+	public SnapshotMessage deltaFrom(WorldSnapshot base)
+	{
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		
+		for (Map.Entry<UUID, State> e : states.entrySet())
+		{
+			State s = e.getValue();
+			State b = (base == null) ? null : base.states.get(e.getKey());
+			
+			if (b == null || b.type != s.type)
+			{
+				int[] all = new int[s.values.length];
+				
+				for (int i = 0; i < all.length; i++)
+					all[i] = i;
+				
+				if (s.statics)
+					entries.add(new Entry(SnapshotMessage.STATICS, null, s.type.getName(), null, all, s.values));
+				else
+					entries.add(new Entry(SnapshotMessage.FULL, e.getKey(), null, s.object, all, s.values));
+				
+				continue;
+			}
+			
+			int changed = 0;
+			
+			for (int i = 0; i < s.values.length; i++)
+			{
+				if (s.values[i] != b.values[i])
+					changed++;
+			}
+			
+			if (changed == 0)
+				continue;
+			
+			int[] indices = new int[changed];
+			long[] values = new long[changed];
+			
+			for (int i = 0, n = 0; i < s.values.length; i++)
+			{
+				if (s.values[i] != b.values[i])
+				{
+					indices[n] = i;
+					values[n++] = s.values[i];
+				}
+			}
+			
+			if (s.statics)
+				entries.add(new Entry(SnapshotMessage.STATICS, null, s.type.getName(), null, indices, values));
+			else
+				entries.add(new Entry(SnapshotMessage.FIELDS, e.getKey(), null, null, indices, values));
+		}
+		
+		if (base != null)
+		{
+			for (Map.Entry<UUID, State> e : base.states.entrySet())
+			{
+				if (!e.getValue().statics && !states.containsKey(e.getKey()))
+					entries.add(new Entry(SnapshotMessage.REMOVED, e.getKey(), null, null, null, null));
+			}
+		}
+		
+		return new SnapshotMessage(tick, (base == null) ? SnapshotMessage.NO_BASE : base.tick, region, entries);
+	}
+	
+	/**
+	 * Rebuilds the server's snapshot from a message and the client's copy of
+	 * its base, which must be the snapshot for m.getBaseTick(), or null if
+	 * it has none
+	 */
+	public static WorldSnapshot rebuild(SnapshotMessage m, WorldSnapshot base) throws IOException
+	{
+		LinkedHashMap<UUID, State> states = new LinkedHashMap<UUID, State>();
+		
+		if (base != null)
+			states.putAll(base.states);
+		
+		for (Entry e : m.getEntries())
+		{
+			switch (e.getKind())
+			{
+				case SnapshotMessage.FULL:
+				{
+					GameObject o = e.getObject();
+					
+					states.put(e.getObjectID(), new State(o.getClass(), false,
+							merge(null, FieldTable.forClass(o.getClass()), e), o));
+					
+					break;
+				}
+				case SnapshotMessage.FIELDS:
+				{
+					State b = states.get(e.getObjectID());
+					
+					if (b == null)
+						throw new IOException("No base for object " + e.getObjectID());
+					
+					states.put(e.getObjectID(), new State(b.type, false, merge(b.values, b.table(), e), b.object));
+					
+					break;
+				}
+				case SnapshotMessage.STATICS:
+				{
+					Class<?> type;
+					
+					try
+					{
+						type = Class.forName(e.getClassName());
+					}
+					catch (ClassNotFoundException ex)
+					{
+						throw new IOException("Unknown class " + e.getClassName(), ex);
+					}
+					
+					UUID classID = staticsID(e.getClassName());
+					State b = states.get(classID);
+					
+					states.put(classID, new State(type, true,
+							merge((b == null) ? null : b.values, FieldTable.forStatics(type), e), null));
+					
+					break;
+				}
+				case SnapshotMessage.REMOVED:
+				{
+					states.remove(e.getObjectID());
+					
+					break;
+				}
+				default:
+					throw new IOException("Unknown snapshot entry " + e.getKind());
+			}
+		}
+		
+		return new WorldSnapshot(m.getTick(), m.getRegion(), states);
+	}
+	
+	private static long[] merge(long[] base, FieldTable table, Entry e) throws IOException
+	{
+		long[] values = (base == null) ? new long[table.size()] : base.clone();
+		
+		if (values.length != table.size())
+			throw new IOException("Snapshot fields do not match the class");
+		
+		for (int i = 0; i < e.getIndices().length; i++)
+		{
+			int index = e.getIndices()[i];
+			
+			if (index < 0 || index >= values.length)
+				throw new IOException("Bad snapshot field " + index);
+			
+			values[index] = e.getValues()[i];
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Brings the moving objects in the set, and the statics of their
+	 * classes, into line with this snapshot, and returns how far they were
+	 * from it. Objects the set lacks are added, and those the snapshot lacks
+	 * are removed, whether they were in its region or not.
+	 */
+	public Divergence reconcile(GameObjectSet set)
+	{
+		Divergence d = new Divergence();
+		HashMap<UUID, GameObject> actual = new HashMap<UUID, GameObject>();
+		
+		for (GameObject o : set.getDynamicObjects())
+			actual.put(o.getID(), o);
+		
+		for (Map.Entry<UUID, State> e : states.entrySet())
+		{
+			State s = e.getValue();
+			FieldTable table = s.table();
+			
+			if (s.statics)
+			{
+				if (apply(table, null, s.values) > 0)
+					d.statics++;
+				
+				continue;
+			}
+			
+			GameObject o = actual.remove(e.getKey());
+			
+			if (o != null && o.getClass() != s.type)
+			{
+				set.removeFromSet(o);
+				o = null;
+			}
+			
+			if (o == null)
+			{
+				if (region == null)
+					d.missing++;
+				else
+					d.entered++;
+				
+				if (s.object == null)
+					continue;
+				
+				// the object sent in full, which is then only used here
+				o = s.object;
+				apply(table, o, s.values);
+				set.addToSet(o);
+				
+				continue;
+			}
+			
+			float x = o.x, y = o.y;
+			int n = apply(table, o, s.values);
+			
+			if (n > 0)
+			{
+				d.objects++;
+				d.fields += n;
+				d.maxPositionError = Math.max(d.maxPositionError, Math.hypot(o.x - x, o.y - y));
+				
+				set.updatePosition(o);
+			}
+		}
+		
+		for (GameObject o : actual.values())
+		{
+			if (region == null || region.intersects(o))
+				d.extra++;
+			else
+				d.culled++;
+			
+			set.removeFromSet(o);
+		}
+		
+		return d;
+	}
+	
+	/** Sets each field which differs, and returns how many did */
+	private static int apply(FieldTable table, Object o, long[] values)
+	{
+		long[] current = table.capture(o);
+		int n = 0;
+		
+		for (int i = 0; i < values.length; i++)
+		{
+			if (current[i] != values[i])
+			{
+				table.set(o, i, values[i]);
+				n++;
+			}
+		}
+		
+		return n;
+	}
+}
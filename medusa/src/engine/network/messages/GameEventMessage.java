@@ -8,13 +8,25 @@ public class GameEventMessage extends NetworkMessage
 	
 	private GameEvent event;
 	
-	public GameEventMessage(GameEvent event)
+	/**
+	 * Tick up to which the event's instance had sent all of its events when
+	 * this was sent, as in a TimePromiseMessage
+	 */
+	private long safeUntil;
+	
+	public GameEventMessage(GameEvent event, long safeUntil)
 	{
 		this.event = event;
+		this.safeUntil = safeUntil;
 	}
 	
 	public GameEvent getEvent()
 	{
 		return this.event;
 	}
+	
+	public long getSafeUntil()
+	{
+		return this.safeUntil;
+	}
 }
@@ -0,0 +1,23 @@
+package engine.network.messages;
+
+/**
+ * Sent by a client once it has applied the snapshot for a tick, which the
+ * server may then send later snapshots as changes from. A tick of
+ * SnapshotMessage.NO_BASE asks for the next snapshot in full instead.
+ */
+public class SnapshotAckMessage extends NetworkMessage
+{
+	private static final long serialVersionUID = 6023196815498712844L;
+	
+	private long tick;
+	
+	public SnapshotAckMessage(long tick)
+	{
+		this.tick = tick;
+	}
+	
+	public long getTick()
+	{
+		return tick;
+	}
+}
@@ -0,0 +1,133 @@
+package engine.network.messages;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.UUID;
+import engine.gameObjects.GameObject;
+
+/**
+ * The server's state of the moving objects at the start of a tick, sent to
+ * a client as the changes since baseTick, an earlier snapshot which the
+ * client acknowledged. With no base, every object is sent in full.
+ * 
+ * A snapshot with a region holds only the objects in the client's region of
+ * interest; the client drops any others it has.
+ */
+public class SnapshotMessage extends NetworkMessage
+{
+	private static final long serialVersionUID = 2390412264113357950L;
+	
+	public static final long NO_BASE = -1;
+	
+	/** The fields of an object which changed since the base */
+	public static final byte FIELDS = 0;
+	
+	/** An object which was not in the base, with all its fields */
+	public static final byte FULL = 1;
+	
+	/** An object which was in the base, but is gone */
+	public static final byte REMOVED = 2;
+	
+	/** The static fields of a class which changed since the base */
+	public static final byte STATICS = 3;
+	
+	/** What changed for one object, or for the statics of one class */
+	public static class Entry implements Serializable
+	{
+		private static final long serialVersionUID = -3372640427283620713L;
+		
+		private byte kind;
+		
+		private UUID objectID;
+		
+		private String className;
+		
+		private GameObject object;
+		
+		private int[] indices;
+		
+		private long[] values;
+		
+		public Entry(byte kind, UUID objectID, String className, GameObject object, int[] indices,
+				long[] values)
+		{
+			this.kind = kind;
+			this.objectID = objectID;
+			this.className = className;
+			this.object = object;
+			this.indices = indices;
+			this.values = values;
+		}
+		
+		public byte getKind()
+		{
+			return kind;
+		}
+		
+		public UUID getObjectID()
+		{
+			return objectID;
+		}
+		
+		/** The class whose statics these are, for STATICS entries */
+		public String getClassName()
+		{
+			return className;
+		}
+		
+		/** The object sent in full, for FULL entries */
+		public GameObject getObject()
+		{
+			return object;
+		}
+		
+		/** Indices in the class's FieldTable of the fields in getValues() */
+		public int[] getIndices()
+		{
+			return indices;
+		}
+		
+		public long[] getValues()
+		{
+			return values;
+		}
+	}
+	
+	private long tick;
+	
+	private long baseTick;
+	
+	private Rectangle2D.Float region;
+	
+	private ArrayList<Entry> entries;
+	
+	public SnapshotMessage(long tick, long baseTick, Rectangle2D.Float region, ArrayList<Entry> entries)
+	{
+		this.tick = tick;
+		this.baseTick = baseTick;
+		this.region = region;
+		this.entries = entries;
+	}
+	
+	public long getTick()
+	{
+		return tick;
+	}
+	
+	public long getBaseTick()
+	{
+		return baseTick;
+	}
+	
+	/** The region the snapshot covers, or null if it covers everything */
+	public Rectangle2D.Float getRegion()
+	{
+		return region;
+	}
+	
+	public ArrayList<Entry> getEntries()
+	{
+		return entries;
+	}
+}
@@ -0,0 +1,37 @@
+package engine.network.messages;
+
+import java.util.UUID;
+
+/**
+ * A promise from a game instance that it has sent all of its events with
+ * timestamps up to and including safeUntil. Takes the place of a NullEvent
+ * for every one of those ticks.
+ * 
+ * Clients send their own promises to the server. The server sends each
+ * client a combined promise with no instanceID, covering every instance
+ * other than that client.
+ */
+public class TimePromiseMessage extends NetworkMessage
+{
+	private static final long serialVersionUID = -4619573067412238906L;
+	
+	private UUID instanceID;
+	
+	private long safeUntil;
+	
+	public TimePromiseMessage(UUID instanceID, long safeUntil)
+	{
+		this.instanceID = instanceID;
+		this.safeUntil = safeUntil;
+	}
+	
+	public UUID getInstanceID()
+	{
+		return this.instanceID;
+	}
+	
+	public long getSafeUntil()
+	{
+		return this.safeUntil;
+	}
+}
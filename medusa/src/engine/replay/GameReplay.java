@@ -4,8 +4,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import engine.GameInstance;
 import engine.gameEvents.EndReplayEvent;
 import engine.gameEvents.GameEvent;
 import engine.gameEvents.eventManagement.EventHandler;
@@ -30,17 +31,11 @@ public class GameReplay
 	{
 		this.replayObjects = (GameObjectSet) deepClone(objects);
 		
-		PriorityBlockingQueue<GameEvent> e = events.getAllEvents();
-		
-		while (!e.isEmpty())
-		{
-			this.replayEvents.add(e.poll());
-		}
+		this.replayEvents.addAll(events.getAllEvents());
 		
 		this.startTime = sTime;
 		
-		events.registerHandler(recHandler, new String[] 
-				{"CollisionEvent", "InputEvent", "DeathEvent", "SpawnEvent", "DespawnEvent"});
+		events.registerHandler(recHandler, GameInstance.CORE_EVENT_TYPES);
 		
 	}
 	
@@ -55,6 +50,16 @@ public class GameReplay
 		complete = true;
 	}
 	
+	/**
+	 * Removes one recorded copy of each of the given events, e.g. when their
+	 * handling has been undone and they will be handled, and recorded, again.
+	 */
+	public void forget(List<GameEvent> events)
+	{
+		for (GameEvent e : events)
+			replayEvents.remove(e);
+	}
+	
 	public boolean isComplete()
 	{
 		return complete;
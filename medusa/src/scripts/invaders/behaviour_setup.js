@@ -0,0 +1,8 @@
+// Runs on the server and on every client once the game is known. The
+// built-in Java behaviors have already been installed; a class can be
+// switched to a behaviour script here.
+ScriptBehavior = Java.type("engine.gameObjects.behaviors.ScriptBehavior");
+PlayerObject = Java.type("engine.gameObjects.PlayerObject");
+
+// the invaders player has no built-in behavior
+instance.setBehavior(PlayerObject.class, new ScriptBehavior("invaders/playerObject_behaviour.js"));
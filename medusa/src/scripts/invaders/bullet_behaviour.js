@@ -1,19 +1,30 @@
-y -= speed;
-
 CollisionEvent = Java.type("engine.gameEvents.CollisionEvent");
 DeathEvent = Java.type("engine.gameEvents.DeathEvent");
 
-if (y <= -10)
-{
-	instance.queueEvent(new DeathEvent(instance.getCurrentTime() + 1,
-							bullet.parentInstanceID, bullet.getID()), false);
-}
-
-colliding = instance.getColliding(bullet);
-
-for (i = 0; i < colliding.size(); i++) {
-	e = colliding.get(i);
-	
-	instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
-							bullet.parentInstanceID, bullet.getID(), e.getID()), false);
-}
\ No newline at end of file
+({
+	update: function(bullet, instance) {
+		var y = bullet.y - bullet.getSpeed();
+		
+		if (y <= -10)
+		{
+			instance.queueEvent(new DeathEvent(instance.getCurrentTime() + 1,
+									bullet.parentInstanceID, bullet.getID()), false);
+		}
+		
+		// swept, so that fast bullets cannot pass through an object between
+		// ticks; only the first objects reached on the way are hit
+		var hits = instance.sweepColliding(bullet, 0, -bullet.getSpeed());
+		
+		for (var i = 0; i < hits.size(); i++) {
+			var hit = hits.get(i);
+			
+			if (hit.getTime() > hits.get(0).getTime())
+				break;
+			
+			instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
+									bullet.parentInstanceID, bullet.getID(), hit.getObject().getID()), false);
+		}
+		
+		bullet.y = y;
+	}
+});
@@ -1,9 +1,18 @@
-parent.fill(255);
-parent.stroke(255);
-parent.beginShape();
-parent.vertex(x, y + height);
-parent.vertex(x + (width / 3), y);
-parent.vertex(x + (width / 3) * 2, y);
-parent.vertex(x + width, y + height);
-parent.vertex(x, y + height);
-parent.endShape();
\ No newline at end of file
+({
+	display: function(invader, parent) {
+		var x = invader.x;
+		var y = invader.y;
+		var width = invader.width;
+		var height = invader.height;
+		
+		parent.fill(255);
+		parent.stroke(255);
+		parent.beginShape();
+		parent.vertex(x, y + height);
+		parent.vertex(x + (width / 3), y);
+		parent.vertex(x + (width / 3) * 2, y);
+		parent.vertex(x + width, y + height);
+		parent.vertex(x, y + height);
+		parent.endShape();
+	}
+});
@@ -1,58 +1,55 @@
 Bullet = Java.type("engine.gameObjects.Bullet");
+CollisionEvent = Java.type("engine.gameEvents.CollisionEvent");
 
-movementDirection = 0;
-
-if (leftPressed)
-	movementDirection -= 1;
-if (rightPressed)
-	movementDirection += 1;
-
-hSpeed = movementSpeed * movementDirection;
-
-if (movementDirection > 0)
-{
-	if (instance.checkForPhysicalCollision(x + width
-			+ hSpeed, y, 1, height))
-	{
-		// x = Math.round(x);
-		while(!instance.checkForPhysicalCollision(x + width
-				+ movementDirection, y, 1, height))
+({
+	update: function(player, instance) {
+		var x = player.x;
+		var y = player.y;
+		var width = player.width;
+		var height = player.height;
+		
+		var movementDirection = 0;
+		
+		if (player.isLeftPressed())
+			movementDirection -= 1;
+		if (player.isRightPressed())
+			movementDirection += 1;
+		
+		var hSpeed = player.getMovementSpeed() * movementDirection;
+		
+		// stops short of the obstacle, leaving a 1-2 pixel gap
+		if (movementDirection != 0)
 		{
-			x += movementDirection;
+			var hit = instance.sweepForPhysicalCollision(x, y, width, height,
+					movementDirection * (Math.max(hSpeed * movementDirection, 0) + 1), 0);
+			
+			if (hit != null)
+			{
+				if (hit.getDistance() >= 2)
+					x += movementDirection * (Math.floor(hit.getDistance()) - 1);
+				
+				hSpeed = 0;
+			}
 		}
-		hSpeed = 0;
-	}
-}
-else if (movementDirection < 0)
-{
-	if (instance.checkForPhysicalCollision(x + hSpeed
-			- 1, y, 1, height))
-	{
-		// x = Math.round(x);
-		while(!instance.checkForPhysicalCollision(x
-				+ movementDirection
-				- 1, y, 1, height))
-		{
-			x += movementDirection;
+		
+		if (player.isJumpPressed() && Bullet.getCount() == 0) {
+			instance.addToMap(new Bullet(x + (width / 8) * 3, y - 10, player.parentInstanceID));
+		}
+		
+		x += hSpeed;
+		
+		//handle Non-Physical collisions
+		var colliding = instance.getColliding(player);
+		
+		for (var i = 0; i < colliding.size(); i++) {
+			var e = colliding.get(i);
+			
+			instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
+									player.parentInstanceID, player.getID(), e.getID()), false);
 		}
-		hSpeed = 0;
+		
+		player.x = x;
+		player.setMovementDirection(movementDirection);
+		player.setHSpeed(hSpeed);
 	}
-}
-
-if (jumpPressed && Bullet.getCount() == 0) {
-	instance.addToMap(new Bullet(x + (width / 8) * 3, y - 10, player.parentInstanceID));
-}
-
-x += hSpeed;
-
-//handle Non-Physical collisions
-colliding = instance.getColliding(player);
-
-CollisionEvent = Java.type("engine.gameEvents.CollisionEvent");
-
-for (i = 0; i < colliding.size(); i++) {
-	e = colliding.get(i);
-	
-	instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
-							player.parentInstanceID, player.getID(), e.getID()), false);
-}
\ No newline at end of file
+});
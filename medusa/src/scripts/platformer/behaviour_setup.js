@@ -0,0 +1,7 @@
+// Runs on the server and on every client once the game is known. The
+// built-in Java behaviors have already been installed; a class can be
+// switched to a behaviour script here, e.g.:
+//
+// ScriptBehavior = Java.type("engine.gameObjects.behaviors.ScriptBehavior");
+// PlayerObject = Java.type("engine.gameObjects.PlayerObject");
+// instance.setBehavior(PlayerObject.class, new ScriptBehavior("platformer/playerObject_behaviour.js"));
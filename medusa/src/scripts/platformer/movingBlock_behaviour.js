@@ -1,35 +1,49 @@
 GameInstance = Java.type("engine.GameInstance");
 
-hSpeed = movementSpeed * movementDirection;
-
-if (movementDirection > 0) {
-	if ((instance.checkForPhysicalCollision(x + width + hSpeed + 1, y,
-			1, height))
-			|| (x + hSpeed + width - 1) > GameInstance.SCREEN_WIDTH) {
-		x = Math.round(x);
-		while ((!instance.checkForPhysicalCollision(x + width
-				+ movementDirection + 1, y, 1, height))
-				&& (x + movementDirection + width - 1) < GameInstance.SCREEN_WIDTH) {
-			x += movementDirection;
-		}
-		hSpeed = 0;
-
-		movementDirection = -1;
-	}
-} else if (movementDirection < 0) {
-	if ((instance.checkForPhysicalCollision(x + hSpeed - 1, y,
-			1, height))
-			|| (x + hSpeed - 1) < 0) {
-		x = Math.round(x);
-		while ((!instance.checkForPhysicalCollision(x
-				+ movementDirection - 1, y, 1, height))
-				&& (x + movementDirection - 1) > 0) {
-			x += movementDirection;
+({
+	update: function(block, instance) {
+		var x = block.x;
+		var y = block.y;
+		var width = block.width;
+		var height = block.height;
+		var movementDirection = block.getMovementDirection();
+		
+		var hSpeed = block.getMovementSpeed() * movementDirection;
+		
+		if (movementDirection > 0) {
+			if ((instance.checkForPhysicalCollision(x + width + hSpeed + 1, y,
+					1, height))
+					|| (x + hSpeed + width - 1) > GameInstance.SCREEN_WIDTH) {
+				x = Math.round(x);
+				while ((!instance.checkForPhysicalCollision(x + width
+						+ movementDirection + 1, y, 1, height))
+						&& (x + movementDirection + width - 1) < GameInstance.SCREEN_WIDTH) {
+					x += movementDirection;
+				}
+				hSpeed = 0;
+		
+				movementDirection = -1;
+			}
+		} else if (movementDirection < 0) {
+			if ((instance.checkForPhysicalCollision(x + hSpeed - 1, y,
+					1, height))
+					|| (x + hSpeed - 1) < 0) {
+				x = Math.round(x);
+				while ((!instance.checkForPhysicalCollision(x
+						+ movementDirection - 1, y, 1, height))
+						&& (x + movementDirection - 1) > 0) {
+					x += movementDirection;
+				}
+				hSpeed = 0;
+		
+				movementDirection = 1;
+			}
 		}
-		hSpeed = 0;
-
-		movementDirection = 1;
+		
+		x += hSpeed;
+		
+		block.x = x;
+		block.setMovementDirection(movementDirection);
+		block.setHSpeed(hSpeed);
 	}
-}
-
-x += hSpeed;
\ No newline at end of file
+});
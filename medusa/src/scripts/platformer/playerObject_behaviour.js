@@ -1,115 +1,101 @@
-movementDirection = 0;
-
-if (leftPressed)
-	movementDirection -= 1;
-if (rightPressed)
-	movementDirection += 1;
-
-hSpeed = movementSpeed * movementDirection;
-
-if (vSpeed < maxFallSpeed)
-	vSpeed += gravity;
-
-canJump = false;
-if (instance.checkForPhysicalCollision(x, y + height + 1, width, 1)) {
-	canJump = true;
-}
-
-if (canJump && jumpPressed) {
-	vSpeed = -1 * jumpSpeed;
-}
-
-standingOn = instance.getPhysicalCollisions(x, y + height
-		+ 1, width, 1);
-
 HorizontalMovingBlock = Java.type("engine.gameObjects.HorizontalMovingBlock");
+CollisionEvent = Java.type("engine.gameEvents.CollisionEvent");
 
-if (!standingOn.isEmpty())
-{
-	for (i = 0; i < standingOn.size(); i++)
-	{
-		floor = standingOn.get(i);
-		if (floor instanceof HorizontalMovingBlock)
-		{
-			this.hSpeed += floor.getMovementSpeed()
-					* floor.getMovementDirection();
+({
+	update: function(player, instance) {
+		var x = player.x;
+		var y = player.y;
+		var width = player.width;
+		var height = player.height;
+		var vSpeed = player.getVSpeed();
+		var canJump = false;
+		
+		var movementDirection = 0;
+		
+		if (player.isLeftPressed())
+			movementDirection -= 1;
+		if (player.isRightPressed())
+			movementDirection += 1;
+		
+		var hSpeed = player.getMovementSpeed() * movementDirection;
+		
+		if (vSpeed < player.getMaxFallSpeed())
+			vSpeed += player.getGravity();
+		
+		if (instance.checkForPhysicalCollision(x, y + height + 1, width, 1)) {
+			canJump = true;
 		}
-	}
-}
-
-// horizontal collision
-if (movementDirection > 0)
-{
-	if (instance.checkForPhysicalCollision(x + width
-			+ hSpeed, y, 1, height))
-	{
-		// x = Math.round(x);
-		while(!instance.checkForPhysicalCollision(x + width
-				+ movementDirection, y, 1, height))
-		{
-			x += movementDirection;
+		
+		if (canJump && player.isJumpPressed()) {
+			vSpeed = -1 * player.getJumpSpeed();
 		}
-		hSpeed = 0;
-	}
-}
-else if (movementDirection < 0)
-{
-	if (instance.checkForPhysicalCollision(x + hSpeed
-			- 1, y, 1, height))
-	{
-		// x = Math.round(x);
-		while(!instance.checkForPhysicalCollision(x
-				+ movementDirection
-				- 1, y, 1, height))
+		
+		var standingOn = instance.getPhysicalCollisions(x, y + height
+				+ 1, width, 1);
+		
+		if (!standingOn.isEmpty())
 		{
-			x += movementDirection;
+			for (var i = 0; i < standingOn.size(); i++)
+			{
+				var floor = standingOn.get(i);
+				if (floor instanceof HorizontalMovingBlock)
+				{
+					hSpeed += floor.getMovementSpeed()
+							* floor.getMovementDirection();
+				}
+			}
 		}
-		hSpeed = 0;
-	}
-}
-
-vDirection = java.lang.Math.signum(vSpeed);
-// vertical collision
-if (vDirection > 0)
-{
-	if (instance.checkForPhysicalCollision(x, y + height
-			+ vSpeed, width, 1))
-	{
-		// y = Math.round(y);
-		while(!instance.checkForPhysicalCollision(x, y + height
-				+ vDirection, width, 1))
+		
+		// horizontal collision; stops short of the obstacle, leaving a 1-2 pixel
+		// gap as the old pixel-by-pixel stepping did
+		if (movementDirection != 0)
 		{
-			y += vDirection;
+			var hit = instance.sweepForPhysicalCollision(x, y, width, height,
+					movementDirection * (Math.max(hSpeed * movementDirection, 0) + 1), 0);
+			
+			if (hit != null)
+			{
+				if (hit.getDistance() >= 2)
+					x += movementDirection * (Math.floor(hit.getDistance()) - 1);
+				
+				hSpeed = 0;
+			}
 		}
-		vSpeed = 0;
-	}
-}
-else if (vDirection < 0)
-{
-	if (instance.checkForPhysicalCollision(x, y + vSpeed
-			- 1, width, 1))
-	{
-		// y = Math.round(y);
-		while(!instance.checkForPhysicalCollision(x, y
-				+ vDirection - 1, width, 1))
+		
+		var vDirection = java.lang.Math.signum(vSpeed);
+		// vertical collision
+		if (vDirection != 0)
 		{
-			y += vDirection;
+			var hit = instance.sweepForPhysicalCollision(x, y, width, height,
+					0, vDirection * (Math.abs(vSpeed) + 1));
+			
+			if (hit != null)
+			{
+				if (hit.getDistance() >= 2)
+					y += vDirection * (Math.floor(hit.getDistance()) - 1);
+				
+				vSpeed = 0;
+			}
+		}
+		
+		x = x + hSpeed;
+		y += vSpeed;
+		
+		// handle Non-Physical collisions
+		var colliding = instance.getColliding(player);
+		
+		for (var i = 0; i < colliding.size(); i++) {
+			var e = colliding.get(i);
+			
+			instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
+									player.parentInstanceID, player.getID(), e.getID()), false);
 		}
-		vSpeed = 0;
+		
+		player.x = x;
+		player.y = y;
+		player.setMovementDirection(movementDirection);
+		player.setHSpeed(hSpeed);
+		player.setVSpeed(vSpeed);
+		player.setCanJump(canJump);
 	}
-}
-
-x = x + hSpeed;
-y += vSpeed;
-
-// handle Non-Physical collisions
-colliding = instance.getColliding(player);
-
-CollisionEvent = Java.type("engine.gameEvents.CollisionEvent");
-
-for (i = 0; i < colliding.size(); i++) {
-	e = colliding.get(i);
-	
-	instance.queueEvent(new CollisionEvent(instance.getCurrentTime() + 1,
-							player.parentInstanceID, player.getID(), e.getID()), false);
-}
\ No newline at end of file
+});
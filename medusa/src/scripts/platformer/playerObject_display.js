@@ -1,3 +1,9 @@
-parent.fill(r, g, b);
-parent.stroke(0);
-parent.rect(x, y, width, height);
\ No newline at end of file
+({
+	display: function(player, parent) {
+		var color = player.getColor();
+		
+		parent.fill(color[0], color[1], color[2]);
+		parent.stroke(0);
+		parent.rect(player.x, player.y, player.width, player.height);
+	}
+});
@@ -0,0 +1,250 @@
+package testing;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import engine.GameInstance;
+import engine.gameEvents.GameEvent;
+import engine.gameObjects.Block;
+import engine.gameObjects.Bullet;
+import engine.gameObjects.DeathZone;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.Invader;
+import engine.gameObjects.PlayerObject;
+import engine.gameObjects.behaviors.ScriptBehavior;
+import engine.gameObjects.objectClasses.PhysicsObject;
+
+/**
+ * Runs the same scripted session with the built-in Java behaviors and with
+ * the behaviour scripts, checks that every object follows the same
+ * trajectory, and reports the average physics time per tick of each.
+ * 
+ * Must be run from the project directory, so that scripts can be found.
+ */
+public class BehaviorCrossCheck
+{
+	private static final int TICKS = 600;
+	
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed = true;
+		
+		for (String game : new String[] { "platform", "invaders" })
+		{
+			Object[] script = runIsolated(game, true);
+			Object[] java = runIsolated(game, false);
+			
+			@SuppressWarnings("unchecked")
+			List<String> scriptFrames = (List<String>) script[0];
+			@SuppressWarnings("unchecked")
+			List<String> javaFrames = (List<String>) java[0];
+			
+			int mismatch = -1;
+			
+			for (int i = 0; i < TICKS && mismatch < 0; i++)
+			{
+				if (!scriptFrames.get(i).equals(javaFrames.get(i)))
+					mismatch = i;
+			}
+			
+			if (mismatch < 0)
+			{
+				System.out.println(game + ": trajectories identical over " + TICKS + " ticks");
+			}
+			else
+			{
+				passed = false;
+				System.out.println(game + ": trajectories differ at tick " + mismatch);
+				System.out.println("  script: " + scriptFrames.get(mismatch));
+				System.out.println("  java:   " + javaFrames.get(mismatch));
+			}
+			
+			System.out.println("  script: " + script[1] + " ns/tick, java: " + java[1] + " ns/tick");
+		}
+		
+		if (!passed)
+			System.exit(1);
+	}
+	
+	/**
+	 * Runs a session in its own class loader, so that static game state (e.g.
+	 * the invader fleet's turn time) starts fresh for each run.
+	 */
+	private static Object[] runIsolated(String game, boolean scripted) throws Exception
+	{
+		String[] paths = System.getProperty("java.class.path").split(File.pathSeparator);
+		URL[] urls = new URL[paths.length];
+		
+		for (int i = 0; i < paths.length; i++)
+			urls[i] = new File(paths[i]).toURI().toURL();
+		
+		URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		
+		// scripts resolve Java.type() against the context class loader
+		Thread.currentThread().setContextClassLoader(loader);
+		
+		try
+		{
+			Method run = loader.loadClass(BehaviorCrossCheck.class.getName())
+					.getMethod("run", String.class, boolean.class);
+			
+			return (Object[]) run.invoke(null, game, scripted);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(previous);
+			loader.close();
+		}
+	}
+	
+	/**
+	 * Runs a session of the given game, returning the state of every moving
+	 * object after each tick, and the average physics time per tick over the
+	 * second half of the session.
+	 */
+	public static Object[] run(String game, boolean scripted)
+	{
+		Session instance = new Session();
+		instance.setGameTitle(game);
+		instance.setUpBehaviors();
+		
+		ArrayList<GameObject> tracked = new ArrayList<GameObject>();
+		PlayerObject player;
+		
+		if (game.equals("platform"))
+		{
+			if (scripted)
+			{
+				instance.setBehavior(PlayerObject.class,
+						new ScriptBehavior<PlayerObject>("platformer/playerObject_behaviour.js"));
+				instance.setBehavior(HorizontalMovingBlock.class,
+						new ScriptBehavior<HorizontalMovingBlock>("platformer/movingBlock_behaviour.js"));
+			}
+			
+			for (int i = 1; i < 11; i++)
+				instance.addToMap(new Block(i * 50, 300));
+			
+			instance.addToMap(new Block(50, 245));
+			instance.addToMap(new Block(500, 245));
+			instance.addToMap(new DeathZone(600, 250));
+			
+			tracked.add(new HorizontalMovingBlock(100, 200));
+			tracked.add(new HorizontalMovingBlock(320, 187));
+			
+			player = new PlayerObject(120, 100);
+		}
+		else
+		{
+			if (scripted)
+			{
+				instance.setBehavior(Invader.class,
+						new ScriptBehavior<Invader>("invaders/invader_behaviour.js"));
+				instance.setBehavior(Bullet.class,
+						new ScriptBehavior<Bullet>("invaders/bullet_behaviour.js"));
+			}
+			
+			PlayerObject.setDefaultSize(40, 18);
+			
+			for (int i = 0; i < 12; i++)
+			{
+				tracked.add(new Invader(i * 60 + 20, 80));
+				tracked.add(new Invader(i * 60 + 20, 120));
+			}
+			
+			instance.addToMap(new Block(-51, 762));
+			instance.addToMap(new Block(GameInstance.SCREEN_WIDTH + 1, 762));
+			
+			player = new PlayerObject(390, 762);
+		}
+		
+		tracked.add(player);
+		
+		for (GameObject o : tracked)
+			instance.addToMap(o);
+		
+		ArrayList<String> frames = new ArrayList<String>();
+		long time = 0;
+		
+		for (int tick = 0; tick < TICKS; tick++)
+		{
+			// scripted input: walk right, jump periodically, then walk back left
+			player.setRightPressed(tick > 50 && tick < 250);
+			player.setLeftPressed(tick > 260 && tick < 500);
+			player.setJumpPressed(tick % 90 == 0);
+			
+			long start = System.nanoTime();
+			
+			// objects are updated in a fixed order, since map order depends on random IDs
+			for (GameObject o : tracked)
+			{
+				if (instance.getObjectMap().getObject(o.getID()) != null)
+				{
+					((PhysicsObject) o).doPhysics(instance);
+					instance.getObjectMap().updatePosition(o);
+				}
+			}
+			
+			for (GameObject o : instance.getObjectMap().getObjectsOfClass(Bullet.class))
+			{
+				((PhysicsObject) o).doPhysics(instance);
+				instance.getObjectMap().updatePosition(o);
+			}
+			
+			if (tick >= TICKS / 2)
+				time += System.nanoTime() - start;
+			
+			instance.tick = tick + 1;
+			
+			StringBuilder frame = new StringBuilder("events=" + instance.eventCount);
+			
+			for (GameObject o : tracked)
+				frame.append(" (" + o.x + "," + o.y + ")");
+			
+			for (GameObject o : instance.getObjectMap().getObjectsOfClass(Bullet.class))
+				frame.append(" bullet(" + o.x + "," + o.y + ")");
+			
+			frames.add(frame.toString());
+		}
+		
+		return new Object[] { frames, time / (TICKS - TICKS / 2) };
+	}
+	
+	/**
+	 * A game instance with no networking or event handling, whose time is
+	 * advanced by hand.
+	 */
+	public static class Session extends GameInstance
+	{
+		private int eventCount = 0;
+		
+		private long tick = 0;
+		
+		@Override
+		public void queueEvent(GameEvent e, boolean propagate)
+		{
+			eventCount++;
+		}
+		
+		@Override
+		protected void sendPromise(long t)
+		{
+		}
+		
+		@Override
+		public long getCurrentTime()
+		{
+			return tick;
+		}
+		
+		@Override
+		protected void setUpBehaviors()
+		{
+			super.setUpBehaviors();
+		}
+	}
+}
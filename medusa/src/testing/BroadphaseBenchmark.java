@@ -0,0 +1,149 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Random;
+import engine.gameObjects.Block;
+import engine.gameObjects.DeathZone;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.GameObjectSet;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.SpatialIndex;
+
+/**
+ * Compares the collision broadphases of GameObjectSet at several object
+ * counts. Each level is a mix of static blocks, half of them packed into one
+ * dense corner, large DeathZones, and blocks which move a few pixels every
+ * tick. Every tick moves the blocks, then runs player sized queries at random
+ * positions. Hit counts are checked to be the same for every index.
+ */
+public class BroadphaseBenchmark
+{
+	private static final int TICKS = 50;
+	
+	private static final int QUERIES_PER_TICK = 2000;
+	
+	/** Above this many objects the linear scan is skipped, as it takes minutes */
+	private static final int MAX_LINEAR_OBJECTS = 10000;
+	
+	public static void main(String[] args)
+	{
+		// warm up
+		for (SpatialIndex.Type type : SpatialIndex.Type.values())
+			run(1000, type);
+		
+		boolean passed = true;
+		
+		for (int count : new int[] { 100, 10000, 100000 })
+		{
+			long expectedHits = -1;
+			
+			for (SpatialIndex.Type type : SpatialIndex.Type.values())
+			{
+				if (type == SpatialIndex.Type.NONE && count > MAX_LINEAR_OBJECTS)
+				{
+					System.out.println(count + " objects, " + type + ": skipped");
+					continue;
+				}
+				
+				long[] r = run(count, type);
+				
+				System.out.println(count + " objects, " + type + ": build " + r[0] / 1000000
+						+ " ms, update " + r[1] + " ns/object, query " + r[2] + " ns, hits " + r[3]);
+				
+				if (expectedHits < 0)
+					expectedHits = r[3];
+				else if (expectedHits != r[3])
+					passed = false;
+			}
+		}
+		
+		System.out.println(passed ? "all indexes agree" : "HIT COUNTS DIFFER");
+	}
+	
+	/**
+	 * Returns the build time, update time per moving object, time per query,
+	 * and total number of hits.
+	 */
+	private static long[] run(int count, SpatialIndex.Type type)
+	{
+		Random r = new Random(count);
+		int size = (int) (Math.sqrt(count) * 150);
+		
+		ArrayList<GameObject> objects = new ArrayList<GameObject>();
+		ArrayList<HorizontalMovingBlock> moving = new ArrayList<HorizontalMovingBlock>();
+		
+		for (int i = 0; i < count; i++)
+		{
+			int kind = r.nextInt(100);
+			int x, y;
+			
+			if (i % 2 == 0)
+			{
+				x = r.nextInt(size / 8);
+				y = r.nextInt(size / 8);
+			}
+			else
+			{
+				x = r.nextInt(size);
+				y = r.nextInt(size);
+			}
+			
+			if (kind < 5)
+			{
+				objects.add(new DeathZone(x, y));
+			}
+			else if (kind < 15)
+			{
+				HorizontalMovingBlock h = new HorizontalMovingBlock(x, y);
+				objects.add(h);
+				moving.add(h);
+			}
+			else
+			{
+				objects.add(new Block(x, y));
+			}
+		}
+		
+		GameObjectSet set = new GameObjectSet();
+		set.setSpatialIndex(type);
+		
+		long start = System.nanoTime();
+		
+		for (GameObject o : objects)
+			set.addToSet(o);
+		
+		long build = System.nanoTime() - start;
+		long update = 0, query = 0, hits = 0;
+		
+		for (int tick = 0; tick < TICKS; tick++)
+		{
+			start = System.nanoTime();
+			
+			for (HorizontalMovingBlock h : moving)
+			{
+				// sweep back and forth over 100 pixels
+				h.x += ((tick / 25) % 2 == 0) ? 4 : -4;
+				set.updatePosition(h);
+			}
+			
+			update += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			
+			for (int q = 0; q < QUERIES_PER_TICK; q++)
+			{
+				double x = r.nextInt(size), y = r.nextInt(size);
+				
+				if (q % 10 == 0)
+					hits += set.getColliding(x, y, 20, 40, false).size();
+				else if (set.checkPhysCollision(x, y, 20, 40))
+					hits++;
+			}
+			
+			query += System.nanoTime() - start;
+		}
+		
+		return new long[] { build, update / Math.max(1, (long) TICKS * moving.size()),
+				query / ((long) TICKS * QUERIES_PER_TICK), hits };
+	}
+}
@@ -0,0 +1,234 @@
+package testing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import engine.network.NetworkHandler;
+import engine.network.SelectorTransport;
+import engine.network.VirtualThreads;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Connects 1000 loopback clients to a server whose connections each run on
+ * an input and an output thread, once with platform threads and once with
+ * virtual threads, and compares the memory used and the round trip time of
+ * messages. Each client sends a message every tick, which the server sends
+ * back. The clients share a SelectorTransport, so that they cost the same in
+ * both runs.
+ * 
+ * Each run is made in its own JVM. Virtual threads need Java 21 or later;
+ * on older JVMs that run uses platform threads, and says so.
+ */
+public class ConnectionSoakTest
+{
+	private static final int CLIENTS = 1000;
+	
+	private static final int TICK_MS = 50;
+	
+	private static final int WARMUP_SECONDS = 5;
+	
+	private static final int SOAK_SECONDS = 20;
+	
+	private static final int MAX_SAMPLES = CLIENTS * SOAK_SECONDS * (1000 / TICK_MS);
+	
+	private static long[] samples = new long[MAX_SAMPLES];
+	
+	private static AtomicInteger sampleCount = new AtomicInteger();
+	
+	private static volatile boolean recording = false;
+	
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length > 0)
+		{
+			run(args[0].equals("virtual"));
+			return;
+		}
+		
+		for (String mode : new String[] { "platform", "virtual" })
+		{
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					ConnectionSoakTest.class.getName(), mode).redirectErrorStream(true).start();
+			
+			BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line;
+			
+			while ((line = in.readLine()) != null)
+				System.out.println(mode + ": " + line);
+			
+			p.waitFor();
+		}
+	}
+	
+	/** The server's side of one connection, which sends back what it gets */
+	private static class EchoHandler extends NetworkHandler
+	{
+		EchoHandler(Socket sock)
+		{
+			super(sock);
+		}
+		
+		protected void createThreads()
+		{
+			outputThread = new NetworkOutputThread();
+			inputThread = new NetworkInputThread();
+		}
+		
+		protected void socketSetup(Socket sock)
+		{
+			connectionSocket = sock;
+			
+			try
+			{
+				openStreams();
+				connected = true;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		protected void initDataTransactions()
+		{
+		}
+		
+		protected void respondToMessage(NetworkMessage message)
+		{
+			queueMessage(message);
+		}
+	}
+	
+	/** A client, which records how long its messages took to come back */
+	private static class SoakClient extends EchoHandler
+	{
+		SoakClient(Socket sock)
+		{
+			super(sock);
+		}
+		
+		protected void respondToMessage(NetworkMessage message)
+		{
+			if (!recording)
+				return;
+			
+			int i = sampleCount.getAndIncrement();
+			
+			if (i < MAX_SAMPLES)
+				samples[i] = System.nanoTime() - ((TimePromiseMessage) message).getSafeUntil();
+		}
+	}
+	
+	private static void run(boolean virtual) throws Exception
+	{
+		if (virtual && !VirtualThreads.isAvailable())
+			System.out.println("no virtual threads on Java " + System.getProperty("java.version")
+					+ " - using platform threads");
+		
+		final boolean useVirtual = virtual;
+		final ServerSocket serverSocket = new ServerSocket(0, CLIENTS);
+		
+		Thread listener = new Thread("Connection Listener")
+		{
+			public void run()
+			{
+				try
+				{
+					while (true)
+						new EchoHandler(serverSocket.accept()).startThreads(useVirtual);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		
+		listener.setDaemon(true);
+		listener.start();
+		
+		SelectorTransport transport = new SelectorTransport(1);
+		ArrayList<SoakClient> clients = new ArrayList<SoakClient>();
+		InetSocketAddress address = new InetSocketAddress("localhost", serverSocket.getLocalPort());
+		
+		long baseline = usedMemory();
+		
+		for (int i = 0; i < CLIENTS; i++)
+		{
+			SoakClient c = new SoakClient(SocketChannel.open(address).socket());
+			c.startSelector(transport);
+			clients.add(c);
+		}
+		
+		long end = System.currentTimeMillis() + (WARMUP_SECONDS + SOAK_SECONDS) * 1000L;
+		long recordFrom = System.currentTimeMillis() + WARMUP_SECONDS * 1000L;
+		int ticks = 0;
+		
+		while (System.currentTimeMillis() < end)
+		{
+			recording = System.currentTimeMillis() >= recordFrom;
+			
+			for (SoakClient c : clients)
+				c.queueMessage(new TimePromiseMessage(null, System.nanoTime()));
+			
+			ticks++;
+			Thread.sleep(TICK_MS);
+		}
+		
+		recording = false;
+		
+		System.gc();
+		Thread.sleep(200);
+		
+		int n = Math.min(sampleCount.get(), MAX_SAMPLES);
+		long[] s = Arrays.copyOf(samples, n);
+		Arrays.sort(s);
+		
+		System.out.println(CLIENTS + " clients, " + ticks + " ticks, " + n + " round trips recorded");
+		System.out.println("  memory: heap " + (usedMemory() - baseline) / (1024 * 1024) + " MB, resident "
+				+ residentMemory() + " MB, " + Thread.activeCount() + " platform threads");
+		
+		if (n > 0)
+			System.out.println("  round trip: p50 " + s[n / 2] / 1000 + " us, p99 " + s[(int) (n * 0.99)] / 1000
+					+ " us, max " + s[n - 1] / 1000 + " us");
+		
+		System.exit(0);
+	}
+	
+	private static long usedMemory()
+	{
+		System.gc();
+		
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+	
+	/** Returns the resident set size in MB, from /proc, or -1 if not on Linux */
+	private static long residentMemory()
+	{
+		try
+		{
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+			{
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+			}
+		}
+		catch (IOException e)
+		{
+		}
+		
+		return -1;
+	}
+}
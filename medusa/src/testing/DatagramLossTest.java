@@ -0,0 +1,338 @@
+package testing;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import engine.gameEvents.InputEvent;
+import engine.network.DatagramLink;
+import engine.network.DatagramTransport;
+import engine.network.NetworkHandler;
+import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Runs two peers which each send events and a promise every tick over a
+ * DatagramLink, through a proxy which drops and delays packets, at several
+ * loss rates. Checks that every event arrives exactly once and in order,
+ * and never after a promise which covers it, and reports how long after
+ * each tick's promise was sent the other peer could run the tick.
+ */
+public class DatagramLossTest
+{
+	private static final int TICKS = 1000;
+	
+	private static final int TICK_MS = 10;
+	
+	private static final int EVENTS_PER_TICK = 2;
+	
+	/** Delay added to each packet by the proxy, each way */
+	private static final int DELAY_MS = 20;
+	
+	/** Most further delay added at random, which reorders packets */
+	private static final int JITTER_MS = 5;
+	
+	private static final double[] LOSS_RATES = { 0.0, 0.05, 0.2 };
+	
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed = true;
+		
+		for (double loss : LOSS_RATES)
+			passed &= run(loss);
+		
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * One end of the link: sends events and promises, and checks those it
+	 * receives against what the other end sent
+	 */
+	private static class Peer extends NetworkHandler
+	{
+		final UUID id = UUID.randomUUID();
+		
+		Peer other;
+		
+		/** When the promise for each tick was sent */
+		long[] sentAt = new long[TICKS];
+		
+		/** How many events were sent with each timestamp or earlier */
+		int[] sentUpTo = new int[TICKS + 2];
+		
+		int eventsSent = 0;
+		
+		// what has been received from the other peer
+		
+		int eventsReceived = 0;
+		
+		long promiseReceived = -1;
+		
+		/** When the other peer's promise first covered each tick */
+		long[] coveredAt = new long[TICKS];
+		
+		String failure;
+		
+		Peer()
+		{
+			super((Socket) null);
+		}
+		
+		protected void createThreads()
+		{
+		}
+		
+		protected void socketSetup(Socket sock)
+		{
+			connected = true;
+		}
+		
+		protected void initDataTransactions()
+		{
+		}
+		
+		void sendTick(int t)
+		{
+			for (int i = 0; i < EVENTS_PER_TICK; i++)
+			{
+				InputEvent e = new InputEvent(t + 1, id, "LEFT PRESSED", null);
+				
+				// the priority numbers the events, so that order can be checked
+				e.setPriority(eventsSent++);
+				queueMessage(new GameEventMessage(e, t), false);
+			}
+			
+			sentUpTo[t + 1] = eventsSent;
+			sentAt[t] = System.nanoTime();
+			
+			queueMessage(new TimePromiseMessage(id, t));
+		}
+		
+		protected void respondToMessage(NetworkMessage message)
+		{
+			long now = System.nanoTime();
+			
+			if (message instanceof GameEventMessage)
+			{
+				InputEvent e = (InputEvent) ((GameEventMessage) message).getEvent();
+				
+				if (e.getPriority() != eventsReceived)
+					fail("event " + e.getPriority() + " arrived when " + eventsReceived + " was expected");
+				
+				if (e.getTimeStamp() <= promiseReceived)
+					fail("event " + e.getPriority() + " arrived after a promise covering it");
+				
+				eventsReceived++;
+			}
+			else
+			{
+				long v = ((TimePromiseMessage) message).getSafeUntil();
+				
+				if (v <= promiseReceived)
+					fail("promise " + v + " arrived after promise " + promiseReceived);
+				
+				if (eventsReceived < other.sentUpTo[(int) v])
+					fail("promise " + v + " arrived before " + (other.sentUpTo[(int) v] - eventsReceived)
+							+ " events it covers");
+				
+				for (long t = promiseReceived + 1; t <= v; t++)
+					coveredAt[(int) t] = now;
+				
+				promiseReceived = v;
+			}
+		}
+		
+		private void fail(String why)
+		{
+			if (failure == null)
+				failure = why;
+		}
+	}
+	
+	/**
+	 * Relays packets between a client, which sends to its front socket, and
+	 * a server, from its back socket, dropping and delaying them
+	 */
+	private static class LossyProxy
+	{
+		final DatagramSocket front = new DatagramSocket();
+		
+		final DatagramSocket back = new DatagramSocket();
+		
+		final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+		
+		final Random random = new Random(1);
+		
+		final double loss;
+		
+		volatile SocketAddress client;
+		
+		long dropped = 0;
+		
+		long relayed = 0;
+		
+		LossyProxy(double loss, final SocketAddress server) throws SocketException
+		{
+			this.loss = loss;
+			
+			relay(front, back, server);
+			relay(back, front, null);
+		}
+		
+		SocketAddress getAddress()
+		{
+			return new InetSocketAddress("localhost", front.getLocalPort());
+		}
+		
+		private void relay(final DatagramSocket from, final DatagramSocket to, final SocketAddress fixed)
+		{
+			Thread t = new Thread("Proxy Relay")
+			{
+				public void run()
+				{
+					byte[] buffer = new byte[65507];
+					DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+					
+					while (true)
+					{
+						try
+						{
+							p.setLength(buffer.length);
+							from.receive(p);
+						}
+						catch (IOException e)
+						{
+							return;
+						}
+						
+						if (from == front)
+							client = p.getSocketAddress();
+						
+						final SocketAddress dest = (fixed != null) ? fixed : client;
+						final byte[] copy = Arrays.copyOf(buffer, p.getLength());
+						
+						synchronized (random)
+						{
+							if (random.nextDouble() < loss)
+							{
+								dropped++;
+								continue;
+							}
+							
+							relayed++;
+							
+							delayer.schedule(new Runnable()
+							{
+								public void run()
+								{
+									try
+									{
+										to.send(new DatagramPacket(copy, copy.length, dest));
+									}
+									catch (IOException e)
+									{
+										e.printStackTrace();
+									}
+								}
+							}, DELAY_MS * 1000 + random.nextInt(JITTER_MS * 1000 + 1), TimeUnit.MICROSECONDS);
+						}
+					}
+				}
+			};
+			
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		void close()
+		{
+			front.close();
+			back.close();
+			delayer.shutdownNow();
+		}
+	}
+	
+	private static boolean run(double loss) throws Exception
+	{
+		DatagramTransport serverTransport = new DatagramTransport(0);
+		DatagramTransport clientTransport = new DatagramTransport(0);
+		LossyProxy proxy = new LossyProxy(loss, new InetSocketAddress("localhost", serverTransport.getPort()));
+		
+		Peer server = new Peer();
+		Peer client = new Peer();
+		
+		server.other = client;
+		client.other = server;
+		
+		DatagramLink link = serverTransport.createLink(server);
+		
+		server.useDatagrams(link);
+		client.useDatagrams(clientTransport.connect(client, link.getID(), link.getToken(), proxy.getAddress()));
+		
+		for (int t = 0; t < TICKS; t++)
+		{
+			client.sendTick(t);
+			server.sendTick(t);
+			
+			Thread.sleep(TICK_MS);
+		}
+		
+		// time for the last promises to get through
+		long end = System.currentTimeMillis() + 5000;
+		
+		while ((client.promiseReceived < TICKS - 1 || server.promiseReceived < TICKS - 1)
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		
+		System.out.println(String.format("loss %.0f%%, %d ms each way: %d of %d packets dropped", loss * 100,
+				DELAY_MS, proxy.dropped, proxy.dropped + proxy.relayed));
+		
+		boolean passed = report("client to server", client, server) & report("server to client", server, client);
+		
+		proxy.close();
+		serverTransport.close();
+		clientTransport.close();
+		
+		return passed;
+	}
+	
+	private static boolean report(String direction, Peer sender, Peer receiver)
+	{
+		boolean passed = receiver.failure == null && receiver.promiseReceived == TICKS - 1
+				&& receiver.eventsReceived == sender.eventsSent;
+		
+		long[] latency = new long[TICKS];
+		int n = 0;
+		
+		for (int t = 0; t < TICKS; t++)
+		{
+			if (receiver.coveredAt[t] != 0)
+				latency[n++] = receiver.coveredAt[t] - sender.sentAt[t];
+		}
+		
+		Arrays.sort(latency, 0, n);
+		
+		System.out.println("  " + direction + ": " + receiver.eventsReceived + " of " + sender.eventsSent
+				+ " events, promises to tick " + receiver.promiseReceived
+				+ ((receiver.failure != null) ? " - " + receiver.failure : ""));
+		
+		if (n > 0)
+			System.out.println(String.format("    tick covered after p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+					latency[n / 2] / 1e6, latency[(int) (n * 0.99)] / 1e6, latency[n - 1] / 1e6));
+		
+		System.out.println("    " + sender.getDatagramLink().getStatistics());
+		
+		return passed;
+	}
+}
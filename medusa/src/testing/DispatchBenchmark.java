@@ -0,0 +1,282 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import engine.GameInstance;
+import engine.gameEvents.CollisionEvent;
+import engine.gameEvents.DeathEvent;
+import engine.gameEvents.DespawnEvent;
+import engine.gameEvents.GameEvent;
+import engine.gameEvents.InputEvent;
+import engine.gameEvents.SpawnEvent;
+import engine.gameEvents.eventManagement.EventHandler;
+import engine.gameEvents.eventManagement.EventManager;
+import engine.gameEvents.eventManagement.EventQueue;
+import engine.gameObjects.PlayerObject;
+
+/**
+ * Compares the class-keyed handler table of EventManager with the string
+ * keyed one it replaced, which looked handlers up by getEventType(), held
+ * them in synchronized lists, and had each handler switch on the same
+ * string. Each table is given the same events of the core types, with two
+ * handlers registered for each type, as a game and its replay recorder
+ * register: first from an array, for the cost of dispatch alone, then from
+ * an EventQueue, through EventManager.handleFromQueue() for the class
+ * table. Every handler counts the events of each type it is given, and the
+ * counts are checked to be the same for both tables.
+ */
+public class DispatchBenchmark
+{
+	private static final int EVENTS = 200000;
+	
+	private static final int TICKS = 1000;
+	
+	private static final int ROUNDS = 10;
+	
+	private static final UUID INSTANCE = UUID.randomUUID();
+	
+	private static final PlayerObject PLAYER = new PlayerObject();
+	
+	/** Handles events as CoreEventHandler does, by class */
+	private static class ClassHandler implements EventHandler
+	{
+		long[] counts = new long[5];
+		
+		@Override
+		public void handleEvent(GameEvent e)
+		{
+			if (e instanceof CollisionEvent)
+				counts[0]++;
+			else if (e instanceof InputEvent)
+				counts[1]++;
+			else if (e instanceof DeathEvent)
+				counts[2]++;
+			else if (e instanceof SpawnEvent)
+				counts[3]++;
+			else if (e instanceof DespawnEvent)
+				counts[4]++;
+		}
+	}
+	
+	/** Handles events as CoreEventHandler used to, by name */
+	private static class NameHandler implements EventHandler
+	{
+		long[] counts = new long[5];
+		
+		@Override
+		public void handleEvent(GameEvent e)
+		{
+			switch (e.getEventType())
+			{
+				case "CollisionEvent":
+					counts[0]++;
+					break;
+				case "InputEvent":
+					counts[1]++;
+					break;
+				case "DeathEvent":
+					counts[2]++;
+					break;
+				case "SpawnEvent":
+					counts[3]++;
+					break;
+				case "DespawnEvent":
+					counts[4]++;
+					break;
+			}
+		}
+	}
+	
+	/** The handler table EventManager had before, keyed by simple class name */
+	private static class NameTable
+	{
+		ConcurrentHashMap<String, List<EventHandler>> handlerMap = new ConcurrentHashMap<String, List<EventHandler>>();
+		
+		void registerHandler(EventHandler handler, String[] eventTypes)
+		{
+			for (String eventType : eventTypes)
+			{
+				handlerMap.putIfAbsent(eventType, Collections.synchronizedList(new ArrayList<EventHandler>()));
+				handlerMap.get(eventType).add(handler);
+			}
+		}
+		
+		void handleFromQueue(long cTime, EventQueue queue)
+		{
+			while (queue.peek() != null && queue.getFirstTimestamp() <= cTime)
+				dispatchToHandlers(queue.poll());
+		}
+		
+		void dispatchToHandlers(GameEvent e)
+		{
+			List<EventHandler> handlerList = handlerMap.get(e.getEventType());
+			
+			if (handlerList != null)
+			{
+				for (EventHandler h : handlerList)
+					h.handleEvent(e);
+			}
+		}
+	}
+	
+	/**
+	 * The table EventManager has now, as its dispatch is private: handlers
+	 * by event class, in arrays which are replaced rather than changed
+	 */
+	private static class ClassTable
+	{
+		ConcurrentHashMap<Class<?>, EventHandler[]> handlerMap = new ConcurrentHashMap<Class<?>, EventHandler[]>();
+		
+		void registerHandler(EventHandler handler, Class<?>[] eventTypes)
+		{
+			for (Class<?> eventType : eventTypes)
+			{
+				EventHandler[] handlers = handlerMap.get(eventType);
+				handlers = (handlers == null) ? new EventHandler[1] : Arrays.copyOf(handlers, handlers.length + 1);
+				handlers[handlers.length - 1] = handler;
+				handlerMap.put(eventType, handlers);
+			}
+		}
+		
+		void dispatchToHandlers(GameEvent e)
+		{
+			EventHandler[] handlers = handlerMap.get(e.getClass());
+			
+			if (handlers != null)
+			{
+				for (int i = 0; i < handlers.length; i++)
+					handlers[i].handleEvent(e);
+			}
+		}
+	}
+	
+	public static void main(String[] args)
+	{
+		ArrayList<GameEvent> events = createEvents();
+		
+		String[] names = new String[GameInstance.CORE_EVENT_TYPES.length];
+		
+		for (int i = 0; i < names.length; i++)
+			names[i] = GameInstance.CORE_EVENT_TYPES[i].getSimpleName();
+		
+		EventManager manager = new EventManager();
+		ClassTable classTable = new ClassTable();
+		ClassHandler[] classHandlers = { new ClassHandler(), new ClassHandler() };
+		
+		for (ClassHandler h : classHandlers)
+		{
+			manager.registerHandler(h, GameInstance.CORE_EVENT_TYPES);
+			classTable.registerHandler(h, GameInstance.CORE_EVENT_TYPES);
+		}
+		
+		NameTable nameTable = new NameTable();
+		NameHandler[] nameHandlers = { new NameHandler(), new NameHandler() };
+		
+		for (NameHandler h : nameHandlers)
+			nameTable.registerHandler(h, names);
+		
+		long[][] times = new long[4][ROUNDS];
+		
+		// alternate, so that neither table gets a warmer JVM
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			
+			for (GameEvent e : events)
+				classTable.dispatchToHandlers(e);
+			
+			times[0][round] = System.nanoTime() - start;
+			start = System.nanoTime();
+			
+			for (GameEvent e : events)
+				nameTable.dispatchToHandlers(e);
+			
+			times[1][round] = System.nanoTime() - start;
+			
+			EventQueue q = fill(events);
+			start = System.nanoTime();
+			
+			manager.handleFromQueue(TICKS, q);
+			
+			times[2][round] = System.nanoTime() - start;
+			
+			q = fill(events);
+			start = System.nanoTime();
+			
+			nameTable.handleFromQueue(TICKS, q);
+			
+			times[3][round] = System.nanoTime() - start;
+		}
+		
+		System.out.println(EVENTS + " events, " + classHandlers.length + " handlers for each type, best of "
+				+ ROUNDS + " rounds:");
+		System.out.println("  dispatch alone:     class table " + best(times[0]) + " ns/event, name table "
+				+ best(times[1]) + " ns/event");
+		System.out.println("  from an EventQueue: class table " + best(times[2]) + " ns/event, name table "
+				+ best(times[3]) + " ns/event");
+		
+		boolean passed = true;
+		
+		for (int i = 0; i < 2; i++)
+		{
+			for (int t = 0; t < 5; t++)
+				passed &= classHandlers[i].counts[t] == nameHandlers[i].counts[t];
+		}
+		
+		System.out.println(passed ? "both tables dispatched the same events" : "COUNTS DIFFER");
+	}
+	
+	/**
+	 * Returns events of the core types, mostly collisions, as in a game,
+	 * spread over the ticks
+	 */
+	private static ArrayList<GameEvent> createEvents()
+	{
+		Random r = new Random(1);
+		ArrayList<GameEvent> events = new ArrayList<GameEvent>();
+		
+		for (int i = 0; i < EVENTS; i++)
+		{
+			long ts = r.nextInt(TICKS);
+			int kind = r.nextInt(100);
+			
+			if (kind < 70)
+				events.add(new CollisionEvent(ts, INSTANCE, PLAYER.getID(), UUID.randomUUID()));
+			else if (kind < 90)
+				events.add(new InputEvent(ts, INSTANCE, "LEFT PRESSED", PLAYER));
+			else if (kind < 94)
+				events.add(new DeathEvent(ts, INSTANCE, PLAYER.getID()));
+			else if (kind < 97)
+				events.add(new SpawnEvent(ts, INSTANCE, PLAYER));
+			else
+				events.add(new DespawnEvent(ts, INSTANCE, PLAYER));
+		}
+		
+		return events;
+	}
+	
+	private static EventQueue fill(ArrayList<GameEvent> events)
+	{
+		EventQueue q = new EventQueue(INSTANCE);
+		
+		for (GameEvent e : events)
+			q.add(e);
+		
+		return q;
+	}
+	
+	private static long best(long[] times)
+	{
+		long best = Long.MAX_VALUE;
+		
+		for (long t : times)
+			best = Math.min(best, t);
+		
+		return best / EVENTS;
+	}
+}
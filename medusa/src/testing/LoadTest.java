@@ -0,0 +1,201 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import engine.GameInstance;
+import engine.InputGenerator;
+import engine.MedusaClient;
+import engine.MedusaServer;
+import engine.network.LoopbackTransport;
+
+/**
+ * Runs one headless server and 500 headless bot clients in this JVM, joined
+ * through a LoopbackTransport, with each bot pressing and releasing keys at
+ * random. Once every bot has joined, runs the game for a number of ticks
+ * and reports how far behind their timelines the server and the bots ran,
+ * how far the server's GVT trailed, the bytes sent each way, and the heap.
+ * 
+ * The number of bots and of ticks may be given as arguments. Run from the
+ * project directory, so that the game's scripts are found.
+ */
+public class LoadTest
+{
+	private static final int BOTS = 500;
+	
+	private static final int TICKS = 600;
+	
+	private static final String GAME = "platform";
+	
+	private static final int DELIVERY_THREADS = 4;
+	
+	/** Chance each tick that a bot presses or releases a key */
+	private static final double INPUT_RATE = 1.0 / 20;
+	
+	private static final int SAMPLE_MS = 50;
+	
+	private static final double TICK_MS = 1000.0 / GameInstance.TARGET_FRAMERATE;
+	
+	/** Presses and releases the arrow keys and jump at random */
+	private static class RandomInputs implements InputGenerator
+	{
+		private static final String[] KEYS = { "LEFT", "RIGHT", "JUMP" };
+		
+		private Random random;
+		
+		private boolean[] held = new boolean[KEYS.length];
+		
+		RandomInputs(long seed)
+		{
+			random = new Random(seed);
+		}
+		
+		public String[] inputsAt(long tick)
+		{
+			if (random.nextDouble() >= INPUT_RATE)
+				return null;
+			
+			int k = random.nextInt(KEYS.length);
+			
+			held[k] = !held[k];
+			
+			return new String[] { KEYS[k] + (held[k] ? " PRESSED" : " RELEASED") };
+		}
+	}
+	
+	/** Samples of one measure, in whatever unit it is taken in */
+	private static class Samples
+	{
+		long[] values = new long[1024];
+		
+		int count = 0;
+		
+		void add(long v)
+		{
+			if (count == values.length)
+				values = Arrays.copyOf(values, count * 2);
+			
+			values[count++] = v;
+		}
+		
+		/** The p50, p99 and maximum, multiplied by scale, as text */
+		String summary(double scale, String unit)
+		{
+			if (count == 0)
+				return "no samples";
+			
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			
+			return String.format("p50 %.1f %s, p99 %.1f %s, max %.1f %s", sorted[count / 2] * scale, unit,
+					sorted[(int) (count * 0.99)] * scale, unit, sorted[count - 1] * scale, unit);
+		}
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		int bots = (args.length > 0) ? Integer.parseInt(args[0]) : BOTS;
+		int ticks = (args.length > 1) ? Integer.parseInt(args[1]) : TICKS;
+		
+		long heapAtStart = usedHeap();
+		
+		LoopbackTransport transport = new LoopbackTransport(DELIVERY_THREADS);
+		
+		MedusaServer server = new MedusaServer();
+		server.startHeadless(GAME);
+		server.listen(transport);
+		
+		ArrayList<MedusaClient> clients = new ArrayList<MedusaClient>();
+		Samples joins = new Samples();
+		long joinStart = System.nanoTime();
+		
+		for (int i = 0; i < bots; i++)
+		{
+			long start = System.nanoTime();
+			
+			MedusaClient c = new MedusaClient();
+			c.startHeadless(transport, new RandomInputs(i));
+			clients.add(c);
+			
+			joins.add(System.nanoTime() - start);
+		}
+		
+		double joinSeconds = (System.nanoTime() - joinStart) / 1e9;
+		long heapJoined = usedHeap();
+		
+		long firstTick = server.getCurrentTime();
+		long bytesToServer = transport.getBytesToServer(), bytesToClients = transport.getBytesToClients();
+		long messagesToServer = transport.getMessagesToServer(), messagesToClients = transport.getMessagesToClients();
+		long runStart = System.nanoTime();
+		
+		// time enough for the game to run twice as slowly as it should
+		long deadline = runStart + (long) (ticks * TICK_MS * 2e6) + 10000000000L;
+		
+		Samples serverLag = new Samples(), botLag = new Samples(), gvtLag = new Samples();
+		long peakHeap = 0;
+		
+		while (server.getCurrentTime() < firstTick + ticks && System.nanoTime() < deadline)
+		{
+			Thread.sleep(SAMPLE_MS);
+			
+			serverLag.add(server.getTimelineTime() - server.getCurrentTime());
+			gvtLag.add(server.getTimelineTime() - server.eventManager.getGVT());
+			
+			for (MedusaClient c : clients)
+				botLag.add(c.getTimelineTime() - c.getCurrentTime());
+			
+			peakHeap = Math.max(peakHeap, Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+		}
+		
+		double runSeconds = (System.nanoTime() - runStart) / 1e9;
+		long ticksRun = server.getCurrentTime() - firstTick;
+		
+		bytesToServer = transport.getBytesToServer() - bytesToServer;
+		bytesToClients = transport.getBytesToClients() - bytesToClients;
+		messagesToServer = transport.getMessagesToServer() - messagesToServer;
+		messagesToClients = transport.getMessagesToClients() - messagesToClients;
+		
+		int fewestPlayers = Integer.MAX_VALUE, mostPlayers = 0;
+		
+		for (MedusaClient c : clients)
+		{
+			fewestPlayers = Math.min(fewestPlayers, c.getPlayerCount());
+			mostPlayers = Math.max(mostPlayers, c.getPlayerCount());
+		}
+		
+		long heapAtEnd = usedHeap();
+		
+		System.out.println();
+		System.out.println(String.format("%d bots joined in %.1f s, each in %s", bots, joinSeconds,
+				joins.summary(1e-6, "ms")));
+		System.out.println(String.format("Ran %d of %d ticks in %.1f s (%.1f ticks per second, %.1f intended)",
+				ticksRun, ticks, runSeconds, ticksRun / runSeconds, 1000 / TICK_MS));
+		System.out.println("Tick latency, how far logic ran behind the timeline:");
+		System.out.println("  server: " + serverLag.summary(TICK_MS, "ms"));
+		System.out.println("  bots:   " + botLag.summary(TICK_MS, "ms"));
+		System.out.println("GVT lag, how far the server's GVT trailed its timeline: " + gvtLag.summary(1, "ticks"));
+		System.out.println(String.format("Sent to the server: %d messages, %d KB (%.1f KB/s)", messagesToServer,
+				bytesToServer / 1024, bytesToServer / 1024.0 / runSeconds));
+		System.out.println(String.format("Sent to the bots: %d messages, %d KB (%.1f KB/s, %.2f KB/s per bot)",
+				messagesToClients, bytesToClients / 1024, bytesToClients / 1024.0 / runSeconds,
+				bytesToClients / 1024.0 / runSeconds / Math.max(1, bots)));
+		System.out.println(String.format("Heap: %d MB at start, %d MB once joined (%d KB per bot), "
+				+ "%d MB peak, %d MB at the end", heapAtStart >> 20, heapJoined >> 20,
+				(heapJoined - heapAtStart) / Math.max(1, bots) >> 10, peakHeap >> 20, heapAtEnd >> 20));
+		System.out.println("Players: " + server.getPlayerCount() + " on the server, " + fewestPlayers + " to "
+				+ mostPlayers + " on each bot");
+		
+		System.exit(0);
+	}
+	
+	/** Heap in use once garbage has been collected, as far as it can be */
+	private static long usedHeap()
+	{
+		Runtime r = Runtime.getRuntime();
+		
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		
+		return r.totalMemory() - r.freeMemory();
+	}
+}
@@ -0,0 +1,231 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+import engine.gameEvents.CollisionEvent;
+import engine.gameEvents.GameEvent;
+import engine.gameEvents.InputEvent;
+import engine.gameEvents.NullEvent;
+import engine.gameObjects.PlayerObject;
+import engine.network.MessageCodec;
+import engine.network.messages.ClientDisconnectMessage;
+import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Compares MessageCodec with the Java serialization previously used on the
+ * wire, for each kind of message sent during a game: bytes per message, and
+ * time to encode and decode one. Java serialization is measured as it was
+ * used, on one long-lived stream, so class descriptors and repeated objects
+ * (e.g. the PlayerObject of every InputEvent) are only written once; the
+ * size of a message written on its own is shown as well. Every decoded
+ * message is checked against the original.
+ */
+public class MessageCodecBenchmark
+{
+	private static final int MESSAGES = 100000;
+	
+	private static final int ROUNDS = 5;
+	
+	private static final UUID INSTANCE = UUID.randomUUID();
+	
+	private static final PlayerObject PLAYER = new PlayerObject();
+	
+	private static int tick = 216000;
+	
+	public static void main(String[] args) throws Exception
+	{
+		String[] kinds = { "InputEvent", "TimePromise", "ClientDisconnect", "NullEvent", "CollisionEvent" };
+		MessageCodec codec = new MessageCodec();
+		boolean passed = true;
+		
+		// warm up
+		for (String kind : kinds)
+		{
+			javaRun(kind);
+			codecRun(codec, kind);
+		}
+		
+		for (String kind : kinds)
+		{
+			long[] j = javaRun(kind);
+			long[] c = codecRun(codec, kind);
+			
+			for (int i = 1; i < ROUNDS; i++)
+			{
+				j = min(j, javaRun(kind));
+				c = min(c, codecRun(codec, kind));
+			}
+			
+			System.out.println(kind + ":");
+			System.out.println("  java:  " + j[0] / 100.0 + " bytes (" + singleSize(kind)
+					+ " on its own), encode " + j[1] + " ns, decode " + j[2] + " ns");
+			System.out.println("  codec: " + c[0] / 100.0 + " bytes, encode " + c[1]
+					+ " ns, decode " + c[2] + " ns");
+			
+			if (c[3] != 0)
+			{
+				System.out.println("  DECODED MESSAGES DIFFER");
+				passed = false;
+			}
+		}
+		
+		if (!passed)
+			System.exit(1);
+	}
+	
+	private static NetworkMessage create(String kind)
+	{
+		tick++;
+		
+		switch (kind)
+		{
+			case "InputEvent":
+				return new GameEventMessage(new InputEvent(tick, 2, INSTANCE,
+						InputEvent.STANDARD_INPUTS[tick % 6], PLAYER), tick - 1);
+			case "TimePromise":
+				return new TimePromiseMessage((tick % 2 == 0) ? INSTANCE : null, tick);
+			case "ClientDisconnect":
+				return new ClientDisconnectMessage(INSTANCE);
+			case "NullEvent":
+				return new GameEventMessage(new NullEvent(tick, INSTANCE), tick - 1);
+			default:
+				return new GameEventMessage(new CollisionEvent(tick, INSTANCE, PLAYER.getID(),
+						INSTANCE), tick);
+		}
+	}
+	
+	/** Returns the size of 100 messages, and the encode and decode times of one */
+	private static long[] javaRun(String kind) throws IOException, ClassNotFoundException
+	{
+		NetworkMessage[] messages = new NetworkMessage[MESSAGES];
+		
+		for (int i = 0; i < MESSAGES; i++)
+			messages[i] = create(kind);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		
+		// the first message carries the class descriptors
+		out.writeObject(messages[0]);
+		out.flush();
+		
+		int firstSize = bytes.size();
+		long start = System.nanoTime();
+		
+		for (int i = 1; i < MESSAGES; i++)
+			out.writeObject(messages[i]);
+		
+		out.flush();
+		
+		long encode = System.nanoTime() - start;
+		
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		in.readObject();
+		
+		start = System.nanoTime();
+		
+		for (int i = 1; i < MESSAGES; i++)
+			in.readObject();
+		
+		long decode = System.nanoTime() - start;
+		
+		return new long[] { (bytes.size() - firstSize) * 100L / (MESSAGES - 1),
+				encode / (MESSAGES - 1), decode / (MESSAGES - 1) };
+	}
+	
+	/**
+	 * As javaRun(), and then the number of decoded messages which do not
+	 * match the originals
+	 */
+	private static long[] codecRun(MessageCodec codec, String kind) throws IOException
+	{
+		NetworkMessage[] messages = new NetworkMessage[MESSAGES];
+		
+		for (int i = 0; i < MESSAGES; i++)
+			messages[i] = create(kind);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		
+		for (int i = 0; i < MESSAGES; i++)
+			codec.writeFrame(messages[i], bytes);
+		
+		long encode = System.nanoTime() - start;
+		
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+		NetworkMessage[] decoded = new NetworkMessage[MESSAGES];
+		
+		start = System.nanoTime();
+		
+		for (int i = 0; i < MESSAGES; i++)
+			decoded[i] = codec.readFrame(in);
+		
+		long decode = System.nanoTime() - start;
+		long mismatches = 0;
+		
+		for (int i = 0; i < MESSAGES; i++)
+		{
+			if (!describe(messages[i]).equals(describe(decoded[i])))
+				mismatches++;
+		}
+		
+		return new long[] { bytes.size() * 100L / MESSAGES, encode / MESSAGES, decode / MESSAGES,
+				mismatches };
+	}
+	
+	/** Returns the size of one message written to a new stream */
+	private static int singleSize(String kind)
+	{
+		return MessageCodec.serialize(create(kind)).length;
+	}
+	
+	/** Describes the fields of a message which are sent */
+	private static String describe(NetworkMessage m)
+	{
+		String r = m.getMessageType();
+		
+		if (m instanceof GameEventMessage)
+		{
+			GameEvent e = ((GameEventMessage) m).getEvent();
+			
+			r += " " + e.getEventType() + " " + e.getTimeStamp() + " " + e.getPriority() + " "
+					+ e.getInstanceID() + " " + ((GameEventMessage) m).getSafeUntil();
+			
+			if (e instanceof InputEvent)
+				r += " " + ((InputEvent) e).getInput();
+			else if (e instanceof CollisionEvent)
+				r += " " + ((CollisionEvent) e).getIDs()[0] + " " + ((CollisionEvent) e).getIDs()[1];
+		}
+		else if (m instanceof TimePromiseMessage)
+		{
+			r += " " + ((TimePromiseMessage) m).getInstanceID() + " "
+					+ ((TimePromiseMessage) m).getSafeUntil();
+		}
+		else if (m instanceof ClientDisconnectMessage)
+		{
+			r += " " + ((ClientDisconnectMessage) m).getClientID();
+		}
+		
+		return r;
+	}
+	
+	private static long[] min(long[] a, long[] b)
+	{
+		long[] r = a.clone();
+		
+		for (int i = 1; i < 3; i++)
+			r[i] = Math.min(a[i], b[i]);
+		
+		// mismatches, from codecRun()
+		if (r.length > 3)
+			r[3] += b[3];
+		
+		return r;
+	}
+}
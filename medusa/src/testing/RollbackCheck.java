@@ -0,0 +1,284 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import engine.GameInstance;
+import engine.gameEvents.GameEvent;
+import engine.gameEvents.InputEvent;
+import engine.gameObjects.Block;
+import engine.gameObjects.GameObject;
+import engine.gameObjects.HorizontalMovingBlock;
+import engine.gameObjects.PlayerObject;
+import engine.gameObjects.objectClasses.PhysicsObject;
+
+/**
+ * Runs the same two player session twice, and checks that the game state
+ * after every tick is the same both times. The first run is conservative:
+ * every tick waits until both instances have promised it. The second runs
+ * optimistically, with Time Warp, while the remote instance's promises lag
+ * behind and some of its InputEvents arrive several ticks after their tick
+ * has been run, so that each has to be rolled back. Also checks that those
+ * rollbacks happened, and that the saved copies of the game state are
+ * dropped once GVT passes them.
+ * 
+ * Must be run from the project directory, so that scripts can be found.
+ */
+public class RollbackCheck
+{
+	private static final int TICKS = 600;
+	
+	/** Chance each tick that a player presses or releases a key */
+	private static final double INPUT_RATE = 1.0 / 12;
+	
+	/** How many ticks after their tick the late remote events arrive */
+	private static final int LATE_BY = 6;
+	
+	/** How far the remote instance's promises trail the ticks being run */
+	private static final int PROMISE_LAG = 8;
+	
+	/** One in this many remote events arrives late */
+	private static final int LATE_EVERY = 3;
+	
+	private static final UUID LOCAL = new UUID(0, 1);
+	
+	private static final UUID REMOTE = new UUID(0, 2);
+	
+	public static void main(String[] args) throws Exception
+	{
+		ArrayList<GameObject> level = createLevel();
+		
+		// each run gets events of its own, as handling them may change them
+		Session conservative = new Session(level, false);
+		TreeMap<Long, String> expected = conservative.run(createInputs(LOCAL, 1), createInputs(REMOTE, 2));
+		
+		Session optimistic = new Session(level, true);
+		TreeMap<Long, String> actual = optimistic.run(createInputs(LOCAL, 1), createInputs(REMOTE, 2));
+		
+		boolean passed = true;
+		long mismatch = -1;
+		
+		for (long t = 1; t <= TICKS && mismatch < 0; t++)
+		{
+			if (!expected.get(t).equals(actual.get(t)))
+				mismatch = t;
+		}
+		
+		if (mismatch < 0)
+		{
+			System.out.println("states identical over " + TICKS + " ticks");
+		}
+		else
+		{
+			passed = false;
+			System.out.println("states differ after tick " + mismatch);
+			System.out.println("  conservative: " + expected.get(mismatch));
+			System.out.println("  optimistic:   " + actual.get(mismatch));
+		}
+		
+		GameInstance.TimeWarpManager warp = optimistic.timeWarpManager;
+		warp.printRollbackStatistics();
+		
+		if (warp.getRollbackCount() == 0)
+		{
+			passed = false;
+			System.out.println("no late event caused a rollback");
+		}
+		
+		System.out.println("Copies of the game state kept at the end: " + warp.getCheckpointCount()
+				+ ", GVT " + optimistic.eventManager.getGVT() + " of " + optimistic.getCurrentTime());
+		
+		if (warp.getCheckpointCount() > warp.getMaxRollback() + 1)
+		{
+			passed = false;
+			System.out.println("copies older than GVT were not dropped");
+		}
+		
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/** A floor, with two blocks moving over it, and a player for each instance */
+	private static ArrayList<GameObject> createLevel()
+	{
+		ArrayList<GameObject> level = new ArrayList<GameObject>();
+		
+		for (int i = 0; i < 16; i++)
+			level.add(new Block(i * 50, 300));
+		
+		level.add(new Block(0, 245));
+		level.add(new Block(750, 245));
+		level.add(new HorizontalMovingBlock(100, 200));
+		level.add(new HorizontalMovingBlock(420, 187));
+		
+		PlayerObject local = new PlayerObject(120, 100);
+		local.setParentInstanceID(LOCAL);
+		level.add(local);
+		
+		PlayerObject remote = new PlayerObject(400, 100);
+		remote.setParentInstanceID(REMOTE);
+		level.add(remote);
+		
+		return level;
+	}
+	
+	/** Presses and releases the arrow keys and jump at random, at most once a tick */
+	private static ArrayList<InputEvent> createInputs(UUID instance, long seed)
+	{
+		String[] keys = { "LEFT", "RIGHT", "JUMP" };
+		boolean[] held = new boolean[keys.length];
+		Random random = new Random(seed);
+		ArrayList<InputEvent> inputs = new ArrayList<InputEvent>();
+		
+		for (int t = 1; t < TICKS; t++)
+		{
+			if (random.nextDouble() >= INPUT_RATE)
+				continue;
+			
+			int k = random.nextInt(keys.length);
+			held[k] = !held[k];
+			
+			inputs.add(new InputEvent(t, inputs.size(), instance, keys[k] + (held[k] ? " PRESSED" : " RELEASED"),
+					null));
+		}
+		
+		return inputs;
+	}
+	
+	/**
+	 * A game instance with no networking, whose ticks are run by hand. Events
+	 * are queued from another thread, as they would be by the input and
+	 * network threads, so that they are not taken for events generated by the
+	 * tick being run.
+	 */
+	private static class Session extends GameInstance
+	{
+		private ExecutorService network = Executors.newSingleThreadExecutor();
+		
+		Session(ArrayList<GameObject> level, boolean optimistic)
+		{
+			instanceID = LOCAL;
+			
+			setGameTitle("platform");
+			setUpBehaviors();
+			
+			eventManager.addQueue(LOCAL);
+			eventManager.addQueue(REMOTE);
+			// a subclass, as the constructor is only visible within the engine package
+			eventManager.registerHandler(new CoreEventHandler()
+			{
+			}, CORE_EVENT_TYPES);
+			
+			timeWarpManager.setEnabled(optimistic);
+			
+			// the same objects, with the same IDs, for both runs
+			for (GameObject o : level)
+				addToMap(o.clone());
+		}
+		
+		/**
+		 * Runs the session, delivering the remote events and promises by a
+		 * clock of its own, so that they run ahead of the game when it rolls
+		 * back. Returns the state after each tick, as it was last run.
+		 */
+		TreeMap<Long, String> run(ArrayList<InputEvent> localInputs, ArrayList<InputEvent> remoteInputs)
+				throws Exception
+		{
+			boolean optimistic = timeWarpManager.isEnabled();
+			TreeMap<Long, String> states = new TreeMap<Long, String>();
+			
+			ArrayList<InputEvent> remoteLate = new ArrayList<InputEvent>();
+			ArrayList<InputEvent> remoteOnTime = new ArrayList<InputEvent>();
+			
+			for (int i = 0; i < remoteInputs.size(); i++)
+			{
+				if (optimistic && i % LATE_EVERY == 0)
+					remoteLate.add(remoteInputs.get(i));
+				else
+					remoteOnTime.add(remoteInputs.get(i));
+			}
+			
+			int local = 0, onTime = 0, late = 0;
+			
+			// on past TICKS, until the last late event has arrived and been rolled back for
+			for (long clock = 0; getCurrentTime() < TICKS + LATE_BY + PROMISE_LAG; clock++)
+			{
+				ArrayList<GameEvent> arriving = new ArrayList<GameEvent>();
+				
+				while (local < localInputs.size() && localInputs.get(local).getTimeStamp() <= clock)
+					arriving.add(localInputs.get(local++));
+				
+				while (onTime < remoteOnTime.size() && remoteOnTime.get(onTime).getTimeStamp() <= clock)
+					arriving.add(remoteOnTime.get(onTime++));
+				
+				while (late < remoteLate.size() && remoteLate.get(late).getTimeStamp() + LATE_BY <= clock)
+					arriving.add(remoteLate.get(late++));
+				
+				deliver(arriving, optimistic ? clock - PROMISE_LAG : clock);
+				
+				// catch up with the clock, as the logic thread does with its timeline
+				while (getCurrentTime() <= clock)
+				{
+					runTick();
+					
+					states.put(getCurrentTime(), describe());
+				}
+			}
+			
+			network.shutdown();
+			
+			return states;
+		}
+		
+		private void deliver(final ArrayList<GameEvent> events, final long remotePromise) throws Exception
+		{
+			network.submit(new Runnable()
+			{
+				public void run()
+				{
+					for (GameEvent e : events)
+						eventManager.queueEvent(e);
+					
+					eventManager.promise(REMOTE, remotePromise);
+				}
+			}).get();
+		}
+		
+		/** The position of every moving object, in ID order, and the keys held by each player */
+		private String describe()
+		{
+			StringBuilder s = new StringBuilder();
+			
+			for (GameObject o : getObjectMap().getObjectsOfClass(PhysicsObject.class))
+			{
+				s.append(" " + o.getClass().getSimpleName() + "(" + o.x + "," + o.y);
+				
+				if (o instanceof PlayerObject)
+				{
+					PlayerObject p = (PlayerObject) o;
+					
+					s.append("," + (p.isLeftPressed() ? "L" : "") + (p.isRightPressed() ? "R" : "")
+							+ (p.isJumpPressed() ? "J" : ""));
+				}
+				
+				s.append(")");
+			}
+			
+			return s.toString();
+		}
+		
+		@Override
+		public void queueEvent(GameEvent e, boolean propagate)
+		{
+			eventManager.queueEvent(e);
+		}
+		
+		@Override
+		protected void sendPromise(long t)
+		{
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package testing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.UUID;
+import engine.gameEvents.InputEvent;
+import engine.gameObjects.PlayerObject;
+import engine.network.NetworkHandler;
+import engine.network.messages.GameEventMessage;
+import engine.network.messages.NetworkMessage;
+import engine.network.messages.TimePromiseMessage;
+
+/**
+ * Sends a game's worth of events over one connection with Java
+ * serialization, once with each reset policy, and reports how many objects
+ * the object streams held on to, how many bytes were sent, and how many
+ * events arrived with the state their player had when an earlier event was
+ * sent instead of its own. Each tick moves the player, then sends events
+ * referring to it and a promise, as one batch, and waits for the batch to
+ * arrive before the next tick, so that batches are not run together.
+ * 
+ * Each policy is run in its own JVM, with -Dmedusa.javaSerialization=true
+ * and -Dmedusa.resetPolicy set, as NetworkHandler reads them once. Checks
+ * that every message arrives, that the streams are reset under PERIODIC
+ * and PER_BATCH and hold far fewer objects than under NEVER, and that no
+ * event arrives stale under PER_BATCH.
+ */
+public class SerializationRetentionTest
+{
+	private static final int TICKS = 2000;
+	
+	private static final int EVENTS_PER_TICK = 4;
+	
+	private static final String[] POLICIES = { "NEVER", "PERIODIC", "PER_BATCH" };
+	
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length > 0)
+		{
+			run();
+			return;
+		}
+		
+		boolean passed = true;
+		long neverPeak = -1;
+		
+		for (String policy : POLICIES)
+		{
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			Process p = new ProcessBuilder(java, "-Dmedusa.javaSerialization=true", "-Dmedusa.resetPolicy=" + policy,
+					"-cp", System.getProperty("java.class.path"), SerializationRetentionTest.class.getName(), "run")
+					.redirectErrorStream(true).start();
+			
+			BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line;
+			String[] result = null;
+			
+			while ((line = in.readLine()) != null)
+			{
+				// received, peak objects, resets, stale events
+				if (line.startsWith("RESULT "))
+					result = line.split(" ");
+				else
+					System.out.println(policy + ": " + line);
+			}
+			
+			p.waitFor();
+			
+			if (result == null)
+			{
+				System.out.println(policy + ": no result");
+				passed = false;
+				continue;
+			}
+			
+			long received = Long.parseLong(result[1]);
+			long peak = Long.parseLong(result[2]);
+			long resets = Long.parseLong(result[3]);
+			long stale = Long.parseLong(result[4]);
+			
+			passed &= received == (long) TICKS * (EVENTS_PER_TICK + 1);
+			
+			if (policy.equals("NEVER"))
+				neverPeak = peak;
+			else
+				passed &= resets > 0 && peak * 10 < neverPeak;
+			
+			if (policy.equals("PER_BATCH"))
+				passed &= stale == 0;
+		}
+		
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/** One end of the connection, which counts the messages it gets */
+	private static class Peer extends NetworkHandler
+	{
+		volatile long received = 0;
+		
+		/** Events whose player was not where it was when the event was sent */
+		volatile long stale = 0;
+		
+		Peer(Socket sock)
+		{
+			super(sock);
+		}
+		
+		protected void createThreads()
+		{
+			outputThread = new NetworkOutputThread();
+			inputThread = new NetworkInputThread();
+		}
+		
+		protected void socketSetup(Socket sock)
+		{
+			connectionSocket = sock;
+			
+			try
+			{
+				openStreams();
+				connected = true;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		protected void initDataTransactions()
+		{
+		}
+		
+		protected void respondToMessage(NetworkMessage message)
+		{
+			if (message instanceof GameEventMessage)
+			{
+				InputEvent e = (InputEvent) ((GameEventMessage) message).getEvent();
+				
+				// the player is moved to the event's tick before it is sent
+				if (e.getPlayer().x != e.getTimeStamp())
+					stale++;
+			}
+			
+			received++;
+		}
+	}
+	
+	private static void run() throws Exception
+	{
+		ServerSocket serverSocket = new ServerSocket(0);
+		Socket clientSocket = new Socket("localhost", serverSocket.getLocalPort());
+		
+		Peer sender = new Peer(clientSocket);
+		Peer receiver = new Peer(serverSocket.accept());
+		
+		sender.startThreads();
+		receiver.startThreads();
+		
+		UUID instance = UUID.randomUUID();
+		PlayerObject player = new PlayerObject();
+		long expected = (long) TICKS * (EVENTS_PER_TICK + 1);
+		ArrayList<Long> retained = new ArrayList<Long>();
+		
+		for (int t = 0; t < TICKS; t++)
+		{
+			player.x = t;
+			
+			for (int i = 0; i < EVENTS_PER_TICK; i++)
+				sender.queueMessage(new GameEventMessage(new InputEvent(t, i, instance, "LEFT PRESSED", player), t),
+						false);
+			
+			sender.queueMessage(new TimePromiseMessage(instance, t));
+			
+			long sent = (t + 1L) * (EVENTS_PER_TICK + 1);
+			long end = System.currentTimeMillis() + 10000;
+			
+			while (receiver.received < sent && System.currentTimeMillis() < end)
+				Thread.yield();
+			
+			retained.add(sender.getRetainedObjects());
+		}
+		
+		System.out.println("policy " + sender.getResetPolicy() + ": " + receiver.received + " of " + expected
+				+ " messages, " + receiver.stale + " events arrived stale");
+		System.out.println("  " + sender.getRetentionStatistics());
+		System.out.println("  retained at tick " + TICKS / 2 + ": " + retained.get(TICKS / 2) + " objects, at the end: "
+				+ retained.get(TICKS - 1));
+		System.out.println("RESULT " + receiver.received + " " + sender.getPeakRetainedObjects() + " "
+				+ sender.getResetCount() + " " + receiver.stale);
+		
+		System.exit(0);
+	}
+}